@@ -0,0 +1,66 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Column stored in its own primitive array.
+ */
+class ArrayColumn extends Column {
+
+    private final double[] values;
+
+    // Cells whose source text had no fractional part. Null if none.
+    private final BitSet integral;
+
+    ArrayColumn(double[] values) {
+        this(values, null);
+    }
+
+    ArrayColumn(double[] values, BitSet integral) {
+        this.values = values;
+        this.integral = integral;
+    }
+
+    static ArrayColumn fromList(List<Double> list) {
+        double[] values = new double[list.size()];
+        int i = 0;
+        for (Double value : list) {
+            values[i++] = value;
+        }
+        return new ArrayColumn(values);
+    }
+
+    @Override
+    double get(int row) {
+        return values[row];
+    }
+
+    @Override
+    int size() {
+        return values.length;
+    }
+
+    @Override
+    boolean isIntegral(int row) {
+        return integral != null && integral.get(row);
+    }
+
+    @Override
+    void copyTo(double[] dest, int offset) {
+        System.arraycopy(values, 0, dest, offset, values.length);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.exceptions.PowerModelEstimatorException;
+import es.bsc.autonomic.powermodeller.tools.featureScaling.DataStandardization;
+import es.bsc.autonomic.powermodeller.tools.filters.FilterTool;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the power of samples of raw metrics with the models of a ModelBundle, the same way the model
+ * is validated:
+ *
+ * - global: the estimation of the global model.
+ * - resources: the sum of the estimations of the resource models in the bundle, plus the idle power when
+ *   the training data was filtered with RemoveIdle.
+ * - combined: the estimation of the step 2 model from the estimations of the resource models.
+ *
+ * Each model scores all the samples at once. Estimations can be requested from any number of threads.
+ * When the models were trained with scaled data, the metrics are scaled by name with the parameters of the
+ * bundle before being estimated.
+ */
+public final class BundleEstimator {
+
+    final static Logger logger = Logger.getLogger(BundleEstimator.class);
+
+    // Bundle names of the resource models and their labels in the breakdown
+    private static final Map<String, String> RESOURCES = new LinkedHashMap<String, String>();
+    static {
+        RESOURCES.put("cpu", CoreConfiguration.PCPU_LABEL);
+        RESOURCES.put("memory", CoreConfiguration.PMEM_LABEL);
+        RESOURCES.put("disk", CoreConfiguration.PDISK_LABEL);
+        RESOURCES.put("network", CoreConfiguration.PNET_LABEL);
+    }
+
+    private final ModelBundle bundle;
+    private final DataStandardization standardization;
+    // Models estimated from the raw metrics, by label
+    private final Map<String, ConcurrentResourceModel> models = new LinkedHashMap<String, ConcurrentResourceModel>();
+    private final ConcurrentResourceModel step2;
+    // Whether the estimations of the models make up the breakdown, the global model is not broken down
+    private final boolean breakdown;
+    private final double idle;
+
+    /**
+     * Power estimated for a sample and the estimation of each resource model, by label.
+     */
+    public static final class Estimation {
+        private final double power;
+        private final Map<String, Double> breakdown;
+
+        Estimation(double power, Map<String, Double> breakdown) {
+            this.power = power;
+            this.breakdown = Collections.unmodifiableMap(breakdown);
+        }
+
+        public double getPower() {
+            return power;
+        }
+
+        public Map<String, Double> getBreakdown() {
+            return breakdown;
+        }
+    }
+
+    public BundleEstimator(ModelBundle bundle) {
+        this.bundle = bundle;
+        this.standardization = bundle.getDataStandardization();
+
+        String type = bundle.getType();
+        Map<String, ResourceModel> bundled = bundle.getModels();
+        if (type.equalsIgnoreCase(CoreConfiguration.GLOBAL_MODEL)) {
+            models.put(CoreConfiguration.GLOBAL_MODEL, required(bundled, "global").concurrent());
+            step2 = null;
+            breakdown = false;
+            idle = 0;
+        } else if (type.equalsIgnoreCase(CoreConfiguration.RESOURCES_MODEL) || type.equalsIgnoreCase(CoreConfiguration.COMBINED_MODEL)) {
+            for (Map.Entry<String, String> resource : RESOURCES.entrySet()) {
+                ResourceModel model = bundled.get(resource.getKey());
+                if (model != null) {
+                    models.put(resource.getValue(), model.concurrent());
+                }
+            }
+            if (models.isEmpty()) {
+                logger.error("Model bundle of type " + type + " has no resource models");
+                throw new PowerModelEstimatorException("Model bundle of type " + type + " has no resource models");
+            }
+            breakdown = true;
+
+            if (type.equalsIgnoreCase(CoreConfiguration.COMBINED_MODEL)) {
+                step2 = required(bundled, "step2").concurrent();
+                idle = 0;
+            } else {
+                step2 = null;
+                // Same rule as PowerModelEstimator when adding up the resources
+                idle = CoreConfiguration.PREPROCESS_DATASET && CoreConfiguration.FILTER_TYPE.equalsIgnoreCase(FilterTool.REMOVE_IDLE)
+                        ? CoreConfiguration.POWER_IDLE : 0;
+            }
+        } else {
+            logger.error(type + " is not a valid type of model!");
+            throw new PowerModelEstimatorException(type + " is not a valid type of model!");
+        }
+    }
+
+    private static ResourceModel required(Map<String, ResourceModel> models, String name) {
+        ResourceModel model = models.get(name);
+        if (model == null) {
+            logger.error("Model bundle has no " + name + " model");
+            throw new PowerModelEstimatorException("Model bundle has no " + name + " model");
+        }
+        return model;
+    }
+
+    public ModelBundle getBundle() {
+        return bundle;
+    }
+
+    /**
+     * Labels of the columns returned by estimate(Map, int): the idle power if it is added, the estimation of
+     * each resource model and the power.
+     */
+    public List<String> getLabels() {
+        List<String> ret = new ArrayList<String>();
+        if (breakdown) {
+            if (idle != 0) {
+                ret.add(CoreConfiguration.PIDLE_LABEL);
+            }
+            ret.addAll(models.keySet());
+        }
+        ret.add(CoreConfiguration.PPREDICTED_LABEL);
+        return ret;
+    }
+
+    /**
+     * Estimates the power of samples given as raw metrics by name. Metrics not given are missing values.
+     */
+    public List<Estimation> estimate(List<Map<String, Double>> samples) {
+        int rows = samples.size();
+        Map<String, double[]> metrics = new HashMap<String, double[]>();
+        for (ConcurrentResourceModel model : models.values()) {
+            for (String metric : model.getInputHeader()) {
+                if (!metrics.containsKey(metric)) {
+                    double[] column = new double[rows];
+                    for (int i = 0; i < rows; i++) {
+                        Double value = samples.get(i).get(metric);
+                        column[i] = value != null ? value : Double.NaN;
+                    }
+                    metrics.put(metric, column);
+                }
+            }
+        }
+
+        Map<String, double[]> estimations = estimate(metrics, rows);
+        double[] power = estimations.remove(CoreConfiguration.PPREDICTED_LABEL);
+        List<Estimation> ret = new ArrayList<Estimation>(rows);
+        for (int i = 0; i < rows; i++) {
+            Map<String, Double> parts = new LinkedHashMap<String, Double>();
+            for (Map.Entry<String, double[]> estimation : estimations.entrySet()) {
+                parts.put(estimation.getKey(), estimation.getValue()[i]);
+            }
+            ret.add(new Estimation(power[i], parts));
+        }
+        return ret;
+    }
+
+    /**
+     * Estimates the power of samples given by columns of raw metrics, by name. Metrics not given are missing
+     * values.
+     * @return Columns of the estimations, by the labels of getLabels().
+     */
+    public Map<String, double[]> estimate(Map<String, double[]> metrics, int rows) {
+        if (standardization != null) {
+            // Missing values were scaled too, as the training files were
+            Map<String, double[]> scaled = new HashMap<String, double[]>(metrics);
+            for (String metric : standardization.getMetrics()) {
+                double[] values = metrics.get(metric);
+                if (values == null) {
+                    values = new double[rows];
+                    Arrays.fill(values, Double.NaN);
+                }
+                scaled.put(metric, standardization.standardize(metric, values));
+            }
+            metrics = scaled;
+        }
+
+        Map<String, double[]> estimations = new LinkedHashMap<String, double[]>();
+        for (Map.Entry<String, ConcurrentResourceModel> model : models.entrySet()) {
+            estimations.put(model.getKey(), model.getValue().predict(columns(model.getValue().getInputHeader(), rows, metrics), rows));
+        }
+
+        double[] power;
+        if (step2 != null) {
+            power = step2.predict(columns(step2.getInputHeader(), rows, estimations), rows);
+        } else {
+            power = new double[rows];
+            for (double[] estimation : estimations.values()) {
+                for (int i = 0; i < rows; i++) {
+                    power[i] += estimation[i];
+                }
+            }
+        }
+        for (int i = 0; i < rows; i++) {
+            power[i] += idle;
+        }
+
+        Map<String, double[]> ret = new LinkedHashMap<String, double[]>();
+        if (breakdown) {
+            if (idle != 0) {
+                double[] idleColumn = new double[rows];
+                Arrays.fill(idleColumn, idle);
+                ret.put(CoreConfiguration.PIDLE_LABEL, idleColumn);
+            }
+            ret.putAll(estimations);
+        }
+        ret.put(CoreConfiguration.PPREDICTED_LABEL, power);
+        return ret;
+    }
+
+    /**
+     * Columns of the given metrics. Metrics not given, such as the independent variable of the models, which
+     * is ignored, are missing values.
+     */
+    private static double[][] columns(List<String> header, int rows, Map<String, double[]> values) {
+        double[][] columns = new double[header.size()][];
+        for (int j = 0; j < columns.length; j++) {
+            columns[j] = values.get(header.get(j));
+            if (columns[j] == null) {
+                columns[j] = new double[rows];
+                Arrays.fill(columns[j], Double.NaN);
+            }
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,538 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.exceptions.DataSetException;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Numeric CSV loader. The file is mapped into memory and split into byte ranges on line boundaries,
+ * which are parsed in parallel straight into primitive columns. Cells are parsed from the bytes, so
+ * no String is created per row or per cell; only unusual literals (i.e. "Infinity" or values with
+ * more than 19 significant digits) go through Double.parseDouble.
+ */
+final class CSVLoader implements Closeable {
+
+    // Ranges parsed by a single task
+    private static final int MIN_SPLIT = 1 << 20;
+    private static final int MAX_SPLIT = 64 << 20;
+    // Window mapped at a time when looking for line ends
+    private static final int SCAN_WINDOW = 64 << 20;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10.0;
+        }
+    }
+
+    final static Logger logger = Logger.getLogger(CSVLoader.class);
+
+    private final String filePath;
+    private final byte delimiter;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final List<String> header;
+    // First byte not read yet
+    private long position;
+
+    CSVLoader(String filePath) {
+        this.filePath = filePath;
+        this.delimiter = (byte) CoreConfiguration.CSV_DELIMITER;
+        try {
+            file = new RandomAccessFile(filePath, "r");
+            channel = file.getChannel();
+            fileSize = channel.size();
+        } catch (IOException e) {
+            logger.error("Error while reading CSV file.", e);
+            throw new DataSetException("Error while reading CSV file.");
+        }
+
+        try {
+            long headerEnd = findLineEnds(0, 1);
+            if (headerEnd == 0) {
+                logger.error("File " + filePath + " is empty.");
+                throw new DataSetException("File " + filePath + " is empty.");
+            }
+            byte[] line = read(0, headerEnd);
+            header = splitLine(line, 0, line.length);
+            position = headerEnd;
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    List<String> getHeader() {
+        return header;
+    }
+
+    /**
+     * Parses the next maxRows lines (or up to the end of the file). Blank lines are skipped.
+     * @return Parsed columns, or null if the end of the file was already reached.
+     */
+    List<Column> next(int maxRows) {
+        if (position >= fileSize) {
+            return null;
+        }
+        long end = maxRows == Integer.MAX_VALUE ? fileSize : findLineEnds(position, maxRows);
+        List<Column> ret = parse(position, end);
+        position = end;
+        return ret;
+    }
+
+    boolean isFinished() {
+        return position >= fileSize;
+    }
+
+    /**
+     * Number of non-blank lines not read yet. Lines are only scanned, not parsed.
+     */
+    int countRows() {
+        try {
+            long offset = position;
+            long count = 0;
+            boolean content = false;
+            while (offset < fileSize) {
+                int length = (int) Math.min(SCAN_WINDOW, fileSize - offset);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                for (int i = 0; i < length; i++) {
+                    int b = window.get(i) & 0xff;
+                    if (b == '\n') {
+                        if (content) {
+                            count++;
+                            content = false;
+                        }
+                    } else if (b > ' ') {
+                        content = true;
+                    }
+                }
+                offset += length;
+            }
+            if (content) {
+                count++;
+            }
+            if (count > Integer.MAX_VALUE) {
+                logger.error("File " + filePath + " has too many samples: " + count);
+                throw new DataSetException("File " + filePath + " has too many samples: " + count);
+            }
+            return (int) count;
+        } catch (IOException e) {
+            logger.error("Error while reading CSV file.", e);
+            throw new DataSetException("Error while reading CSV file.");
+        }
+    }
+
+    /**
+     * Offset right after the count-th line end found from offset from, or the file size.
+     */
+    private long findLineEnds(long from, long count) {
+        try {
+            long offset = from;
+            long found = 0;
+            while (offset < fileSize) {
+                int length = (int) Math.min(SCAN_WINDOW, fileSize - offset);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                for (int i = 0; i < length; i++) {
+                    if (window.get(i) == '\n' && ++found == count) {
+                        return offset + i + 1;
+                    }
+                }
+                offset += length;
+            }
+            return fileSize;
+        } catch (IOException e) {
+            logger.error("Error while reading CSV file.", e);
+            throw new DataSetException("Error while reading CSV file.");
+        }
+    }
+
+    private byte[] read(long from, long to) {
+        try {
+            byte[] ret = new byte[(int) (to - from)];
+            if (ret.length > 0) {
+                channel.map(FileChannel.MapMode.READ_ONLY, from, ret.length).get(ret);
+            }
+            return ret;
+        } catch (IOException e) {
+            logger.error("Error while reading CSV file.", e);
+            throw new DataSetException("Error while reading CSV file.");
+        }
+    }
+
+    private List<Column> parse(long from, long to) {
+        long length = to - from;
+        int parallelism = POOL.getParallelism();
+        long splits = Math.max(1, Math.min(length / MIN_SPLIT, 4L * parallelism));
+        splits = Math.max(splits, (length + MAX_SPLIT - 1) / MAX_SPLIT);
+
+        List<ParseTask> tasks = new ArrayList<ParseTask>();
+        long start = from;
+        for (long k = 1; k <= splits && start < to; k++) {
+            long end = k == splits ? to : Math.min(to, Math.max(start, from + length * k / splits));
+            if (end < to) {
+                end = Math.min(to, findLineEnds(end, 1));
+            }
+            if (end > start) {
+                tasks.add(new ParseTask(start, end));
+            }
+            start = end;
+        }
+
+        List<Chunk> chunks = new ArrayList<Chunk>(tasks.size());
+        if (tasks.size() == 1) {
+            chunks.add(tasks.get(0).compute());
+        } else {
+            for (ParseTask task : tasks) {
+                POOL.execute(task);
+            }
+            for (ParseTask task : tasks) {
+                chunks.add(task.join());
+            }
+        }
+        return merge(chunks);
+    }
+
+    private List<Column> merge(List<Chunk> chunks) {
+        int numColumns = header.size();
+        int rows = 0;
+        for (Chunk chunk : chunks) {
+            rows += chunk.rows;
+        }
+
+        List<Column> ret = new ArrayList<Column>(numColumns);
+        for (int j = 0; j < numColumns; j++) {
+            if (chunks.size() == 1 && chunks.get(0).values[j].length == rows) {
+                ret.add(new ArrayColumn(chunks.get(0).values[j], chunks.get(0).integral[j]));
+                continue;
+            }
+            double[] values = new double[rows];
+            BitSet integral = new BitSet();
+            int offset = 0;
+            for (Chunk chunk : chunks) {
+                System.arraycopy(chunk.values[j], 0, values, offset, chunk.rows);
+                BitSet bits = chunk.integral[j];
+                for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                    integral.set(offset + i);
+                }
+                offset += chunk.rows;
+            }
+            ret.add(new ArrayColumn(values, integral));
+        }
+        return ret;
+    }
+
+    private static class Chunk {
+        int rows;
+        double[][] values;
+        BitSet[] integral;
+    }
+
+    private class ParseTask extends RecursiveTask<Chunk> {
+        private final long from;
+        private final long to;
+
+        ParseTask(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Chunk compute() {
+            byte[] bytes = read(from, to);
+            int numColumns = header.size();
+
+            Chunk chunk = new Chunk();
+            chunk.values = new double[numColumns][INITIAL_CAPACITY];
+            chunk.integral = new BitSet[numColumns];
+            for (int j = 0; j < numColumns; j++) {
+                chunk.integral[j] = new BitSet();
+            }
+            CellParser cell = new CellParser();
+
+            int lineStart = 0;
+            while (lineStart < bytes.length) {
+                int lineEnd = lineStart;
+                while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                if (!isBlank(bytes, lineStart, lineEnd)) {
+                    parseLine(bytes, lineStart, lineEnd, chunk, cell);
+                }
+                lineStart = lineEnd + 1;
+            }
+
+            for (int j = 0; j < numColumns; j++) {
+                if (chunk.values[j].length != chunk.rows) {
+                    chunk.values[j] = Arrays.copyOf(chunk.values[j], chunk.rows);
+                }
+            }
+            return chunk;
+        }
+
+        private void parseLine(byte[] bytes, int lineStart, int lineEnd, Chunk chunk, CellParser cell) {
+            int numColumns = header.size();
+            int row = chunk.rows;
+            if (row == chunk.values[0].length) {
+                for (int j = 0; j < numColumns; j++) {
+                    chunk.values[j] = Arrays.copyOf(chunk.values[j], row * 2);
+                }
+            }
+
+            int cellStart = lineStart;
+            int j = 0;
+            while (j < numColumns && cellStart <= lineEnd) {
+                int cellEnd = cellStart;
+                boolean quoted = false;
+                while (cellEnd < lineEnd && (quoted || bytes[cellEnd] != delimiter)) {
+                    if (bytes[cellEnd] == '"') {
+                        quoted = !quoted;
+                    }
+                    cellEnd++;
+                }
+                if (!cell.parse(bytes, cellStart, cellEnd)) {
+                    String[] record = splitLine(bytes, lineStart, lineEnd).toArray(new String[0]);
+                    logger.error("Incompatible value in file " + filePath + ". Record value was: " + Arrays.toString(record));
+                    throw new DataSetException("Incompatible value in file " + filePath + ". Record value was: " + Arrays.toString(record));
+                }
+                chunk.values[j][row] = cell.value;
+                if (cell.integral) {
+                    chunk.integral[j].set(row);
+                }
+                j++;
+                cellStart = cellEnd + 1;
+            }
+
+            if (j < numColumns) {
+                String[] record = splitLine(bytes, lineStart, lineEnd).toArray(new String[0]);
+                logger.error("Record " + Arrays.toString(record) + " has " + record.length + " values. Expected: " + numColumns);
+                throw new DataSetException("Record " + Arrays.toString(record) + " has " + record.length + " values. Expected: " + numColumns);
+            }
+            chunk.rows++;
+        }
+    }
+
+    private static boolean isBlank(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if ((bytes[i] & 0xff) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits a line into its (unquoted) cells. Only used for the header and for error messages.
+     */
+    private List<String> splitLine(byte[] bytes, int from, int to) {
+        if (to > from && bytes[to - 1] == '\n') {
+            to--;
+        }
+        if (to > from && bytes[to - 1] == '\r') {
+            to--;
+        }
+        List<String> ret = new ArrayList<String>();
+        ByteArrayOutputStream cell = new ByteArrayOutputStream();
+        boolean quoted = false;
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            if (b == '"') {
+                if (quoted && i + 1 < to && bytes[i + 1] == '"') {
+                    cell.write(b);
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (b == delimiter && !quoted) {
+                ret.add(new String(cell.toByteArray(), UTF8));
+                cell.reset();
+            } else {
+                cell.write(b);
+            }
+        }
+        ret.add(new String(cell.toByteArray(), UTF8));
+        return ret;
+    }
+
+    /**
+     * Parses a single cell. Missing values ("?", empty) and any spelling of NaN are read as Double.NaN.
+     * Decimal values with up to 2^53 as mantissa and a power of ten up to 22 are computed exactly with
+     * a single multiplication or division; anything else falls back to Double.parseDouble.
+     */
+    static final class CellParser {
+        double value;
+        // True if the cell had no fractional part or exponent (i.e. "23" instead of "23.0")
+        boolean integral;
+
+        boolean parse(byte[] bytes, int from, int to) {
+            // Trim whitespace and quotes
+            while (from < to && (bytes[from] & 0xff) <= ' ') {
+                from++;
+            }
+            while (to > from && (bytes[to - 1] & 0xff) <= ' ') {
+                to--;
+            }
+            if (to - from >= 2 && bytes[from] == '"' && bytes[to - 1] == '"') {
+                from++;
+                to--;
+                while (from < to && (bytes[from] & 0xff) <= ' ') {
+                    from++;
+                }
+                while (to > from && (bytes[to - 1] & 0xff) <= ' ') {
+                    to--;
+                }
+            }
+
+            integral = false;
+            int length = to - from;
+            if (length == 0 || (length == 1 && bytes[from] == '?') || (length == 3 && isNaN(bytes, from))) {
+                value = Double.NaN;
+                return true;
+            }
+
+            int i = from;
+            boolean negative = false;
+            if (bytes[i] == '-' || bytes[i] == '+') {
+                negative = bytes[i] == '-';
+                i++;
+            }
+
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean sawDigit = false;
+            boolean sawDot = false;
+            boolean sawExponent = false;
+            boolean truncated = false;
+            for (; i < to; i++) {
+                int b = bytes[i];
+                if (b >= '0' && b <= '9') {
+                    sawDigit = true;
+                    int d = b - '0';
+                    if (mantissa == 0 && d == 0) {
+                        if (sawDot) {
+                            exponent--;
+                        }
+                    } else if (digits < 19) {
+                        mantissa = mantissa * 10 + d;
+                        digits++;
+                        if (sawDot) {
+                            exponent--;
+                        }
+                    } else {
+                        truncated = true;
+                        if (!sawDot) {
+                            exponent++;
+                        }
+                    }
+                } else if (b == '.' && !sawDot) {
+                    sawDot = true;
+                } else if ((b == 'e' || b == 'E') && sawDigit) {
+                    sawExponent = true;
+                    i++;
+                    break;
+                } else {
+                    return fallback(bytes, from, to);
+                }
+            }
+
+            if (!sawDigit) {
+                return fallback(bytes, from, to);
+            }
+
+            if (sawExponent) {
+                boolean negativeExponent = false;
+                if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+                    negativeExponent = bytes[i] == '-';
+                    i++;
+                }
+                if (i == to) {
+                    return fallback(bytes, from, to);
+                }
+                int exp = 0;
+                for (; i < to; i++) {
+                    int b = bytes[i];
+                    if (b < '0' || b > '9') {
+                        return fallback(bytes, from, to);
+                    }
+                    if (exp < 100000) {
+                        exp = exp * 10 + (b - '0');
+                    }
+                }
+                exponent += negativeExponent ? -exp : exp;
+            }
+
+            integral = !sawDot && !sawExponent;
+            if (truncated || mantissa > (1L << 53) || exponent < -22 || exponent > 22) {
+                boolean wasIntegral = integral;
+                boolean ret = fallback(bytes, from, to);
+                integral = wasIntegral;
+                return ret;
+            }
+
+            double result = (double) mantissa;
+            if (exponent >= 0) {
+                result *= POW10[exponent];
+            } else {
+                result /= POW10[-exponent];
+            }
+            value = negative ? -result : result;
+            return true;
+        }
+
+        private static boolean isNaN(byte[] bytes, int from) {
+            return (bytes[from] | 0x20) == 'n' && (bytes[from + 1] | 0x20) == 'a' && (bytes[from + 2] | 0x20) == 'n';
+        }
+
+        private boolean fallback(byte[] bytes, int from, int to) {
+            integral = false;
+            try {
+                value = Double.parseDouble(new String(bytes, from, to - from, UTF8));
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.error("Error while closing CSV file.", e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import java.util.BitSet;
+
+/**
+ * Values of a single DataSet metric.
+ * Columns are never modified once built, so they can be shared between DataSets.
+ */
+abstract class Column {
+
+    abstract double get(int row);
+
+    abstract int size();
+
+    /**
+     * True if the cell was read from a value with no fractional part (i.e. "23" instead of "23.0").
+     */
+    abstract boolean isIntegral(int row);
+
+    /**
+     * Formats a cell the way it is written to CSV: integral values read as such keep their original
+     * representation, everything else uses Double.toString.
+     */
+    String format(int row) {
+        double value = get(row);
+        if (isIntegral(row) && value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * Copies all the values of this column into dest, starting at offset.
+     */
+    void copyTo(double[] dest, int offset) {
+        for (int i = 0; i < size(); i++) {
+            dest[offset + i] = get(i);
+        }
+    }
+
+    /**
+     * View of the given rows of this column. No values are copied.
+     */
+    Column select(int[] rows) {
+        return new SelectedColumn(this, rows);
+    }
+
+    /**
+     * Materializes this column into a new array-backed column.
+     */
+    Column copy() {
+        double[] values = new double[size()];
+        copyTo(values, 0);
+        BitSet integral = new BitSet();
+        for (int i = 0; i < values.length; i++) {
+            if (isIntegral(i)) {
+                integral.set(i);
+            }
+        }
+        return new ArrayColumn(values, integral);
+    }
+}
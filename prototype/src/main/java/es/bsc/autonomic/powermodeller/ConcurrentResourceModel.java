@@ -0,0 +1,123 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.exceptions.ResourceModelException;
+import es.bsc.autonomic.powermodeller.tools.classifiers.BatchPredictor;
+import org.apache.log4j.Logger;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Utils;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thread-safe view of a ResourceModel, obtained with ResourceModel.concurrent().
+ *
+ * Every method can be called from any number of threads at once and gives exactly the same result as the
+ * same method of the ResourceModel. The compiled state of the model (column positions, new metric
+ * expressions, flattened classifiers) is only read and is shared by all threads. Weka classifiers keep
+ * state while classifying, so each thread gets its own copy of the classifier the first time it uses this
+ * view, together with its own scratch buffers. Nothing is written to CoreConfiguration nor to disk.
+ *
+ * The ResourceModel must not be used directly while it is shared through this view.
+ */
+public final class ConcurrentResourceModel {
+
+    final static Logger logger = Logger.getLogger(ConcurrentResourceModel.class);
+
+    private final ResourceModel model;
+    private final Classifier classifier;
+    private final BatchPredictor batchPredictor;
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * State owned by a single thread.
+     */
+    private final class Scratch {
+        final Classifier classifier;
+        final BatchPredictor batchPredictor;
+        final double[] inputs;
+        final double[] registers;
+        final double[] derived;
+        final double[] values;
+        final Instance instance;
+
+        Scratch() {
+            try {
+                classifier = AbstractClassifier.makeCopy(ConcurrentResourceModel.this.classifier);
+            } catch (Exception e) {
+                logger.error("Error while copying classifier", e);
+                throw new ResourceModelException("Error while copying classifier", e);
+            }
+            batchPredictor = ConcurrentResourceModel.this.batchPredictor.copy(classifier);
+            inputs = new double[model.getInputHeader().size()];
+            registers = new double[model.getOperationCount()];
+            derived = new double[model.getDerivedCount()];
+            values = new double[model.getAttributeCount()];
+            // The instance keeps a reference to values, so they are written there directly
+            instance = new DenseInstance(1.0, values);
+            instance.setDataset(model.newHeader());
+        }
+    }
+
+    ConcurrentResourceModel(ResourceModel model) {
+        this.model = model;
+        this.classifier = model.getClassifier();
+        this.batchPredictor = model.getBatchPredictor();
+    }
+
+    public List<String> getInputHeader() {
+        return model.getInputHeader();
+    }
+
+    /**
+     * Same as ResourceModel.predict(double[]).
+     */
+    public double predict(double[] rawMetrics) {
+        Scratch s = scratch.get();
+        model.fillInstance(rawMetrics, s.registers, s.derived, s.values);
+        return s.batchPredictor.predict(s.values, s.instance);
+    }
+
+    /**
+     * Same as ResourceModel.predict(Map).
+     */
+    public double predict(Map<String, Double> rawMetrics) {
+        Scratch s = scratch.get();
+        List<String> header = model.getInputHeader();
+        for (int i = 0; i < s.inputs.length; i++) {
+            Double value = rawMetrics.get(header.get(i));
+            s.inputs[i] = value != null ? value : Utils.missingValue();
+        }
+        model.fillInstance(s.inputs, s.registers, s.derived, s.values);
+        return s.batchPredictor.predict(s.values, s.instance);
+    }
+
+    /**
+     * Same as ResourceModel.predict(double[][], int).
+     */
+    public double[] predict(double[][] rawColumns, int rows) {
+        return scratch.get().batchPredictor.predict(model.assembleColumns(rawColumns, rows), rows);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import java.util.Arrays;
+
+/**
+ * Column whose cells all have the same value, such as the idle power. Only the value is stored.
+ */
+class ConstantColumn extends Column {
+
+    private final double value;
+    private final int size;
+
+    ConstantColumn(double value, int size) {
+        this.value = value;
+        this.size = size;
+    }
+
+    double getValue() {
+        return value;
+    }
+
+    @Override
+    double get(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of a column of " + size + " rows");
+        }
+        return value;
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    boolean isIntegral(int row) {
+        return false;
+    }
+
+    @Override
+    void copyTo(double[] dest, int offset) {
+        Arrays.fill(dest, offset, offset + size, value);
+    }
+
+    @Override
+    Column select(int[] rows) {
+        return new ConstantColumn(value, rows.length);
+    }
+
+    /**
+     * Constant columns are never modified, so they are shared instead of copied.
+     */
+    @Override
+    Column copy() {
+        return this;
+    }
+}
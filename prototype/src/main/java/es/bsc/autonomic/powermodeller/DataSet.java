@@ -13,11 +13,8 @@
 
 package es.bsc.autonomic.powermodeller;
 
-import au.com.bytecode.opencsv.CSVReader;
-import au.com.bytecode.opencsv.CSVWriter;
 import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
 import es.bsc.autonomic.powermodeller.exceptions.DataSetException;
-import es.bsc.autonomic.powermodeller.exceptions.RemoveInvalidFilterException;
 import es.bsc.autonomic.powermodeller.tools.filters.FilterTool;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
@@ -26,73 +23,84 @@ import java.io.*;
 import java.util.*;
 
 /**
- * Reads a CSV
- * Captures the metrics
+ * Set of metric samples kept in memory as one primitive column per metric.
+ * DataSets are loaded from CSV files or from the binary format written by save(). CSV is only
+ * written when the DataSet is exported or handed to an external tool through getFilePath().
+ *
+ * Columns are immutable and shared: order(), replaceCol(), getSubSample() and the rest of the
+ * operations return views over the columns of this DataSet instead of copying them. Use copy()
+ * to get a DataSet that does not hold on to the storage of its parent.
+ *
+ * Temporal files owned by a DataSet (its CSV export, or its source file when opened with delete set)
+ * are deleted through TempStorage when the DataSet is closed or is no longer reachable.
  */
-public class DataSet {
+public class DataSet implements Closeable {
     private List<String> header;
-    private int size;
+    // Position of each column name in the header (first occurrence)
+    private Map<String, Integer> headerIndex;
+    // Loaded on first access for DataSets read from a file
+    private volatile List<Column> columns;
+    private volatile int size = -1;
+    private String sourcePath;
     private String filePath;
-    private boolean delete = true;
+    // References to the temporal files owned by this DataSet
+    private List<Closeable> ownedFiles = new ArrayList<Closeable>();
     private String independent = CoreConfiguration.INDEPENDENT;
     final static Logger logger = Logger.getLogger(DataSet.class);
 
 
+    /**
+     * Opens a CSV or binary DataSet file. Only the header is read here: the number of samples is
+     * counted and the values are parsed the first time they are needed.
+     */
     public DataSet(String filePath) {
-        this.filePath=filePath;
-        //removeInvalidInstances(filePath);
-        CSVReader reader = null;
-        try{
-            reader = new CSVReader(new FileReader(filePath), CoreConfiguration.CSV_DELIMITER);
-            String[] headerArray = reader.readNext();
-            header = new ArrayList<String>(Arrays.asList(headerArray));
-            size = reader.readAll().size();
-        } catch (IOException e) {
-            logger.error("Error while reading CSV file.", e);
-            throw new DataSetException("Error while reading CSV file.");
-        } finally {
-            try {
-                reader.close();
-            } catch (IOException e) {
-                logger.error("Error while closing CSV file.", e);
-                throw new DataSetException("Error while closing CSV file.");
+        DataSetReader reader = new DataSetReader(filePath);
+        try {
+            setHeader(reader.getHeader());
+            this.sourcePath = filePath;
+            if (reader.isBinary()) {
+                this.size = reader.countRows();
+            } else if (!DataSetReader.changesOnRead(filePath)) {
+                // Otherwise getFilePath() exports the values read, not those of the file
+                this.filePath = filePath;
             }
+        } finally {
+            reader.close();
         }
     }
 
-    private void removeInvalidInstances(String filePath) {
-        File inputFile = new File(filePath);
-        File tempFile = new File(CoreConfiguration.getNewCSVFileName());
-        boolean successful = false;
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-            BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
-
-            String currentLine;
-            while ((currentLine = reader.readLine()) != null) {
-                // trim newline when comparing with lineToRemove
-                String trimmedLine = currentLine.trim();
-                if (trimmedLine.contains("?") || trimmedLine.toLowerCase().contains("nan")) {
-                    logger.debug("Removing invalid instance: " + trimmedLine);
-                    continue;
+    List<Column> columns() {
+        List<Column> ret = columns;
+        if (ret == null) {
+            synchronized (this) {
+                ret = columns;
+                if (ret == null) {
+                    DataSetReader reader = new DataSetReader(sourcePath);
+                    try {
+                        ret = reader.next(Integer.MAX_VALUE);
+                        if (ret == null) {
+                            ret = emptyColumns(header.size());
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                    size = ret.isEmpty() ? 0 : ret.get(0).size();
+                    columns = ret;
                 }
-                writer.write(currentLine + System.getProperty("line.separator"));
             }
-            writer.close();
-            reader.close();
-            successful = tempFile.renameTo(inputFile);
-        } catch(IOException e) {
-            successful = false;
-        }
-
-        if(!successful) {
-            throw new RemoveInvalidFilterException("Error while filtering DataSet in " + filePath);
         }
+        return ret;
     }
 
+    /**
+     * Opens a DataSet file. If delete is set the DataSet takes ownership of the file, which is deleted once
+     * the DataSet is closed or no longer reachable.
+     */
     public DataSet(String filePath, boolean delete) {
         this(filePath);
-        this.delete = delete;
+        if (delete) {
+            ownedFiles.add(TempStorage.track(this, TempStorage.adopt(filePath)));
+        }
     }
 
 
@@ -114,59 +122,102 @@ public class DataSet {
         initializeDataSetFromLists(valueLists, header);
     }
 
-    private void initializeDataSetFromLists(List<List<Double>> valueLists, List<String> header) {
-        //Check that all columns have the same size
-        int sizeTemp = valueLists.get(0).size();
-        for( List<Double> list : valueLists ) {
-            if( sizeTemp != list.size()) {
-                logger.error("Columns must have the same size to create a new DataSet. Expected: " + sizeTemp + " Found: " + list.size());
-                throw new DataSetException("Columns must have the same size to create a new DataSet. Expected: " + sizeTemp + " Found: " + list.size());
+    /**
+     * Builds a DataSet from primitive columns. Arrays are used as they are, not copied.
+     */
+    public DataSet(double[][] values, List<String> header) {
+        this(values, header, false);
+    }
+
+    /**
+     * Same as DataSet(double[][], List) but, if compactIntegers is set, cells with no fractional part are
+     * written without decimals ("23" instead of "23.0"), the way Weka writes them.
+     */
+    public DataSet(double[][] values, List<String> header, boolean compactIntegers) {
+        List<Column> columns = new ArrayList<Column>(values.length);
+        for( double[] column : values ) {
+            BitSet integral = null;
+            if (compactIntegers) {
+                integral = new BitSet(column.length);
+                for (int i = 0; i < column.length; i++) {
+                    if (column[i] == Math.rint(column[i])) {
+                        integral.set(i);
+                    }
+                }
             }
+            columns.add(new ArrayColumn(column, integral));
         }
+        initializeDataSetFromColumns(header, columns);
+    }
 
-        CSVWriter writer = null;
-        String filePath = null;
-        try{
-            filePath = CoreConfiguration.getNewCSVFileName();
-            writer = new CSVWriter(new FileWriter(filePath), CoreConfiguration.CSV_DELIMITER, CSVWriter.NO_QUOTE_CHARACTER);
-            writer.writeNext(header.toArray(new String[0]));
+    private DataSet() {
+    }
 
-            //Implementation 1
-            for(int i = 0; i < sizeTemp; i++) {
-                List<String> recordTemp = new ArrayList<String>();
-                for( List<Double> list : valueLists ) {
-                    recordTemp.add(Double.toString(list.get(i)));
-                }
-                writer.writeNext(recordTemp.toArray(new String[0]));
-            }
-            //
-
-            /*//Implementation 2
-            int headerSize = header.size();
-            List<String[]> records = new ArrayList<String[]>();
-            for(int i = 0; i < sizeTemp; i++) {
-                String[] recordTemp = new String[headerSize];
-                for( int j = 0; j < headerSize; j++ ) {
-                    recordTemp[j] = Double.toString(valueLists.get(j).get(i));
-                }
-                records.add(recordTemp);
-            }
-            writer.writeAll(records);*/
+    static DataSet fromColumns(List<String> header, List<Column> columns) {
+        DataSet ret = new DataSet();
+        ret.initializeDataSetFromColumns(header, columns);
+        return ret;
+    }
 
+    private void initializeDataSetFromLists(List<List<Double>> valueLists, List<String> header) {
+        List<Column> columns = new ArrayList<Column>(valueLists.size());
+        for( List<Double> list : valueLists ) {
+            columns.add(ArrayColumn.fromList(list));
+        }
+        initializeDataSetFromColumns(header, columns);
+    }
 
-            //Implementation 3
-            /*int headerSize = header.size();
-            String records[][] = new String[sizeTemp][headerSize];
-            for( int j = 0; j < headerSize; j++ ) {
-                for(int i = 0; i < sizeTemp; i++) {
-                    records[i][j] = Double.toString(valueLists.get(j).get(i));
-                }
+    private void initializeDataSetFromColumns(List<String> header, List<Column> columns) {
+        //Check that all columns have the same size
+        int sizeTemp = columns.get(0).size();
+        for( Column column : columns ) {
+            if( sizeTemp != column.size()) {
+                logger.error("Columns must have the same size to create a new DataSet. Expected: " + sizeTemp + " Found: " + column.size());
+                throw new DataSetException("Columns must have the same size to create a new DataSet. Expected: " + sizeTemp + " Found: " + column.size());
             }
-            for(int i = 0; i < sizeTemp; i++) {
-                writer.writeNext(records[i]);
-            }*/
+        }
+
+        this.size = sizeTemp;
+        setHeader(header);
+        this.columns = columns;
+    }
+
+    private void setHeader(List<String> header) {
+        Map<String, Integer> index = new HashMap<String, Integer>(header.size() * 2);
+        for (int j = header.size() - 1; j >= 0; j--) {
+            index.put(header.get(j), j);
+        }
+        this.header = Collections.unmodifiableList(new ArrayList<String>(header));
+        this.headerIndex = Collections.unmodifiableMap(index);
+    }
 
+    private static List<Column> emptyColumns(int numColumns) {
+        List<Column> ret = new ArrayList<Column>(numColumns);
+        for (int j = 0; j < numColumns; j++) {
+            ret.add(new ArrayColumn(new double[0]));
+        }
+        return ret;
+    }
 
+    /**
+     * Writes this DataSet to a CSV file.
+     */
+    public void exportCSV(String filePath) {
+        try {
+            exportCSV(new BufferedWriter(new FileWriter(filePath)));
+        } catch (IOException e) {
+            logger.error("Error while writing CSV file.", e);
+            throw new DataSetException("Error while writing CSV file.");
+        }
+    }
+
+    /**
+     * Writes this DataSet as CSV and closes the writer.
+     */
+    private void exportCSV(Writer writer) {
+        try {
+            writeCSVHeader(writer, header);
+            writeCSVRows(writer);
         } catch (IOException e) {
             logger.error("Error while writing CSV file.", e);
             throw new DataSetException("Error while writing CSV file.");
@@ -178,57 +229,141 @@ public class DataSet {
                 throw new DataSetException("Error while closing CSV file.");
             }
         }
+    }
 
-        this.filePath=filePath;
-        this.size = sizeTemp;
-        this.header = header;
+    private static void writeCSVHeader(Writer writer, List<String> header) throws IOException {
+        writer.write(StringUtils.join(header, CoreConfiguration.CSV_DELIMITER));
+        writer.write('\n');
+    }
+
+    private void writeCSVRows(Writer writer) throws IOException {
+        List<Column> columns = columns();
+        int size = getSize();
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < columns.size(); j++) {
+                if (j > 0) {
+                    writer.write(CoreConfiguration.CSV_DELIMITER);
+                }
+                writer.write(columns.get(j).format(i));
+            }
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Saves this DataSet in binary format.
+     */
+    public void save(String filePath) {
+        DataSetFile.write(filePath, header, columns(), getSize());
+    }
+
+    /**
+     * Saves this DataSet in binary format to a new file in the temporal directory.
+     * @return Path of the new file.
+     */
+    public String save() {
+        TempStorage.TempFile file = TempStorage.newFile(".pmds");
+        try {
+            file.reserve(DataSetFile.fileSize(header, getSize()));
+            save(file.getPath());
+            file.written();
+        } catch (RuntimeException e) {
+            file.close();
+            throw e;
+        }
+        return file.getPath();
     }
 
     public void setIndependent(String independent) {
-        if(this.getHeader().contains(independent)) {
+        if(headerIndex.containsKey(independent)) {
             this.independent = independent;
         } else {
             throw new DataSetException("Independent variable " + independent + " does not exist in this dataset.");
         }
     }
 
+    public boolean hasIndependent() {
+        return headerIndex.containsKey(independent);
+    }
+
     public String getIndependent() {
-        if(this.getHeader().contains(independent)) {
+        if(headerIndex.containsKey(independent)) {
             return independent;
         } else {
             throw new DataSetException("Independent variable " + independent + " does not exist in this dataset.");
         }
     }
 
-    public String getFilePath() {
+    /**
+     * Path of a CSV file holding this DataSet, meant for external tools (Weka, R). DataSets built in
+     * memory, loaded from a binary file or from a CSV file whose invalid values were filled or removed are
+     * exported to the temporal directory the first time this method is called. The exported file is deleted with this DataSet, so keep a reference to it while
+     * the file is in use.
+     */
+    public synchronized String getFilePath() {
+        if (filePath == null) {
+            TempStorage.TempFile file = TempStorage.newFile(".csv");
+            try {
+                exportCSV(file.openWriter());
+                file.written();
+            } catch (IOException e) {
+                file.close();
+                logger.error("Error while writing CSV file.", e);
+                throw new DataSetException("Error while writing CSV file.");
+            } catch (RuntimeException e) {
+                file.close();
+                throw e;
+            }
+            ownedFiles.add(TempStorage.track(this, file));
+            filePath = file.getPath();
+        }
         return filePath;
     }
 
+    /**
+     * Releases the temporal files owned by this DataSet right away instead of waiting for it to become
+     * unreachable. Views obtained from this DataSet remain valid, but the DataSet itself must not be used
+     * after it is closed.
+     */
+    @Override
+    public synchronized void close() {
+        for (Closeable ownedFile : ownedFiles) {
+            try {
+                ownedFile.close();
+            } catch (IOException e) {
+                logger.warn("Error while releasing temporal file.", e);
+            }
+        }
+        ownedFiles.clear();
+    }
+
+    /**
+     * True if every one of the given column names is in this DataSet.
+     */
+    public boolean containsColumns(Collection<String> colNames) {
+        return headerIndex.keySet().containsAll(colNames);
+    }
+
     public int getMetricIndex(String metricName) {
-        return header.indexOf(metricName);
+        Integer index = headerIndex.get(metricName);
+        return index != null ? index : -1;
     }
 
     @Override
     public String toString() {
-        String ret = "";
-        CSVReader reader = null;
-        try {
-            reader = new CSVReader(new FileReader(filePath), CoreConfiguration.CSV_DELIMITER);
-            for(String record[] : reader.readAll()) {
-                ret += StringUtils.join(record, ',') + "\n";
-            }
-        } catch (IOException e) {
-            logger.error("Error while reading CSV file.", e);
-            throw new DataSetException("Error while reading CSV file.");
-        } finally {
-            try {
-                reader.close();
-            } catch (IOException e) {
-                logger.error("Error while closing CSV file.", e);
-                throw new DataSetException("Error while closing CSV file.");
+        StringBuilder ret = new StringBuilder(getHeaderString()).append('\n');
+        List<Column> columns = columns();
+        int size = getSize();
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < columns.size(); j++) {
+                if (j > 0) {
+                    ret.append(',');
+                }
+                ret.append(columns.get(j).format(i));
             }
+            ret.append('\n');
         }
-        return ret;
+        return ret.toString();
     }
 
     public String getHeaderString() {
@@ -238,38 +373,49 @@ public class DataSet {
     public List<String> getHeader() { return header; }
 
     public int getSize() {
-        return size;
-    }
-
-    private List<String[]> getContents() {
-        List<String[]> ret = null;
-        CSVReader reader = null;
-        try {
-            reader = new CSVReader(new FileReader(filePath), CoreConfiguration.CSV_DELIMITER, CSVReader.DEFAULT_ESCAPE_CHARACTER, 1);
-            ret = reader.readAll();
-        } catch (IOException e) {
-            logger.error("Error while reading CSV file.", e);
-            throw new DataSetException("Error while reading CSV file.");
-        } finally {
-            try {
-                reader.close();
-            } catch (IOException e) {
-                logger.error("Error while closing CSV file.", e);
-                throw new DataSetException("Error while closing CSV file.");
+        int ret = size;
+        if (ret < 0) {
+            synchronized (this) {
+                ret = size;
+                if (ret < 0 && DataSetReader.changesOnRead(sourcePath)) {
+                    // Counting would parse the whole file, so the columns are loaded and kept instead
+                    columns();
+                    ret = size;
+                } else if (ret < 0) {
+                    DataSetReader reader = new DataSetReader(sourcePath);
+                    try {
+                        ret = reader.countRows();
+                    } finally {
+                        reader.close();
+                    }
+                    size = ret;
+                }
             }
         }
         return ret;
     }
 
+    private Column getColumn(String colName) {
+        return columns().get(getColumnIndex(colName));
+    }
+
+    private int getColumnIndex(String colName) {
+        Integer index = headerIndex.get(colName);
+        if( index == null ) {
+            throw new DataSetException("Specified column '" + colName + "' does not exist in the DataSet.");
+        }
+        return index;
+    }
+
 
     public static DataSet join(List<DataSet> datasets) {
 
-        //Check headers are equal before merging. Merge file contents in memory
+        //Check headers are equal before merging.
         String headerStr = datasets.get(0).getHeaderString();
-        List<String[]> contents = new LinkedList<String[]>();
+        int totalSize = 0;
         for(DataSet ds : datasets) {
             if(headerStr.equalsIgnoreCase(ds.getHeaderString())) {
-                contents.addAll(ds.getContents());
+                totalSize += ds.getSize();
             } else {
                 logger.error("Could not add DataSets with different attribute names/size:");
                 logger.error("DataSet 1: " + headerStr);
@@ -278,92 +424,50 @@ public class DataSet {
             }
         }
 
-        CSVWriter writer = null;
-        String filePath = null;
-        try{
-            filePath = CoreConfiguration.getNewCSVFileName();
-            writer = new CSVWriter(new FileWriter(filePath), CoreConfiguration.CSV_DELIMITER, CSVWriter.NO_QUOTE_CHARACTER);
-            writer.writeNext(datasets.get(0).getHeader().toArray(new String[0]));
-            writer.writeAll(contents);
-        } catch (IOException e) {
-            logger.error("Error while reading CSV file.", e);
-            throw new DataSetException("Error while reading CSV file.");
-        } finally {
-            try {
-                writer.close();
-            } catch (IOException e) {
-                logger.error("Error while closing CSV file.", e);
-                throw new DataSetException("Error while closing CSV file.");
+        List<String> header = datasets.get(0).getHeader();
+        List<Column> columns = new ArrayList<Column>(header.size());
+        for(int j = 0; j < header.size(); j++) {
+            double[] values = new double[totalSize];
+            BitSet integral = new BitSet();
+            int offset = 0;
+            for(DataSet ds : datasets) {
+                Column column = ds.columns().get(j);
+                column.copyTo(values, offset);
+                for (int i = 0; i < ds.getSize(); i++) {
+                    if (column.isIntegral(i)) {
+                        integral.set(offset + i);
+                    }
+                }
+                offset += ds.getSize();
             }
+            columns.add(new ArrayColumn(values, integral));
         }
 
-        return new DataSet(filePath);
+        return DataSet.fromColumns(header, columns);
     }
 
 
     public DataSet replaceCol(String colName, String newColName, List<Double> newValues) {
 
-        if( size != newValues.size() ) {
+        if( getSize() != newValues.size() ) {
             throw new DataSetException("Can not swap columns between DataSet and array of different number of samples.");
         }
 
-        if( !header.contains(colName)) {
-            throw new DataSetException("Specified column '" + colName + "' does not exist in the DataSet.");
-        }
-
-        //Read current contents of file
-        CSVReader reader = null;
-        List<String[]> contents = null;
-        try {
-            reader = new CSVReader(new FileReader(filePath), CoreConfiguration.CSV_DELIMITER, CSVReader.DEFAULT_ESCAPE_CHARACTER, 1);
-            contents = reader.readAll();
-        } catch (IOException e) {
-            logger.error("Error while reading CSV file.", e);
-            throw new DataSetException("Error while reading CSV file.");
-        } finally {
-            try {
-                reader.close();
-            } catch (IOException e) {
-                logger.error("Error while closing CSV file.", e);
-                throw new DataSetException("Error while closing CSV file.");
-            }
-        }
-
-        //Modify array with new column name
-        int colIndex = header.indexOf(colName);
+        return replaceColumn(colName, newColName, ArrayColumn.fromList(newValues));
+    }
 
-        //Write new contents to file while modifying specified column
-        CSVWriter writer = null;
-        String filePath = null;
-        try{
-            filePath = CoreConfiguration.getNewCSVFileName();
-            writer = new CSVWriter(new FileWriter(filePath), CoreConfiguration.CSV_DELIMITER, CSVWriter.NO_QUOTE_CHARACTER);
+    private DataSet replaceColumn(String colName, String newColName, Column newColumn) {
 
-            List<String> newHeader = new ArrayList<String>(header);
-            newHeader.set(colIndex, newColName);
+        int colIndex = getColumnIndex(colName);
 
-            //Write new header
-            writer.writeNext(newHeader.toArray(new String[0]));
+        List<String> newHeader = new ArrayList<String>(header);
+        newHeader.set(colIndex, newColName);
 
-            //Write new contents
-            for(int i = 0; i < size; i++) {
-                List<String> modifiedRecord = new ArrayList<String>(Arrays.asList(contents.get(i)));
-                modifiedRecord.set(colIndex, newValues.get(i).toString());
-                writer.writeNext(modifiedRecord.toArray(new String[0]));
-            }
-        } catch (IOException e) {
-            logger.error("Error while reading CSV file.", e);
-            throw new DataSetException("Error while reading CSV file.");
-        } finally {
-            try {
-                writer.close();
-            } catch (IOException e) {
-                logger.error("Error while closing CSV file.", e);
-                throw new DataSetException("Error while closing CSV file.");
-            }
-        }
+        //Only the replaced column is new, the rest are shared with this DataSet
+        List<Column> newColumns = new ArrayList<Column>(columns());
+        newColumns.set(colIndex, newColumn);
 
-        DataSet ret = new DataSet(filePath);
+        DataSet ret = DataSet.fromColumns(newHeader, newColumns);
         if(colName.equalsIgnoreCase(this.getIndependent())) {
             ret.setIndependent(newColName);
             logger.debug("Changing independent variable column from " + colName + " to " + newColName);
@@ -371,63 +475,82 @@ public class DataSet {
         return ret;
     }
 
-    public List<Double> getCol(String colName) {
+    /**
+     * Adds a column with the same value in every sample, such as the idle power added to the estimations.
+     * Only the value is stored, not a copy per sample.
+     */
+    public DataSet addConstantColumn(String colName, double value) {
 
-        if( !header.contains(colName)) {
-            throw new DataSetException("Specified column '" + colName + "' does not exist in the DataSet.");
+        if( headerIndex.containsKey(colName) ) {
+            logger.error("Column '" + colName + "' already exists in the DataSet.");
+            throw new DataSetException("Column '" + colName + "' already exists in the DataSet.");
         }
-        int colIndex = header.indexOf(colName);
-        //Read current contents of file
-        CSVReader reader = null;
-        List<Double> ret = new ArrayList<Double>();
-        String [] nextLine = null;
-        try {
-            reader = new CSVReader(new FileReader(filePath), CoreConfiguration.CSV_DELIMITER, CSVReader.DEFAULT_ESCAPE_CHARACTER, 1);
 
-            while ((nextLine = reader.readNext()) != null) {
-                ret.add(Double.parseDouble(nextLine[colIndex]));
-            }
-        } catch (java.lang.NumberFormatException ex){
-            logger.error("Incompatible value for metric: " + colName + ". Record value was: " + Arrays.toString(nextLine));
-            throw new DataSetException("Incompatible value for metric: " + colName + ". Record value was: " + Arrays.toString(nextLine));
-        }
-        catch (IOException e) {
-            logger.error("Error while reading CSV file.", e);
-            throw new DataSetException("Error while reading CSV file.");
-        } finally {
-            try {
-                reader.close();
-            } catch (IOException e) {
-                logger.error("Error while closing CSV file.", e);
-                throw new DataSetException("Error while closing CSV file.");
-            }
+        List<String> newHeader = new ArrayList<String>(header);
+        newHeader.add(colName);
+        List<Column> newColumns = new ArrayList<Column>(columns());
+        newColumns.add(new ConstantColumn(value, getSize()));
+
+        DataSet ret = DataSet.fromColumns(newHeader, newColumns);
+        ret.independent = independent;
+        return ret;
+    }
+
+    public List<Double> getCol(String colName) {
+
+        Column column = getColumn(colName);
+        int size = getSize();
+        List<Double> ret = new ArrayList<Double>(size);
+        for (int i = 0; i < size; i++) {
+            ret.add(column.get(i));
         }
+        return ret;
+    }
+
+
+    /**
+     * Values of several columns at once, one primitive array per requested column and in the same
+     * order. Column names are resolved once and each column is traversed a single time.
+     */
+    public double[][] getCols(List<String> colNames) {
 
+        double[][] ret = new double[colNames.size()][];
+        int k = 0;
+        for (String colName : colNames) {
+            ret[k] = new double[getSize()];
+            getColumn(colName).copyTo(ret[k], 0);
+            k++;
+        }
         return ret;
     }
 
 
+    /**
+     * Subtracts a value from every sample of a column. The new column is a view of the original one, no
+     * values are copied.
+     */
     public DataSet substractFromColumn(String colName, String newColName, double value) {
-        List<Double> newCol = new LinkedList<Double>();
-        for(int i= 0; i < size; i++) {
-            newCol.add(value);
-        }
+        Column originalColumn = this.getColumn(colName);
+        Column newColumn = originalColumn instanceof ConstantColumn
+                ? new ConstantColumn(((ConstantColumn) originalColumn).getValue() - value, getSize())
+                : new ShiftedColumn(originalColumn, value);
 
-        return this.substractFromColumn(colName, newColName, newCol);
+        return this.replaceColumn(colName, newColName, newColumn);
     }
 
     public DataSet substractFromColumn(String colName, String newColName, List<Double> substractingColumn) {
 
-        List<Double> originalColumn = this.getCol(colName);
+        Column originalColumn = this.getColumn(colName);
 
-        if(substractingColumn.size() != size) {
+        if(substractingColumn.size() != getSize()) {
             logger.error("Columns must be of the same size to be substracted one from another.");
             throw new DataSetException("Columns must be of the same size to be substracted one from another.");
         }
 
-        List<Double> newCol = new LinkedList<Double>();
-        for(int i= 0; i < size; i++) {
-            newCol.add(originalColumn.get(i) - substractingColumn.get(i));
+        List<Double> newCol = new ArrayList<Double>(getSize());
+        int i = 0;
+        for(Double substracting : substractingColumn) {
+            newCol.add(originalColumn.get(i++) - substracting);
         }
 
         return this.replaceCol(colName, newColName, newCol);
@@ -435,35 +558,54 @@ public class DataSet {
 
     public DataSet addColumns(String newColName, List<String> colNames) {
 
-        if( ! header.containsAll(colNames)) {
+        if( ! headerIndex.keySet().containsAll(colNames)) {
             logger.error("Not all the columns to be added belonged to this DataSet.");
             throw new DataSetException("Not all the columns to be added belonged to this DataSet.");
         }
 
-        List<String> newColumns = new ArrayList<String>(header);
-        newColumns.removeAll(colNames);
+        Set<String> addedColumns = new HashSet<String>(colNames);
+        List<String> newColumns = new ArrayList<String>(header.size());
+        for(String column : header) {
+            if(!addedColumns.contains(column)) {
+                newColumns.add(column);
+            }
+        }
 
-        List<Double> sumatoryColumn = new ArrayList<Double>();
-        if(colNames.size() > 0) {
-            sumatoryColumn = getCol(colNames.get(0));
-            if(colNames.size() > 1) {
-                for(int i = 1; i < colNames.size(); i++) {
-                    List<Double> addingColumn = getCol(colNames.get(i));
-                    for(int j = 0; j < sumatoryColumn.size(); j++) {
-                        sumatoryColumn.set(j, sumatoryColumn.get(j) + addingColumn.get(j));
+        // Constant columns are added as a single value. The sum is only stored per sample once a
+        // non constant column is found, keeping the order of the additions
+        double constant = 0;
+        double[] sumatory = null;
+        for(String colName : colNames) {
+            Column addingColumn = getColumn(colName);
+            if(addingColumn instanceof ConstantColumn) {
+                double value = ((ConstantColumn) addingColumn).getValue();
+                if(sumatory == null) {
+                    constant += value;
+                } else {
+                    for(int j = 0; j < sumatory.length; j++) {
+                        sumatory[j] += value;
                     }
                 }
+            } else {
+                if(sumatory == null) {
+                    sumatory = new double[getSize()];
+                    Arrays.fill(sumatory, constant);
+                }
+                for(int j = 0; j < sumatory.length; j++) {
+                    sumatory[j] += addingColumn.get(j);
+                }
             }
         }
+        Column sumatoryColumn = sumatory != null ? new ArrayColumn(sumatory) : new ConstantColumn(constant, getSize());
 
-        List<List<Double>> newDataSetColumns = new ArrayList<List<Double>>();
+        List<Column> newDataSetColumns = new ArrayList<Column>();
         for(String column : newColumns) {
-            newDataSetColumns.add(getCol(column));
+            newDataSetColumns.add(getColumn(column));
         }
         newDataSetColumns.add(sumatoryColumn);
         newColumns.add(newColName);
 
-        DataSet ret = new DataSet(newDataSetColumns, newColumns);
+        DataSet ret = DataSet.fromColumns(newColumns, newDataSetColumns);
         if(colNames.contains(this.getIndependent())) {
             ret.setIndependent(newColName);
             logger.debug("Changing independent variable column from " + this.getIndependent() + " to " + newColName);
@@ -480,22 +622,43 @@ public class DataSet {
         orderedHeader.remove(this.getIndependent());
 
         java.util.Collections.sort(orderedHeader);
+        orderedHeader.add(0, this.getIndependent());
 
-        logger.debug("Ordering - Retrieving columns");
-        List<List<Double>> columns = new ArrayList<List<Double>>();
+        logger.debug("Ordering - Generating new DataSet");
+        DataSet ret = project(orderedHeader);
 
-        columns.add(getCol(this.getIndependent()));
+        ret.setIndependent(this.getIndependent());
 
-        for(String metric : orderedHeader) {
-            columns.add(getCol(metric));
+        return ret;
+    }
+
+    /**
+     * View of the given columns of this DataSet, in the given order. No values are copied.
+     */
+    public DataSet project(List<String> colNames) {
+        List<Column> projectedColumns = new ArrayList<Column>(colNames.size());
+        for(String metric : colNames) {
+            projectedColumns.add(getColumn(metric));
         }
-        orderedHeader.add(0, this.getIndependent());
 
-        logger.debug("Ordering - Generating new DataSet");
-        DataSet ret = new DataSet(columns, orderedHeader);
+        DataSet ret = DataSet.fromColumns(colNames, projectedColumns);
+        if(colNames.contains(independent)) {
+            ret.setIndependent(independent);
+        }
+        return ret;
+    }
 
-        ret.setIndependent(this.getIndependent());
+    /**
+     * Deep copy of this DataSet, backed by its own storage.
+     */
+    public DataSet copy() {
+        List<Column> copiedColumns = new ArrayList<Column>(columns().size());
+        for (Column column : columns()) {
+            copiedColumns.add(column.copy());
+        }
 
+        DataSet ret = DataSet.fromColumns(header, copiedColumns);
+        ret.independent = independent;
         return ret;
     }
 
@@ -512,81 +675,311 @@ public class DataSet {
     }
 
     public DataSet getSubSampleRange(int fromInclusive, int toExclusive) {
+        if (fromInclusive < 0 || toExclusive > getSize() || fromInclusive > toExclusive) {
+            throw new IndexOutOfBoundsException("Invalid range [" + fromInclusive + ", " + toExclusive + ") for a DataSet of " + getSize() + " samples.");
+        }
+
         //Calculate indexes of samples to be retrieved
-        List<Integer> indexList = new ArrayList<Integer>();
-        for (int i = 0; i < this.getSize(); i++) {
-            indexList.add(i);
+        int[] rows = new int[toExclusive - fromInclusive];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = fromInclusive + i;
         }
 
-        return getSubSample(indexList.subList(fromInclusive, toExclusive));
+        return getSubSample(rows);
     }
 
 
     public DataSet getSubSample(List<Integer> indexList) {
+        int[] rows = new int[indexList.size()];
+        int i = 0;
+        for (Integer index : indexList) {
+            rows[i++] = index;
+        }
+
+        return getSubSample(rows);
+    }
+
+    private DataSet getSubSample(int[] rows) {
+        for (int row : rows) {
+            if (row < 0 || row >= getSize()) {
+                throw new IndexOutOfBoundsException("Sample " + row + " does not exist in a DataSet of " + getSize() + " samples.");
+            }
+        }
+
+        //Selected columns are views over the original ones
+        List<Column> selectedColumns = new ArrayList<Column>(columns().size());
+        for (Column column : columns()) {
+            selectedColumns.add(column.select(rows));
+        }
+
+        return DataSet.fromColumns(header, selectedColumns);
+    }
+
+    /**
+     * Joins the DataSets stored in the given CSV or binary files, applying the preprocessing filter to
+     * each of them if configured. Files are read in chunks of CoreConfiguration.DATASET_CHUNK_SIZE rows
+     * and headers are checked before reading any data. Each chunk is appended to the columns of the result
+     * as soon as it is read, so besides the result only a few chunks are held in memory. The columns grow
+     * by half their size when full, so the result may take up to 1.5 times its final size while the files
+     * are read. Use joinDataSetsToFile() for data that does not fit in memory.
+     */
+    public static DataSet joinDataSetsFromPath(List<String> datasetPaths) {
+        logger.info("Processing files...");
+        List<String> header = readCommonHeader(datasetPaths);
+
+        ColumnAppender appender = new ColumnAppender(header.size());
+        streamDataSetsFromPath(datasetPaths, appender);
+        return DataSet.fromColumns(header, appender.finish());
+    }
+
+    /**
+     * Appends chunks to growing column arrays.
+     */
+    private static final class ColumnAppender implements ChunkConsumer {
+        private final double[][] values;
+        private final BitSet[] integral;
+        private int rows = 0;
+
+        ColumnAppender(int columns) {
+            values = new double[columns][];
+            integral = new BitSet[columns];
+            for (int j = 0; j < columns; j++) {
+                values[j] = new double[Math.max(CoreConfiguration.DATASET_CHUNK_SIZE, 1)];
+                integral[j] = new BitSet();
+            }
+        }
+
+        @Override
+        public void accept(DataSet chunk) {
+            int size = chunk.getSize();
+            List<Column> columns = chunk.columns();
+            for (int j = 0; j < values.length; j++) {
+                if (rows + size > values[j].length) {
+                    values[j] = Arrays.copyOf(values[j], Math.max(rows + size, values[j].length + values[j].length / 2));
+                }
+                Column column = columns.get(j);
+                column.copyTo(values[j], rows);
+                for (int i = 0; i < size; i++) {
+                    if (column.isIntegral(i)) {
+                        integral[j].set(rows + i);
+                    }
+                }
+            }
+            rows += size;
+        }
+
+        List<Column> finish() {
+            List<Column> ret = new ArrayList<Column>(values.length);
+            for (int j = 0; j < values.length; j++) {
+                // Trimmed one column at a time, so the spare capacity of the others is not copied too
+                double[] trimmed = values[j].length == rows ? values[j] : Arrays.copyOf(values[j], rows);
+                values[j] = null;
+                ret.add(new ArrayColumn(trimmed, integral[j]));
+            }
+            return ret;
+        }
+    }
 
-        //Read current contents of file
-        CSVReader reader = null;
-        List<String[]> contents = null;
+    /**
+     * Same as joinDataSetsFromPath but writes the result to a new binary DataSet file in the temporal
+     * directory instead of keeping it in memory. Only a few chunks are held in memory at any time.
+     * @return Path of the joined file. It is kept until TempStorage.cleanUp() is called.
+     */
+    public static String joinDataSetsToFile(final List<String> datasetPaths) {
+        logger.info("Processing files...");
+        List<String> header = readCommonHeader(datasetPaths);
+
+        return writeChunksToFile(header, new ChunkSource() {
+            @Override
+            public void stream(ChunkConsumer consumer) {
+                streamDataSetsFromPath(datasetPaths, consumer);
+            }
+        });
+    }
+
+    /**
+     * Reads a DataSet file chunk by chunk, exactly as stored (no filter is applied). Only one chunk is held in
+     * memory at any time.
+     */
+    public static void readInChunks(String filePath, ChunkConsumer consumer) {
+        int chunkSize = Math.max(CoreConfiguration.DATASET_CHUNK_SIZE, 1);
+        DataSetReader reader = new DataSetReader(filePath);
         try {
-            reader = new CSVReader(new FileReader(filePath), CoreConfiguration.CSV_DELIMITER, CSVReader.DEFAULT_ESCAPE_CHARACTER, 1);
-            contents = reader.readAll();
-        } catch (IOException e) {
-            logger.error("Error while reading CSV file.", e);
-            throw new DataSetException("Error while reading CSV file.");
-        } finally {
-            try {
-                reader.close();
-            } catch (IOException e) {
-                logger.error("Error while closing CSV file.", e);
-                throw new DataSetException("Error while closing CSV file.");
+            DataSet chunk;
+            while ((chunk = nextChunk(reader, chunkSize)) != null) {
+                consumer.accept(chunk);
             }
+        } finally {
+            reader.close();
         }
+    }
 
-        //Retrieve samples from the original record list
-        List<String[]> selectedRecords = new ArrayList<String[]>();
-        for (int i = 0; i < indexList.size(); i++) {
-            selectedRecords.add(contents.get(indexList.get(i)));
+    /**
+     * Writes a new binary DataSet file in the temporal directory with every chunk of the given DataSet file
+     * transformed. The transformer must keep the header of the file.
+     * @return Path of the new file. It is kept until TempStorage.cleanUp() is called.
+     */
+    public static String transformToFile(final String filePath, final ChunkTransformer transformer) {
+        DataSetReader reader = new DataSetReader(filePath);
+        List<String> header;
+        try {
+            header = reader.getHeader();
+        } finally {
+            reader.close();
         }
 
-        //Write new contents to file while modifying original one
-        CSVWriter writer = null;
-        String filePath = null;
-        try{
-            filePath = CoreConfiguration.getNewCSVFileName();
-            writer = new CSVWriter(new FileWriter(filePath), CoreConfiguration.CSV_DELIMITER, CSVWriter.NO_QUOTE_CHARACTER);
+        return writeChunksToFile(header, new ChunkSource() {
+            @Override
+            public void stream(final ChunkConsumer consumer) {
+                readInChunks(filePath, new ChunkConsumer() {
+                    @Override
+                    public void accept(DataSet chunk) {
+                        consumer.accept(transformer.apply(chunk));
+                    }
+                });
+            }
+        });
+    }
 
-            //Write header
-            writer.writeNext(header.toArray(new String[0]));
+    private static String writeChunksToFile(List<String> header, ChunkSource source) {
+        TempStorage.TempFile outputFile = TempStorage.newFile(".pmds");
+        try {
+            writeChunks(outputFile, header, source);
+            outputFile.written();
+        } catch (RuntimeException e) {
+            outputFile.close();
+            throw e;
+        }
+        return outputFile.getPath();
+    }
 
-            //Write new contents
-            writer.writeAll(selectedRecords);
-        } catch (IOException e) {
-            logger.error("Error while reading CSV file.", e);
-            throw new DataSetException("Error while reading CSV file.");
+    private static void writeChunks(TempStorage.TempFile outputFile, final List<String> header, ChunkSource source) {
+        // Chunks are kept in the scratch file until the number of rows is known
+        final TempStorage.TempFile scratchFile = TempStorage.newFile(".part");
+        final DataSetFile.ChunkWriter writer = new DataSetFile.ChunkWriter(outputFile.getPath(), scratchFile.getPath(), header);
+        try {
+            source.stream(new ChunkConsumer() {
+                @Override
+                public void accept(DataSet chunk) {
+                    scratchFile.reserve(DataSetFile.chunkSize(header.size(), chunk.getSize()));
+                    writer.append(chunk.columns(), chunk.getSize());
+                }
+            });
+            outputFile.reserve(DataSetFile.fileSize(header, writer.getRows()));
+            writer.finish();
         } finally {
+            writer.close();
+            scratchFile.close();
+        }
+    }
+
+    /**
+     * Receives the chunks of a DataSet read by parts.
+     */
+    public interface ChunkConsumer {
+        void accept(DataSet chunk);
+    }
+
+    /**
+     * Transforms the chunks of a DataSet read by parts.
+     */
+    public interface ChunkTransformer {
+        DataSet apply(DataSet chunk);
+    }
+
+    private interface ChunkSource {
+        void stream(ChunkConsumer consumer);
+    }
+
+    /**
+     * Reads the header of every file and checks they are all equal.
+     */
+    private static List<String> readCommonHeader(List<String> datasetPaths) {
+        List<String> header = null;
+        String headerStr = null;
+        for (String filePath : datasetPaths) {
+            DataSetReader reader = new DataSetReader(filePath);
             try {
-                writer.close();
-            } catch (IOException e) {
-                logger.error("Error while closing CSV file.", e);
-                throw new DataSetException("Error while closing CSV file.");
+                String currentStr = StringUtils.join(reader.getHeader(), ',');
+                if (header == null) {
+                    header = reader.getHeader();
+                    headerStr = currentStr;
+                } else if (!headerStr.equalsIgnoreCase(currentStr)) {
+                    logger.error("Could not add DataSets with different attribute names/size:");
+                    logger.error("DataSet 1: " + headerStr);
+                    logger.error("DataSet 2: " + currentStr);
+                    throw new DataSetException("Could not add DataSets with different attribute names/size.");
+                }
+            } finally {
+                reader.close();
             }
         }
+        if (header == null) {
+            logger.error("No DataSet files to join.");
+            throw new DataSetException("No DataSet files to join.");
+        }
+        return header;
+    }
 
-        DataSet ret = new DataSet(filePath);
+    private static void streamDataSetsFromPath(List<String> datasetPaths, ChunkConsumer consumer) {
+        FilterTool filter = CoreConfiguration.PREPROCESS_DATASET ? FilterTool.newFilter(CoreConfiguration.FILTER_TYPE) : null;
+        int context = filter != null ? filter.getContextSize() : 0;
+        int chunkSize = Math.max(CoreConfiguration.DATASET_CHUNK_SIZE, Math.max(context, 1));
 
-        return ret;
+        for (String filePath : datasetPaths) {
+            DataSetReader reader = new DataSetReader(filePath);
+            try {
+                DataSet previousTail = null;
+                DataSet current = nextChunk(reader, chunkSize);
+                while (current != null) {
+                    DataSet next = nextChunk(reader, chunkSize);
+                    if (filter == null) {
+                        consumer.accept(current);
+                    } else {
+                        consumer.accept(filterChunk(filter, context, previousTail, current, next));
+                        if (context > 0) {
+                            previousTail = current.getSubSampleRange(Math.max(0, current.getSize() - context), current.getSize()).copy();
+                        }
+                    }
+                    current = next;
+                }
+            } finally {
+                reader.close();
+            }
+        }
     }
 
-    public static DataSet joinDataSetsFromPath(List<String> datasetPaths) {
-        logger.info("Processing files...");
-        List<DataSet> ret = new ArrayList<DataSet>();
-        for(String filePath : datasetPaths) {
-            DataSet temp = new DataSet(filePath);
-            if(CoreConfiguration.PREPROCESS_DATASET) {
-                temp = FilterTool.applyPreprocessingFilter(CoreConfiguration.FILTER_TYPE, temp);
-            }
-            ret.add(temp);
+    private static DataSet nextChunk(DataSetReader reader, int chunkSize) {
+        List<Column> chunkColumns = reader.next(chunkSize);
+        return chunkColumns == null ? null : DataSet.fromColumns(reader.getHeader(), chunkColumns);
+    }
+
+    /**
+     * Filters a chunk. Filters that look at neighbouring samples get the context rows of the previous
+     * and next chunks too, so the result is the same as filtering the whole file.
+     */
+    private static DataSet filterChunk(FilterTool filter, int context, DataSet previousTail, DataSet current, DataSet next) {
+        if (context == 0 || (previousTail == null && next == null)) {
+            return filter.apply(current);
+        }
+
+        List<DataSet> parts = new ArrayList<DataSet>(3);
+        int before = 0;
+        if (previousTail != null) {
+            before = previousTail.getSize();
+            parts.add(previousTail);
+        }
+        parts.add(current);
+        if (next != null) {
+            parts.add(next.getSubSampleRange(0, Math.min(context, next.getSize())));
+        }
+        DataSet padded = DataSet.join(parts);
+
+        DataSet filtered = filter.apply(padded);
+        if (filtered.getSize() != padded.getSize()) {
+            logger.error("Filter " + filter.getClass().getSimpleName() + " must keep one sample per input sample to be applied by chunks.");
+            throw new DataSetException("Filter " + filter.getClass().getSimpleName() + " must keep one sample per input sample to be applied by chunks.");
         }
-        return DataSet.join(ret);
+        return filtered.getSubSampleRange(before, before + current.getSize());
     }
 }
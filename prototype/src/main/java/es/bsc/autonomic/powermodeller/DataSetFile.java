@@ -0,0 +1,463 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.exceptions.DataSetException;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Columnar binary format used to store DataSets on disk. All numbers are little-endian:
+ *
+ *   "PMDS" | version (int) | columns (int) | rows (int)
+ *   for each column: name length in bytes (int) | UTF-8 name
+ *   padding up to a multiple of 8 bytes
+ *   for each column: rows doubles | integral cells bitmap as ceil(rows / 64) longs
+ *
+ * Files are read through FileChannel.map, one column block (or a range of rows of it) at a time.
+ */
+final class DataSetFile implements Closeable {
+
+    static final int VERSION = 1;
+    private static final byte[] MAGIC = new byte[]{'P', 'M', 'D', 'S'};
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    final static Logger logger = Logger.getLogger(DataSetFile.class);
+
+    private final String filePath;
+    private final RandomAccessFile file;
+    private final long dataOffset;
+
+    final List<String> header;
+    final int rows;
+
+    private DataSetFile(String filePath, RandomAccessFile file, List<String> header, int rows, long dataOffset) {
+        this.filePath = filePath;
+        this.file = file;
+        this.header = header;
+        this.rows = rows;
+        this.dataOffset = dataOffset;
+    }
+
+    /**
+     * True if the file starts with the binary format signature.
+     */
+    static boolean isBinary(String filePath) {
+        byte[] signature = new byte[MAGIC.length];
+        InputStream in = null;
+        try {
+            in = new FileInputStream(filePath);
+            int read = 0;
+            while (read < signature.length) {
+                int n = in.read(signature, read, signature.length - read);
+                if (n < 0) {
+                    return false;
+                }
+                read += n;
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                logger.error("Error while closing file " + filePath, e);
+            }
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (signature[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void write(String filePath, List<String> header, List<Column> columns, int rows) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(filePath);
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            putHeader(buffer, channel, header, rows);
+            double[] values = new double[rows];
+            for (Column column : columns) {
+                putColumn(buffer, channel, column, rows, values);
+            }
+            drain(buffer, channel);
+        } catch (IOException e) {
+            logger.error("Error while writing DataSet file " + filePath, e);
+            throw new DataSetException("Error while writing DataSet file " + filePath);
+        } finally {
+            closeOutput(out, filePath);
+        }
+    }
+
+    /**
+     * Writes a file chunk by chunk, when the number of rows is not known in advance. The columns of each chunk
+     * are appended to a scratch file and copied to their blocks by finish(), so a single chunk is held in
+     * memory.
+     */
+    static final class ChunkWriter implements Closeable {
+        private final String filePath;
+        private final String scratchPath;
+        private final List<String> header;
+        private final RandomAccessFile scratch;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        // Rows of each chunk, in the order they were appended
+        private final List<Integer> chunks = new ArrayList<Integer>();
+        private int rows;
+
+        ChunkWriter(String filePath, String scratchPath, List<String> header) {
+            this.filePath = filePath;
+            this.scratchPath = scratchPath;
+            this.header = header;
+            try {
+                this.scratch = new RandomAccessFile(scratchPath, "rw");
+            } catch (IOException e) {
+                logger.error("Error while writing DataSet file " + scratchPath, e);
+                throw new DataSetException("Error while writing DataSet file " + scratchPath);
+            }
+        }
+
+        int getRows() {
+            return rows;
+        }
+
+        void append(List<Column> columns, int chunkRows) {
+            if (columns.size() != header.size()) {
+                logger.error("Expected " + header.size() + " columns to write but got " + columns.size());
+                throw new DataSetException("Expected " + header.size() + " columns to write but got " + columns.size());
+            }
+            if ((long) rows + chunkRows > Integer.MAX_VALUE) {
+                logger.error("Too many rows for DataSet file " + filePath);
+                throw new DataSetException("Too many rows for DataSet file " + filePath);
+            }
+            try {
+                FileChannel channel = scratch.getChannel();
+                double[] values = new double[chunkRows];
+                for (Column column : columns) {
+                    putColumn(buffer, channel, column, chunkRows, values);
+                }
+                drain(buffer, channel);
+            } catch (IOException e) {
+                logger.error("Error while writing DataSet file " + scratchPath, e);
+                throw new DataSetException("Error while writing DataSet file " + scratchPath);
+            }
+            chunks.add(chunkRows);
+            rows += chunkRows;
+        }
+
+        /**
+         * Writes the file from the chunks appended.
+         */
+        void finish() {
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(filePath);
+                FileChannel channel = out.getChannel();
+                FileChannel source = scratch.getChannel();
+                putHeader(buffer, channel, header, rows);
+                drain(buffer, channel);
+
+                for (int j = 0; j < header.size(); j++) {
+                    long chunkStart = 0;
+                    for (int chunkRows : chunks) {
+                        long position = chunkStart + blockSize(chunkRows) * j;
+                        long end = position + 8L * chunkRows;
+                        while (position < end) {
+                            position += source.transferTo(position, end - position, channel);
+                        }
+                        chunkStart += blockSize(chunkRows) * header.size();
+                    }
+
+                    BitSet integral = new BitSet(rows);
+                    chunkStart = 0;
+                    int row = 0;
+                    for (int chunkRows : chunks) {
+                        ByteBuffer words = ByteBuffer.allocate(8 * bitmapWords(chunkRows)).order(ByteOrder.LITTLE_ENDIAN);
+                        long position = chunkStart + blockSize(chunkRows) * j + 8L * chunkRows;
+                        while (words.hasRemaining()) {
+                            if (source.read(words, position + words.position()) < 0) {
+                                throw new IOException("unexpected end of " + scratchPath);
+                            }
+                        }
+                        words.flip();
+                        BitSet chunkIntegral = BitSet.valueOf(words);
+                        for (int i = chunkIntegral.nextSetBit(0); i >= 0 && i < chunkRows; i = chunkIntegral.nextSetBit(i + 1)) {
+                            integral.set(row + i);
+                        }
+                        chunkStart += blockSize(chunkRows) * header.size();
+                        row += chunkRows;
+                    }
+                    putBitmap(buffer, channel, integral, rows);
+                    drain(buffer, channel);
+                }
+            } catch (IOException e) {
+                logger.error("Error while writing DataSet file " + filePath, e);
+                throw new DataSetException("Error while writing DataSet file " + filePath);
+            } finally {
+                closeOutput(out, filePath);
+            }
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(scratch, scratchPath);
+        }
+    }
+
+    private static void putHeader(ByteBuffer buffer, FileChannel channel, List<String> header, int rows) throws IOException {
+        buffer.put(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(header.size());
+        buffer.putInt(rows);
+        long position = 16;
+        for (String name : header) {
+            byte[] bytes = name.getBytes(UTF8);
+            if (buffer.remaining() < 4 + bytes.length) {
+                drain(buffer, channel);
+            }
+            if (buffer.remaining() < 4 + bytes.length) {
+                logger.error("Column name too long: " + name);
+                throw new DataSetException("Column name too long: " + name);
+            }
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            position += 4 + bytes.length;
+        }
+        while (position % 8 != 0) {
+            if (!buffer.hasRemaining()) {
+                drain(buffer, channel);
+            }
+            buffer.put((byte) 0);
+            position++;
+        }
+    }
+
+    /**
+     * Puts the block of a column: its values followed by its integral cells bitmap.
+     * @param values Array of rows values, reused between columns.
+     */
+    private static void putColumn(ByteBuffer buffer, FileChannel channel, Column column, int rows, double[] values) throws IOException {
+        column.copyTo(values, 0);
+        for (double value : values) {
+            if (buffer.remaining() < 8) {
+                drain(buffer, channel);
+            }
+            buffer.putDouble(value);
+        }
+
+        BitSet integral = new BitSet(rows);
+        for (int i = 0; i < rows; i++) {
+            if (column.isIntegral(i)) {
+                integral.set(i);
+            }
+        }
+        putBitmap(buffer, channel, integral, rows);
+    }
+
+    private static void putBitmap(ByteBuffer buffer, FileChannel channel, BitSet integral, int rows) throws IOException {
+        long[] words = integral.toLongArray();
+        for (int i = 0; i < bitmapWords(rows); i++) {
+            if (buffer.remaining() < 8) {
+                drain(buffer, channel);
+            }
+            buffer.putLong(i < words.length ? words[i] : 0L);
+        }
+    }
+
+    /**
+     * Opens a binary DataSet file reading only its header. Columns are read with readColumns.
+     */
+    static DataSetFile open(String filePath) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(filePath, "r");
+            FileChannel channel = file.getChannel();
+            long fileSize = channel.size();
+
+            MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, Integer.MAX_VALUE));
+            head.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] signature = new byte[MAGIC.length];
+            head.get(signature);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (signature[i] != MAGIC[i]) {
+                    logger.error("File " + filePath + " is not a binary DataSet file.");
+                    throw new DataSetException("File " + filePath + " is not a binary DataSet file.");
+                }
+            }
+            int version = head.getInt();
+            if (version != VERSION) {
+                logger.error("Unsupported DataSet file version " + version + " in " + filePath + ". Expected: " + VERSION);
+                throw new DataSetException("Unsupported DataSet file version " + version + " in " + filePath + ". Expected: " + VERSION);
+            }
+            int numColumns = head.getInt();
+            int rows = head.getInt();
+            // Every column name takes at least its length
+            if (numColumns < 0 || rows < 0 || numColumns > head.remaining() / 4) {
+                logger.error("DataSet file " + filePath + " is truncated or corrupted.");
+                throw new DataSetException("DataSet file " + filePath + " is truncated or corrupted.");
+            }
+
+            List<String> header = new ArrayList<String>(numColumns);
+            for (int j = 0; j < numColumns; j++) {
+                int length = head.getInt();
+                if (length < 0 || length > head.remaining()) {
+                    logger.error("DataSet file " + filePath + " is truncated or corrupted.");
+                    throw new DataSetException("DataSet file " + filePath + " is truncated or corrupted.");
+                }
+                byte[] bytes = new byte[length];
+                head.get(bytes);
+                header.add(new String(bytes, UTF8));
+            }
+            long position = head.position();
+            position += (8 - position % 8) % 8;
+
+            if (position + blockSize(rows) * numColumns != fileSize) {
+                logger.error("DataSet file " + filePath + " is truncated or corrupted.");
+                throw new DataSetException("DataSet file " + filePath + " is truncated or corrupted.");
+            }
+
+            DataSetFile ret = new DataSetFile(filePath, file, header, rows, position);
+            file = null;
+            return ret;
+        } catch (BufferUnderflowException e) {
+            logger.error("DataSet file " + filePath + " is truncated or corrupted.");
+            throw new DataSetException("DataSet file " + filePath + " is truncated or corrupted.");
+        } catch (IOException e) {
+            logger.error("Error while reading DataSet file " + filePath, e);
+            throw new DataSetException("Error while reading DataSet file " + filePath);
+        } finally {
+            closeQuietly(file, filePath);
+        }
+    }
+
+    /**
+     * Reads count rows of every column starting at row from.
+     */
+    List<Column> readColumns(int from, int count) {
+        try {
+            FileChannel channel = file.getChannel();
+            List<Column> ret = new ArrayList<Column>(header.size());
+            for (int j = 0; j < header.size(); j++) {
+                long columnStart = dataOffset + blockSize(rows) * j;
+
+                double[] values = new double[count];
+                if (count > 0) {
+                    MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, columnStart + 8L * from, 8L * count);
+                    block.order(ByteOrder.LITTLE_ENDIAN);
+                    block.asDoubleBuffer().get(values);
+                }
+
+                BitSet integral = null;
+                if (count > 0) {
+                    int firstWord = from / 64;
+                    int lastWord = (from + count - 1) / 64;
+                    MappedByteBuffer bitmap = channel.map(FileChannel.MapMode.READ_ONLY,
+                            columnStart + 8L * rows + 8L * firstWord, 8L * (lastWord - firstWord + 1));
+                    bitmap.order(ByteOrder.LITTLE_ENDIAN);
+                    long[] words = new long[lastWord - firstWord + 1];
+                    bitmap.asLongBuffer().get(words);
+                    int offset = from - 64 * firstWord;
+                    integral = BitSet.valueOf(words).get(offset, offset + count);
+                }
+                ret.add(new ArrayColumn(values, integral));
+            }
+            return ret;
+        } catch (IOException e) {
+            logger.error("Error while reading DataSet file " + filePath, e);
+            throw new DataSetException("Error while reading DataSet file " + filePath);
+        }
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(file, filePath);
+    }
+
+    private static void closeOutput(FileOutputStream out, String filePath) {
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error while closing DataSet file " + filePath, e);
+            throw new DataSetException("Error while closing DataSet file " + filePath);
+        }
+    }
+
+    private static void closeQuietly(Closeable file, String filePath) {
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error while closing DataSet file " + filePath, e);
+        }
+    }
+
+    /**
+     * Space taken in the scratch file of a ChunkWriter by a chunk of the given number of columns and rows.
+     */
+    static long chunkSize(int columns, int rows) {
+        return blockSize(rows) * columns;
+    }
+
+    /**
+     * Size of the file written by write() for the given header and number of rows.
+     */
+    static long fileSize(List<String> header, int rows) {
+        long position = 16;
+        for (String name : header) {
+            position += 4 + name.getBytes(UTF8).length;
+        }
+        position += (8 - position % 8) % 8;
+        return position + blockSize(rows) * header.size();
+    }
+
+    private static long blockSize(int rows) {
+        return 8L * rows + 8L * bitmapWords(rows);
+    }
+
+    private static int bitmapWords(int rows) {
+        return (rows + 63) / 64;
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
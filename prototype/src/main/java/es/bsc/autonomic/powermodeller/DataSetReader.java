@@ -0,0 +1,134 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Reads a CSV or binary DataSet file in chunks of rows, so that files larger than the available
+ * memory can be processed. The header is read when the reader is opened. CSV files are parsed by
+ * CSVLoader, and their invalid values handled as set by invalid-values while they are read, so removed
+ * samples never reach memory. Binary files are written by the tool itself and are read as they are.
+ */
+class DataSetReader implements Closeable {
+    private final List<String> header;
+    private CSVLoader csvLoader;
+    private DataSetFile binaryFile;
+    private int binaryRow = 0;
+    private InvalidValues invalidValues;
+
+    final static Logger logger = Logger.getLogger(DataSetReader.class);
+
+    DataSetReader(String filePath) {
+        if (DataSetFile.isBinary(filePath)) {
+            binaryFile = DataSetFile.open(filePath);
+            header = binaryFile.header;
+        } else {
+            csvLoader = new CSVLoader(filePath);
+            header = csvLoader.getHeader();
+            InvalidValues.Policy policy = getInvalidValuesPolicy();
+            if (policy != InvalidValues.Policy.KEEP) {
+                invalidValues = new InvalidValues(header, policy);
+            }
+        }
+    }
+
+    private static InvalidValues.Policy getInvalidValuesPolicy() {
+        String policy = CoreConfiguration.INVALID_VALUES;
+        return policy == null || policy.isEmpty() ? InvalidValues.Policy.KEEP : InvalidValues.Policy.parse(policy);
+    }
+
+    /**
+     * Whether the values read differ from the contents of the file, as the invalid-values policy fills or
+     * removes some of them. The rows can then only be counted by parsing them.
+     */
+    static boolean changesOnRead(String filePath) {
+        return !DataSetFile.isBinary(filePath) && getInvalidValuesPolicy() != InvalidValues.Policy.KEEP;
+    }
+
+    List<String> getHeader() {
+        return header;
+    }
+
+    boolean isBinary() {
+        return binaryFile != null;
+    }
+
+    /**
+     * Number of rows not read yet. CSV lines are only scanned, unless invalid samples may be removed, in
+     * which case the rest of the file is read.
+     */
+    int countRows() {
+        if (binaryFile != null) {
+            return binaryFile.rows - binaryRow;
+        }
+        if (invalidValues == null) {
+            return csvLoader.countRows();
+        }
+
+        int count = 0;
+        List<Column> chunk;
+        while ((chunk = next(CoreConfiguration.DATASET_CHUNK_SIZE)) != null) {
+            count += chunk.get(0).size();
+        }
+        return count;
+    }
+
+    /**
+     * Reads up to maxRows rows.
+     * @return The columns of the rows read, or null if the end of the file was already reached.
+     */
+    List<Column> next(int maxRows) {
+        if (binaryFile != null) {
+            if (binaryRow == binaryFile.rows) {
+                return null;
+            }
+            int count = Math.min(maxRows, binaryFile.rows - binaryRow);
+            List<Column> ret = binaryFile.readColumns(binaryRow, count);
+            binaryRow += count;
+            return ret;
+        }
+        if (invalidValues == null) {
+            return csvLoader.next(maxRows);
+        }
+
+        // Samples held back by the previous chunks may be returned together with the next one
+        while (true) {
+            List<Column> read = csvLoader.next(maxRows);
+            List<Column> ret = read != null ? invalidValues.process(read, csvLoader.isFinished()) : invalidValues.finish();
+            if (ret == null || (!ret.isEmpty() && ret.get(0).size() > 0)) {
+                return ret;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (csvLoader != null) {
+            if (invalidValues != null && invalidValues.getInvalidCount() > 0) {
+                logger.info(invalidValues.getReport());
+            }
+            csvLoader.close();
+            csvLoader = null;
+        }
+        if (binaryFile != null) {
+            binaryFile.close();
+            binaryFile = null;
+        }
+    }
+}
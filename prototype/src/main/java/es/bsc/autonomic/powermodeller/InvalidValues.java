@@ -0,0 +1,381 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.exceptions.RemoveInvalidFilterException;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Handles the invalid cells (missing, NaN or infinite) of a DataSet read by chunks, once the values are
+ * parsed:
+ * - drop: samples with an invalid cell are removed.
+ * - forward-fill: invalid cells take the last valid value of their metric.
+ * - interpolate: invalid cells are linearly interpolated between the valid values around them. Cells after
+ *   the last valid value of the file take that value.
+ * With forward-fill and interpolate, samples that have an invalid cell before any valid value of its metric
+ * are removed.
+ *
+ * Samples are returned in order. When interpolating, samples are held back until the next valid value of
+ * each of their invalid metrics is read, so the rows returned by a call may belong to previous chunks.
+ * Chunks without invalid cells are returned as they are. Not safe for concurrent use.
+ */
+public final class InvalidValues {
+
+    final static Logger logger = Logger.getLogger(InvalidValues.class);
+
+    public enum Policy {
+        KEEP, DROP, FORWARD_FILL, INTERPOLATE;
+
+        public static Policy parse(String name) {
+            for (Policy policy : values()) {
+                if (policy.name().replace('_', '-').equalsIgnoreCase(name.trim())) {
+                    return policy;
+                }
+            }
+            logger.error("Unknown invalid values policy '" + name + "'. Available: keep, drop, forward-fill, interpolate");
+            throw new RemoveInvalidFilterException("Unknown invalid values policy '" + name + "'");
+        }
+    }
+
+    private final List<String> header;
+    private final Policy policy;
+    private final long[] invalidCounts;
+    private long droppedRows = 0;
+    private long rowIndex = 0;
+    private boolean finished = false;
+
+    // Last valid value of each metric, its integral flag and the row it was read at
+    private final double[] last;
+    private final boolean[] lastIntegral;
+    private final long[] lastRow;
+    private final boolean[] hasLast;
+
+    // Samples held back while interpolating and, for each metric, those waiting for its next valid value
+    private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+    private final List<List<Pending>> waiting;
+
+    private static final class Pending {
+        final long row;
+        final double[] values;
+        final boolean[] integral;
+        int unresolved;
+
+        Pending(long row, double[] values, boolean[] integral) {
+            this.row = row;
+            this.values = values;
+            this.integral = integral;
+        }
+    }
+
+    public InvalidValues(List<String> header, Policy policy) {
+        this.header = new ArrayList<String>(header);
+        this.policy = policy;
+        int width = header.size();
+        this.invalidCounts = new long[width];
+        this.last = new double[width];
+        this.lastIntegral = new boolean[width];
+        this.lastRow = new long[width];
+        this.hasLast = new boolean[width];
+        this.waiting = new ArrayList<List<Pending>>(width);
+        for (int j = 0; j < width; j++) {
+            waiting.add(new ArrayList<Pending>());
+        }
+    }
+
+    /**
+     * Applies the policy to a whole DataSet.
+     */
+    public static DataSet apply(DataSet ds, Policy policy) {
+        InvalidValues stage = new InvalidValues(ds.getHeader(), policy);
+        Output out = new Output(ds.getHeader().size());
+        out.append(stage.process(ds.columns(), true));
+        logger.info(stage.getReport());
+
+        DataSet ret = DataSet.fromColumns(ds.getHeader(), out.build());
+        if (ds.hasIndependent()) {
+            ret.setIndependent(ds.getIndependent());
+        }
+        return ret;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Handles the next chunk.
+     * @param last Whether this is the last chunk, so no sample is held back.
+     * @return The columns of the samples that can be returned so far, possibly none.
+     */
+    List<Column> process(List<Column> chunk, boolean last) {
+        int rows = chunk.isEmpty() ? 0 : chunk.get(0).size();
+        if (policy == Policy.KEEP) {
+            return chunk;
+        }
+
+        if (pending.isEmpty() && countInvalid(chunk, rows) == 0) {
+            for (int j = 0; j < chunk.size(); j++) {
+                updateLast(j, chunk.get(j), rows);
+            }
+            rowIndex += rows;
+            return chunk;
+        }
+
+        Output out = new Output(header.size());
+        double[] values = new double[header.size()];
+        boolean[] integral = new boolean[header.size()];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < values.length; j++) {
+                values[j] = chunk.get(j).get(i);
+                integral[j] = chunk.get(j).isIntegral(i);
+            }
+            processRow(values, integral, out);
+            rowIndex++;
+        }
+        if (last) {
+            flush(out);
+        }
+        return out.build();
+    }
+
+    /**
+     * Returns the samples still held back, at the end of the file.
+     * @return Their columns, or null if there are none.
+     */
+    List<Column> finish() {
+        if (finished || pending.isEmpty()) {
+            finished = true;
+            return null;
+        }
+        Output out = new Output(header.size());
+        flush(out);
+        return out.build();
+    }
+
+    private void flush(Output out) {
+        finished = true;
+
+        // No valid value follows: keep the last one
+        for (int j = 0; j < waiting.size(); j++) {
+            for (Pending p : waiting.get(j)) {
+                p.values[j] = last[j];
+                p.integral[j] = lastIntegral[j];
+                p.unresolved--;
+            }
+            waiting.get(j).clear();
+        }
+        drain(out);
+    }
+
+    public long getInvalidCount(String metric) {
+        int index = header.indexOf(metric);
+        return index >= 0 ? invalidCounts[index] : 0;
+    }
+
+    public long getInvalidCount() {
+        long ret = 0;
+        for (long count : invalidCounts) {
+            ret += count;
+        }
+        return ret;
+    }
+
+    public long getDroppedRows() {
+        return droppedRows;
+    }
+
+    /**
+     * Invalid cells found in each metric and samples removed.
+     */
+    public String getReport() {
+        StringBuilder sb = new StringBuilder("Invalid values (" + policy.name().toLowerCase().replace('_', '-') + "):");
+        boolean any = false;
+        for (int j = 0; j < invalidCounts.length; j++) {
+            if (invalidCounts[j] > 0) {
+                sb.append(any ? ", " : " ").append(header.get(j)).append('=').append(invalidCounts[j]);
+                any = true;
+            }
+        }
+        if (!any) {
+            sb.append(" none");
+        }
+        sb.append(". Samples removed: ").append(droppedRows).append(" of ").append(rowIndex);
+        return sb.toString();
+    }
+
+    private int countInvalid(List<Column> chunk, int rows) {
+        int ret = 0;
+        for (int j = 0; j < chunk.size(); j++) {
+            Column column = chunk.get(j);
+            for (int i = 0; i < rows; i++) {
+                if (isInvalid(column.get(i))) {
+                    ret++;
+                }
+            }
+        }
+        return ret;
+    }
+
+    private void updateLast(int j, Column column, int rows) {
+        if (rows > 0) {
+            last[j] = column.get(rows - 1);
+            lastIntegral[j] = column.isIntegral(rows - 1);
+            lastRow[j] = rowIndex + rows - 1;
+            hasLast[j] = true;
+        }
+    }
+
+    private void processRow(double[] values, boolean[] integral, Output out) {
+        boolean invalid = false;
+        boolean fillable = true;
+        for (int j = 0; j < values.length; j++) {
+            if (isInvalid(values[j])) {
+                invalidCounts[j]++;
+                invalid = true;
+                fillable &= hasLast[j];
+            }
+        }
+
+        // Valid cells resolve the samples waiting for them, even if this one is removed
+        for (int j = 0; j < values.length; j++) {
+            if (!isInvalid(values[j])) {
+                if (policy == Policy.INTERPOLATE) {
+                    resolve(j, values[j]);
+                }
+                last[j] = values[j];
+                lastIntegral[j] = integral[j];
+                lastRow[j] = rowIndex;
+                hasLast[j] = true;
+            }
+        }
+
+        if (invalid && (policy == Policy.DROP || !fillable)) {
+            droppedRows++;
+        } else if (!invalid && pending.isEmpty()) {
+            out.append(values, integral);
+        } else if (policy == Policy.FORWARD_FILL) {
+            for (int j = 0; j < values.length; j++) {
+                if (isInvalid(values[j])) {
+                    values[j] = last[j];
+                    integral[j] = lastIntegral[j];
+                }
+            }
+            out.append(values, integral);
+        } else {
+            Pending p = new Pending(rowIndex, values.clone(), integral.clone());
+            for (int j = 0; j < values.length; j++) {
+                if (isInvalid(values[j])) {
+                    waiting.get(j).add(p);
+                    p.unresolved++;
+                }
+            }
+            pending.add(p);
+        }
+        drain(out);
+    }
+
+    private void resolve(int j, double value) {
+        List<Pending> cells = waiting.get(j);
+        if (cells.isEmpty()) {
+            return;
+        }
+        double step = (value - last[j]) / (rowIndex - lastRow[j]);
+        for (Pending p : cells) {
+            p.values[j] = last[j] + step * (p.row - lastRow[j]);
+            p.integral[j] = false;
+            p.unresolved--;
+        }
+        cells.clear();
+    }
+
+    private void drain(Output out) {
+        while (!pending.isEmpty() && pending.peek().unresolved == 0) {
+            Pending p = pending.poll();
+            out.append(p.values, p.integral);
+        }
+    }
+
+    private static boolean isInvalid(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value);
+    }
+
+    /**
+     * Columns built sample by sample.
+     */
+    private static final class Output {
+        private double[][] values;
+        private final BitSet[] integral;
+        private int size = 0;
+
+        Output(int width) {
+            values = new double[width][16];
+            integral = new BitSet[width];
+            for (int j = 0; j < width; j++) {
+                integral[j] = new BitSet();
+            }
+        }
+
+        void append(double[] row, boolean[] rowIntegral) {
+            ensureCapacity(size + 1);
+            for (int j = 0; j < row.length; j++) {
+                values[j][size] = row[j];
+                if (rowIntegral[j]) {
+                    integral[j].set(size);
+                }
+            }
+            size++;
+        }
+
+        void append(List<Column> columns) {
+            if (columns == null || columns.isEmpty()) {
+                return;
+            }
+            int rows = columns.get(0).size();
+            ensureCapacity(size + rows);
+            for (int j = 0; j < columns.size(); j++) {
+                Column column = columns.get(j);
+                column.copyTo(values[j], size);
+                for (int i = 0; i < rows; i++) {
+                    if (column.isIntegral(i)) {
+                        integral[j].set(size + i);
+                    }
+                }
+            }
+            size += rows;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (values.length > 0 && values[0].length < capacity) {
+                int length = Math.max(capacity, values[0].length * 2);
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = Arrays.copyOf(values[j], length);
+                }
+            }
+        }
+
+        List<Column> build() {
+            List<Column> ret = new ArrayList<Column>(values.length);
+            for (int j = 0; j < values.length; j++) {
+                ret.add(new ArrayColumn(Arrays.copyOf(values[j], size), integral[j]));
+            }
+            return ret;
+        }
+    }
+}
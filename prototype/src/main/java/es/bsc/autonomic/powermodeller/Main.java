@@ -15,16 +15,24 @@ package es.bsc.autonomic.powermodeller;
 
 import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
 import es.bsc.autonomic.powermodeller.exceptions.ModelException;
+import es.bsc.autonomic.powermodeller.exceptions.PowerModelEstimatorException;
 import es.bsc.autonomic.powermodeller.graphics.TotalPowerAndPredictionDifference;
 import es.bsc.autonomic.powermodeller.models.CombinedModel;
 import es.bsc.autonomic.powermodeller.models.GlobalModel;
 import es.bsc.autonomic.powermodeller.models.Models;
 import es.bsc.autonomic.powermodeller.models.ResourcesModel;
+import es.bsc.autonomic.powermodeller.server.EstimationServer;
+import es.bsc.autonomic.powermodeller.tools.EstimationMetrics;
 import org.apache.log4j.Logger;
 
-import java.io.BufferedReader;
-
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 
 public class Main {
 
@@ -32,6 +40,15 @@ public class Main {
     PowerModelGenerator pmg = new PowerModelGenerator();
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equalsIgnoreCase("server")) {
+            EstimationServer.main(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equalsIgnoreCase("stream")) {
+            streamEstimations(args.length > 1 ? args[1] : null, args.length > 2 ? args[2] : null);
+            return;
+        }
+
         Models resMod = null;
         long start = System.currentTimeMillis();
 
@@ -59,7 +76,10 @@ public class Main {
         // Show graph
         TotalPowerAndPredictionDifference graph = new TotalPowerAndPredictionDifference(result);
         graph.display();
-        printEstimationInfo(result.getFilePath());
+        printEstimationInfo(result);
+
+        TempStorage.cleanUp();
+        logger.info(TempStorage.getReport());
 
         long end = System.currentTimeMillis();
         long time = end - start;
@@ -68,25 +88,50 @@ public class Main {
     }
 
 
-    public static void printEstimationInfo(String file) {
-
-        logger.info("Estimating errors");
-        System.out.println("################################");
-
-        String RscriptPath = CoreConfiguration.getFilePath(CoreConfiguration.R_SCRIPT_ESTIMATION);
+    /**
+     * Estimates CSV samples with the model of model-path, writing a CSV record per sample.
+     * @param input File of samples, or null to read the standard input.
+     * @param output File of records, or null to write to the standard output.
+     */
+    private static void streamEstimations(String input, String output) {
+        ModelBundle bundle = ModelBundle.read(CoreConfiguration.MODEL_PATH);
+        Reader in = null;
+        Writer out = null;
         try {
-            String line;
-            Process p = Runtime.getRuntime().exec(new String[]{RscriptPath, file});
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader(p.getInputStream()));
-            while ((line = in.readLine()) != null) {
-                System.out.println(line);
+            in = new InputStreamReader(input != null ? new FileInputStream(input) : System.in, "UTF-8");
+            out = new BufferedWriter(new OutputStreamWriter(output != null ? new FileOutputStream(output) : System.out, "UTF-8"));
+            StreamingEstimator estimator = StreamingEstimator.estimate(bundle, in, out, CoreConfiguration.DATASET_CHUNK_SIZE);
+            logger.info(estimator.getEmitted() + " of " + estimator.getReceived() + " samples estimated");
+            logger.info(estimator.getInvalidValuesReport());
+            if (estimator.getAccuracy().getCount() > 0) {
+                logger.info("Estimation accuracy:\n" + estimator.getAccuracy());
+            }
+        } catch (IOException e) {
+            logger.error("Error while streaming estimations", e);
+            throw new PowerModelEstimatorException("Error while streaming estimations", e);
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+                if (in != null && input != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                logger.warn("Error while closing streams: " + e.getMessage());
             }
-            in.close();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+    }
+
+    public static EstimationMetrics printEstimationInfo(DataSet result) {
+
+        logger.info("Estimating errors");
+        EstimationMetrics metrics = EstimationMetrics.compute(result);
+
+        System.out.println("################################");
+        System.out.print(metrics);
         System.out.println("################################");
+        return metrics;
     }
 
 
@@ -0,0 +1,313 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.exceptions.ModelBundleException;
+import es.bsc.autonomic.powermodeller.tools.featureScaling.DataStandardization;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Trained model stored in a versioned binary file: the type of model, the scaling parameters with the names
+ * of their metrics and the ResourceModels it is made of, by name.
+ *
+ * Each ResourceModel is stored as its headers and variables, the compiled program of its new metrics and the
+ * flat form of its classifier (coefficients or tree arrays), so nothing has to be parsed or inspected again
+ * when it is loaded. The Weka classifier is stored too, as it is still needed for samples with missing
+ * values and for classifiers without a flat form.
+ *
+ * Layout: magic, format version, payload length and CRC32 of the payload, followed by the payload. Files
+ * are read through a memory-mapped buffer; a file written by another format version or whose checksum does
+ * not match is rejected.
+ */
+public final class ModelBundle {
+
+    final static Logger logger = Logger.getLogger(ModelBundle.class);
+
+    // "PMGB"
+    private static final int MAGIC = 0x504D4742;
+    public static final int FORMAT_VERSION = 2;
+    // Magic, version, payload length and checksum
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String type;
+    private final DataStandardization dataStandardization;
+    private final Map<String, ResourceModel> models;
+
+    public ModelBundle(String type, DataStandardization dataStandardization, Map<String, ResourceModel> models) {
+        this.type = type;
+        this.dataStandardization = dataStandardization;
+        this.models = Collections.unmodifiableMap(new LinkedHashMap<String, ResourceModel>(models));
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Scaling parameters of the training data, or null if it was not scaled.
+     */
+    public DataStandardization getDataStandardization() {
+        return dataStandardization;
+    }
+
+    /**
+     * ResourceModels by name, in the order they were stored.
+     */
+    public Map<String, ResourceModel> getModels() {
+        return models;
+    }
+
+    /**
+     * Writes the bundle to the given path. The file is written aside and renamed, so readers never see a
+     * partially written bundle.
+     */
+    public void write(String path) {
+        long start = System.currentTimeMillis();
+        byte[] payload;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeString(out, type);
+            writeStandardization(out, dataStandardization);
+            out.writeInt(models.size());
+            for (Map.Entry<String, ResourceModel> entry : models.entrySet()) {
+                writeString(out, entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+            out.close();
+            payload = bytes.toByteArray();
+        } catch (IOException e) {
+            logger.error("Error while encoding model bundle", e);
+            throw new ModelBundleException("Error while encoding model bundle", e);
+        }
+
+        File file = new File(path);
+        File partial = new File(path + ".part");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(partial));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(payload.length);
+                out.writeLong(checksum(ByteBuffer.wrap(payload)));
+                out.write(payload);
+            } finally {
+                out.close();
+            }
+            if (!partial.renameTo(file)) {
+                file.delete();
+                if (!partial.renameTo(file)) {
+                    throw new IOException("could not rename " + partial);
+                }
+            }
+        } catch (IOException e) {
+            partial.delete();
+            logger.error("Error while writing model bundle " + path, e);
+            throw new ModelBundleException("Error while writing model bundle " + path, e);
+        }
+        logger.debug("Wrote model bundle " + path + " (" + (HEADER_SIZE + payload.length) + " bytes) in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Reads a bundle written by write().
+     */
+    public static ModelBundle read(String path) {
+        long start = System.currentTimeMillis();
+        MappedByteBuffer buffer;
+        try {
+            RandomAccessFile file = new RandomAccessFile(path, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                // The mapping stays valid once the file is closed
+                file.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error while reading model bundle " + path, e);
+            throw new ModelBundleException("Error while reading model bundle " + path, e);
+        }
+
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            logger.error(path + " is not a model bundle. Models saved with Java serialization by older versions must be trained again.");
+            throw new ModelBundleException(path + " is not a model bundle. Models saved with Java serialization by older versions must be trained again.");
+        }
+        int version = buffer.getInt();
+        if (version != FORMAT_VERSION) {
+            logger.error("Model bundle " + path + " has format version " + version + " but this version reads " + FORMAT_VERSION + ". Train the model again.");
+            throw new ModelBundleException("Model bundle " + path + " has format version " + version + " but this version reads " + FORMAT_VERSION + ". Train the model again.");
+        }
+        int length = buffer.getInt();
+        long expected = buffer.getLong();
+        if (length < 0 || length != buffer.remaining()) {
+            logger.error("Model bundle " + path + " is truncated.");
+            throw new ModelBundleException("Model bundle " + path + " is truncated.");
+        }
+        ByteBuffer payload = buffer.slice();
+        if (checksum(payload.duplicate()) != expected) {
+            logger.error("Model bundle " + path + " is corrupted: checksum does not match.");
+            throw new ModelBundleException("Model bundle " + path + " is corrupted: checksum does not match.");
+        }
+
+        ModelBundle ret;
+        try {
+            String type = readString(payload);
+            DataStandardization standardization = readStandardization(payload);
+            int count = payload.getInt();
+            Map<String, ResourceModel> models = new LinkedHashMap<String, ResourceModel>();
+            for (int i = 0; i < count; i++) {
+                String name = readString(payload);
+                models.put(name, ResourceModel.readFrom(payload));
+            }
+            ret = new ModelBundle(type, standardization, models);
+        } catch (RuntimeException e) {
+            logger.error("Error while decoding model bundle " + path, e);
+            throw new ModelBundleException("Error while decoding model bundle " + path, e);
+        }
+        logger.info("Loaded model bundle " + path + " in " + (System.currentTimeMillis() - start) + " ms");
+        return ret;
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    private static void writeStandardization(DataOutput out, DataStandardization standardization) throws IOException {
+        out.writeBoolean(standardization != null && standardization.getMu() != null);
+        if (standardization != null && standardization.getMu() != null) {
+            writeStrings(out, standardization.getMetrics());
+            writeString(out, standardization.getIndependent());
+            writeDoubles(out, standardization.getMu());
+            writeDoubles(out, standardization.getSigma());
+        }
+    }
+
+    private static DataStandardization readStandardization(ByteBuffer in) {
+        if (!readBoolean(in)) {
+            return null;
+        }
+        List<String> metrics = readStrings(in);
+        String independent = readString(in);
+        double[] mu = readDoubles(in);
+        double[] sigma = readDoubles(in);
+        return new DataStandardization(metrics, independent, mu, sigma);
+    }
+
+    // Encoding of the values in the payload, shared with the classes stored in it
+
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    public static void writeStrings(DataOutput out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    public static List<String> readStrings(ByteBuffer in) {
+        int size = in.getInt();
+        List<String> ret = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            ret.add(readString(in));
+        }
+        return ret;
+    }
+
+    public static void writeDoubles(DataOutput out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    public static double[] readDoubles(ByteBuffer in) {
+        double[] ret = new double[in.getInt()];
+        in.asDoubleBuffer().get(ret);
+        in.position(in.position() + ret.length * 8);
+        return ret;
+    }
+
+    public static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    public static int[] readInts(ByteBuffer in) {
+        int[] ret = new int[in.getInt()];
+        in.asIntBuffer().get(ret);
+        in.position(in.position() + ret.length * 4);
+        return ret;
+    }
+
+    public static void writeBytes(DataOutput out, byte[] values) throws IOException {
+        out.writeInt(values.length);
+        out.write(values);
+    }
+
+    public static byte[] readBytes(ByteBuffer in) {
+        byte[] ret = new byte[in.getInt()];
+        in.get(ret);
+        return ret;
+    }
+
+    public static boolean readBoolean(ByteBuffer in) {
+        return in.get() != 0;
+    }
+}
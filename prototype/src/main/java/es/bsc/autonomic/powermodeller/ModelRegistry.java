@@ -0,0 +1,306 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.exceptions.ModelBundleException;
+import es.bsc.autonomic.powermodeller.exceptions.ModelException;
+import es.bsc.autonomic.powermodeller.exceptions.ModelRegistryException;
+import es.bsc.autonomic.powermodeller.models.Models;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trained models of several host types, kept loaded by a long-running estimation process.
+ *
+ * Each model is a ModelBundle named after its host type in the model directory, e.g. xeon-x5650.model.
+ * Once watch() is called, bundles written to the directory are loaded and swapped in for the previous model
+ * of their host type. Lookups only read a concurrent map and never wait for a load. Estimations already
+ * running keep the model they looked up, so retrained models never affect them. A bundle that cannot be
+ * loaded, for instance while it is still being copied, is logged and the previous model is kept.
+ *
+ * Deleting a bundle does not unload its model; call remove() for that.
+ */
+public final class ModelRegistry implements Closeable {
+
+    final static Logger logger = Logger.getLogger(ModelRegistry.class);
+
+    public static final String EXTENSION = ".model";
+
+    private final File dir;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong generations = new AtomicLong();
+
+    private WatchService watchService;
+    private Thread watcher;
+
+    /**
+     * Model loaded for a host type. Entries are immutable: a reload replaces the whole entry.
+     */
+    public static final class Entry {
+        private final String hostType;
+        private final File file;
+        private final Models model;
+        private final ModelBundle bundle;
+        private final long lastModified;
+        private final long length;
+        private final long generation;
+
+        private Entry(String hostType, File file, Models model, ModelBundle bundle, long lastModified, long length, long generation) {
+            this.hostType = hostType;
+            this.file = file;
+            this.model = model;
+            this.bundle = bundle;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.generation = generation;
+        }
+
+        public String getHostType() {
+            return hostType;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public Models getModel() {
+            return model;
+        }
+
+        /**
+         * Bundle the model was built from, which gives access to its ResourceModels.
+         */
+        public ModelBundle getBundle() {
+            return bundle;
+        }
+
+        /**
+         * Increases every time a model is loaded in the registry, whatever its host type.
+         */
+        public long getGeneration() {
+            return generation;
+        }
+    }
+
+    public ModelRegistry(String dir) {
+        this.dir = new File(dir);
+        if (!this.dir.isDirectory()) {
+            logger.error("Model directory " + dir + " does not exist");
+            throw new ModelRegistryException("Model directory " + dir + " does not exist");
+        }
+    }
+
+    /**
+     * Host type of a bundle file, or null if the file is not a bundle.
+     */
+    public static String getHostType(String fileName) {
+        if (!fileName.endsWith(EXTENSION) || fileName.length() == EXTENSION.length()) {
+            return null;
+        }
+        return fileName.substring(0, fileName.length() - EXTENSION.length());
+    }
+
+    /**
+     * Loads every bundle of the model directory that changed since it was last loaded. Bundles that cannot be
+     * loaded are logged and skipped.
+     * @return Number of models loaded.
+     */
+    public int loadAll() {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && getHostType(file.getName()) != null;
+            }
+        });
+        if (files == null) {
+            logger.error("Error while listing model directory " + dir);
+            throw new ModelRegistryException("Error while listing model directory " + dir);
+        }
+
+        int loaded = 0;
+        for (File file : files) {
+            if (reload(file)) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Loads the bundle at the given path as the model of the host type, replacing the previous one.
+     */
+    public Entry load(String hostType, String path) {
+        File file = new File(path);
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        ModelBundle bundle = ModelBundle.read(path);
+        Models model = Models.fromBundle(bundle);
+        Entry entry = new Entry(hostType, file, model, bundle, lastModified, length, generations.incrementAndGet());
+        Entry previous = entries.put(hostType, entry);
+        logger.info((previous == null ? "Loaded " : "Reloaded ") + bundle.getType() + " model of host type " + hostType + " from " + path);
+        return entry;
+    }
+
+    /**
+     * Model of the host type, or null if there is none.
+     */
+    public Models get(String hostType) {
+        Entry entry = entries.get(hostType);
+        return entry != null ? entry.getModel() : null;
+    }
+
+    /**
+     * Entry of the host type, or null if there is none.
+     */
+    public Entry getEntry(String hostType) {
+        return entries.get(hostType);
+    }
+
+    public Set<String> getHostTypes() {
+        return Collections.unmodifiableSet(new TreeSet<String>(entries.keySet()));
+    }
+
+    /**
+     * Unloads the model of the host type. Estimations using it are not affected.
+     */
+    public boolean remove(String hostType) {
+        return entries.remove(hostType) != null;
+    }
+
+    /**
+     * Starts watching the model directory for new and rewritten bundles, after loading the ones already there.
+     */
+    public synchronized void watch() {
+        if (watchService != null) {
+            return;
+        }
+
+        try {
+            watchService = dir.toPath().getFileSystem().newWatchService();
+            dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            logger.error("Error while watching model directory " + dir, e);
+            throw new ModelRegistryException("Error while watching model directory " + dir, e);
+        }
+        // Registered first, so a bundle written meanwhile is not missed
+        loadAll();
+
+        final WatchService service = watchService;
+        watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchLoop(service);
+            }
+        }, "model-registry-" + dir.getName());
+        watcher.setDaemon(true);
+        watcher.start();
+        logger.info("Watching model directory " + dir);
+    }
+
+    /**
+     * Stops watching the model directory. Loaded models are kept.
+     */
+    @Override
+    public synchronized void close() {
+        if (watchService == null) {
+            return;
+        }
+
+        try {
+            watchService.close();
+            watcher.join();
+        } catch (IOException e) {
+            logger.warn("Error while closing watch service: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        watchService = null;
+        watcher = null;
+    }
+
+    private void watchLoop(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                // An error in one event must not stop the watcher, or models would silently stop being reloaded
+                try {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so every bundle is checked
+                        loadAll();
+                    } else {
+                        Path name = (Path) event.context();
+                        if (getHostType(name.toString()) != null) {
+                            reload(new File(dir, name.toString()));
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    logger.error("Error while handling change in model directory " + dir, e);
+                }
+            }
+
+            if (!key.reset()) {
+                logger.warn("Model directory " + dir + " is no longer watched");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Loads a bundle unless it did not change since it was loaded. Errors are logged and the previous model kept.
+     */
+    private boolean reload(File file) {
+        String hostType = getHostType(file.getName());
+        Entry current = entries.get(hostType);
+        if (current != null && current.file.equals(file) && current.lastModified == file.lastModified() && current.length == file.length()) {
+            return false;
+        }
+
+        try {
+            load(hostType, file.getPath());
+            return true;
+        } catch (ModelBundleException e) {
+            logger.warn("Keeping previous model of host type " + hostType + ": " + e.getMessage());
+        } catch (ModelException e) {
+            logger.warn("Keeping previous model of host type " + hostType + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            logger.error("Keeping previous model of host type " + hostType + " after unexpected error", e);
+        }
+        return false;
+    }
+}
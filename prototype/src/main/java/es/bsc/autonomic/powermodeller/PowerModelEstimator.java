@@ -157,20 +157,15 @@ public class PowerModelEstimator {
                 results.put(CoreConfiguration.PACTUAL_LABEL, validationDS.getCol(validationDS.getIndependent()));
 
 
-                // Add idle
-                List<Double> idle = new ArrayList<Double>();
-                while(idle.size() < validationDS.getSize()) idle.add(CoreConfiguration.POWER_IDLE);
-                results.put(CoreConfiguration.PIDLE_LABEL, idle);
-
                 List<Double>  predicted_cpu = cpu.estimateIndependent(validationDS);
 
                 results.put(CoreConfiguration.PCPU_LABEL, predicted_cpu);
 
-                DataSet resultsDS = new DataSet(results);
+                DataSet resultsDS = new DataSet(results).addConstantColumn(CoreConfiguration.PIDLE_LABEL, CoreConfiguration.POWER_IDLE);
                 resultsDS.setIndependent(CoreConfiguration.PACTUAL_LABEL);
 
                 this.estimatedDS = resultsDS.order();
-                logger.info("Estimation file with " + this.estimatedDS.getSize() + " samples: " + this.estimatedDS.getFilePath());
+                logger.info("Estimation done with " + this.estimatedDS.getSize() + " samples.");
                 return this.estimatedDS;
         }
 
@@ -180,22 +175,17 @@ public class PowerModelEstimator {
 
                 results.put(CoreConfiguration.PACTUAL_LABEL, validationDS.getCol(validationDS.getIndependent()));
 
-                // Add idle
-                List<Double> idle = new ArrayList<Double>();
-                while(idle.size() < validationDS.getSize()) idle.add(CoreConfiguration.POWER_IDLE);
-                results.put(CoreConfiguration.PIDLE_LABEL, idle);
-
                 List<Double>  predicted_cpu = cpu.estimateIndependent(validationDS);
                 results.put(CoreConfiguration.PCPU_LABEL, predicted_cpu);
 
                 List<Double>  predicted_memory = memory.estimateIndependent(validationDS);
                 results.put(CoreConfiguration.PMEM_LABEL, predicted_memory);
 
-                DataSet resultsDS = new DataSet(results);
+                DataSet resultsDS = new DataSet(results).addConstantColumn(CoreConfiguration.PIDLE_LABEL, CoreConfiguration.POWER_IDLE);
                 resultsDS.setIndependent(CoreConfiguration.PACTUAL_LABEL);
 
                 this.estimatedDS = resultsDS.order();
-                logger.info("Esimation file: " + this.estimatedDS.getFilePath());
+                logger.info("Estimation done with " + this.estimatedDS.getSize() + " samples.");
                 return this.estimatedDS;
         }
 
@@ -205,11 +195,6 @@ public class PowerModelEstimator {
                 HashMap<String, List<Double>> results = new HashMap<String, List<Double>>();
                 results.put(CoreConfiguration.PACTUAL_LABEL, validationDS.getCol(validationDS.getIndependent()));
 
-                // Add idle
-                List<Double> idle = new ArrayList<Double>();
-                while(idle.size() < validationDS.getSize()) idle.add(CoreConfiguration.POWER_IDLE);
-                results.put(CoreConfiguration.PIDLE_LABEL, idle);
-
                 List<Double>  predicted_cpu = cpu.estimateIndependent(validationDS);
                 results.put(CoreConfiguration.PCPU_LABEL, predicted_cpu);
 
@@ -219,11 +204,11 @@ public class PowerModelEstimator {
                 List<Double>  predicted_disk = disk.estimateIndependent(validationDS);
                 results.put(CoreConfiguration.PDISK_LABEL, predicted_disk);
 
-                DataSet resultsDS = new DataSet(results);
+                DataSet resultsDS = new DataSet(results).addConstantColumn(CoreConfiguration.PIDLE_LABEL, CoreConfiguration.POWER_IDLE);
                 resultsDS.setIndependent(CoreConfiguration.PACTUAL_LABEL);
 
                 this.estimatedDS = resultsDS.order();
-                logger.info("Esimation file: " + this.estimatedDS.getFilePath());
+                logger.info("Estimation done with " + this.estimatedDS.getSize() + " samples.");
                 return this.estimatedDS;
         }
 
@@ -234,11 +219,6 @@ public class PowerModelEstimator {
 
                 results.put(CoreConfiguration.PACTUAL_LABEL, validationDS.getCol(validationDS.getIndependent()));
 
-                // Add idle
-                List<Double> idle = new ArrayList<Double>();
-                while(idle.size() < validationDS.getSize()) idle.add(CoreConfiguration.POWER_IDLE);
-                results.put(CoreConfiguration.PIDLE_LABEL, idle);
-
                 List<Double>  predicted_cpu = cpu.estimateIndependent(validationDS);
                 results.put(CoreConfiguration.PCPU_LABEL, predicted_cpu);
 
@@ -251,11 +231,11 @@ public class PowerModelEstimator {
                 List<Double>  predicted_network = network.estimateIndependent(validationDS);
                 results.put(CoreConfiguration.PNET_LABEL, predicted_network);
 
-                DataSet resultsDS = new DataSet(results);
+                DataSet resultsDS = new DataSet(results).addConstantColumn(CoreConfiguration.PIDLE_LABEL, CoreConfiguration.POWER_IDLE);
                 resultsDS.setIndependent(CoreConfiguration.PACTUAL_LABEL);
 
                 this.estimatedDS = resultsDS.order();
-                logger.info("Esimation file: " + this.estimatedDS.getFilePath());
+                logger.info("Estimation done with " + this.estimatedDS.getSize() + " samples.");
                 return this.estimatedDS;
         }
         public DataSet estimateCustom(ResourceModel custom){
@@ -264,20 +244,14 @@ public class PowerModelEstimator {
 
                 results.put(CoreConfiguration.PACTUAL_LABEL, validationDS.getCol(validationDS.getIndependent()));
 
-                // Add idle
-                List<Double> idle = new ArrayList<Double>();
-                while(idle.size() < validationDS.getSize()) idle.add(CoreConfiguration.POWER_IDLE);
-                results.put(CoreConfiguration.PIDLE_LABEL, idle);
-
-
                 List<Double>  predicted_custom = custom.estimateIndependent(validationDS);
                 results.put(CoreConfiguration.PPREDICTED_LABEL, predicted_custom);
 
-                DataSet resultsDS = new DataSet(results);
+                DataSet resultsDS = new DataSet(results).addConstantColumn(CoreConfiguration.PIDLE_LABEL, CoreConfiguration.POWER_IDLE);
                 resultsDS.setIndependent(CoreConfiguration.PACTUAL_LABEL);
 
                 this.estimatedDS = resultsDS.order();
-                logger.info("Esimation file: " + this.estimatedDS.getFilePath());
+                logger.info("Estimation done with " + this.estimatedDS.getSize() + " samples.");
                 return this.estimatedDS;
         }
 
@@ -298,7 +272,7 @@ public class PowerModelEstimator {
                 resultsDS.setIndependent(CoreConfiguration.PACTUAL_LABEL);
 
                 this.estimatedDS = resultsDS.order();
-                logger.info("Esimation file: " + this.estimatedDS.getFilePath());
+                logger.info("Estimation done with " + this.estimatedDS.getSize() + " samples.");
                 return this.estimatedDS;
         }
 
@@ -307,20 +281,14 @@ public class PowerModelEstimator {
 
                 results.put(CoreConfiguration.PACTUAL_LABEL, validationDS.getCol(validationDS.getIndependent()));
 
-                // Add idle
-                List<Double> idle = new ArrayList<Double>();
-                while(idle.size() < validationDS.getSize()) idle.add(CoreConfiguration.POWER_IDLE);
-                results.put(CoreConfiguration.PIDLE_LABEL, idle);
-
-
                 List<Double>  predicted_custom = custom.estimateIndependent2Step(validationDS);
                 results.put(CoreConfiguration.PPREDICTED_LABEL, predicted_custom);
 
-                DataSet resultsDS = new DataSet(results);
+                DataSet resultsDS = new DataSet(results).addConstantColumn(CoreConfiguration.PIDLE_LABEL, CoreConfiguration.POWER_IDLE);
                 resultsDS.setIndependent(CoreConfiguration.PACTUAL_LABEL);
 
                 this.estimatedDS = resultsDS.order();
-                logger.info("Esimation file: " + this.estimatedDS.getFilePath());
+                logger.info("Estimation done with " + this.estimatedDS.getSize() + " samples.");
                 return this.estimatedDS;
 
 
@@ -16,7 +16,6 @@ package es.bsc.autonomic.powermodeller;
 import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
 import es.bsc.autonomic.powermodeller.tools.VariableParser;
 import es.bsc.autonomic.powermodeller.tools.featureScaling.DataStandardization;
-import es.bsc.autonomic.powermodeller.tools.filters.FilterTool;
 import org.apache.log4j.Logger;
 
 import javax.swing.plaf.synth.SynthOptionPaneUI;
@@ -35,6 +34,8 @@ public class PowerModelGenerator {
 
     public DataSet trainingCPU, trainingMemory, trainingDisk, trainingNetwork;
     private ResourceModel cpu, memory, disk, network;
+    // Stage cache keys of the models above
+    private String cpuKey, memoryKey, diskKey, networkKey;
     private List<String> trainingCPUDataSetPaths;
     private List<String> trainingMemoryDataSetPaths;
     private List<String> trainingDiskDataSetPaths;
@@ -60,7 +61,7 @@ public class PowerModelGenerator {
 
             if (CoreConfiguration.MODEL_TYPE.equals(CoreConfiguration.GLOBAL_MODEL)){
 
-                fileToProcess = DataSet.join(loadTrainingDataSets(CoreConfiguration.TRAINING_GLOBAL)).getFilePath();
+                fileToProcess = DataSet.joinDataSetsToFile(CoreConfiguration.TRAINING_GLOBAL);
                 logger.info ("Training global: " + fileToProcess);
                 dataStandardization = new DataStandardization();
                 dataStandardization.generateStandardization(fileToProcess, CoreConfiguration.INDEPENDENT);
@@ -80,7 +81,7 @@ public class PowerModelGenerator {
                 for (String file : CoreConfiguration.TRAINING_NETWORK)
                     dataToJoin.add(file);
 
-                fileToProcess = DataSet.joinDataSetsFromPath(dataToJoin).getFilePath();
+                fileToProcess = DataSet.joinDataSetsToFile(dataToJoin);
 
                 trainingGlobalDataSetPaths = new ArrayList<String>();
                 trainingGlobalDataSetPaths.add(fileToProcess);
@@ -160,31 +161,24 @@ public class PowerModelGenerator {
 
     }
 
-    private List<DataSet> loadTrainingDataSets(List<String> dataSetPaths) {
-        List<DataSet> ret = new ArrayList<DataSet>();
-
-        for (String filePath : dataSetPaths) {
-            DataSet temp = new DataSet(filePath);
-            if (CoreConfiguration.PREPROCESS_DATASET) {
-                temp = FilterTool.applyPreprocessingFilter(CoreConfiguration.FILTER_TYPE, temp);
-            }
-            ret.add(temp);
+    private void buildModelCPU() {
+        cpuKey = StageCache.key("cpu", trainingCPUDataSetPaths, CONF_MODEL_CPU, CoreConfiguration.CLASSIFIER, null);
+        cpu = StageCache.get(cpuKey);
+        if (cpu != null) {
+            return;
         }
-        return ret;
-
-    }
 
-    private void buildModelCPU() {
         logger.debug("Generating CPU training DataSet");
 
-        trainingCPU = DataSet.join(loadTrainingDataSets(trainingCPUDataSetPaths));
+        trainingCPU = DataSet.joinDataSetsFromPath(trainingCPUDataSetPaths);
 
-        logger.info("Generated CPU TRAINING DataSet with " + trainingCPU.getSize() + " samples. File: " + trainingCPU.getFilePath());
+        logger.info("Generated CPU TRAINING DataSet with " + trainingCPU.getSize() + " samples.");
 
         VariableParser varParserCPU_CPU = new VariableParser(CONF_MODEL_CPU, trainingCPU.getHeader());
         varParserCPU_CPU.getColumns();
 
         cpu = new ResourceModel(trainingCPU, varParserCPU_CPU);
+        StageCache.put(cpuKey, cpu);
 
         logger.info("Generated CPU Model: ");
         logger.info(cpu.getClassifier());
@@ -200,19 +194,25 @@ public class PowerModelGenerator {
     }
 
     private void buildModelMemory() {
+        memoryKey = StageCache.key("memory", trainingMemoryDataSetPaths, CONF_MODEL_MEMORY, CoreConfiguration.CLASSIFIER, cpuKey);
+        memory = StageCache.get(memoryKey);
+        if (memory != null) {
+            return;
+        }
+
         logger.debug("Generating Memory training DataSet");
 
-        trainingMemory = DataSet.join(loadTrainingDataSets(trainingMemoryDataSetPaths));
-        logger.info("Generated MEMORY TRAINING DataSet with " + trainingMemory.getSize() + " samples. File: " + trainingMemory.getFilePath());
+        trainingMemory = DataSet.joinDataSetsFromPath(trainingMemoryDataSetPaths);
+        logger.info("Generated MEMORY TRAINING DataSet with " + trainingMemory.getSize() + " samples.");
 
         List<Double> predictedCpu = cpu.estimateIndependent(trainingMemory);
 
         DataSet trainingMemWithoutCpu = trainingMemory.substractFromColumn(trainingMemory.getIndependent(), CoreConfiguration.P_PCPU, predictedCpu);
-        logger.info("P-Pcpu path: " + trainingMemWithoutCpu.getFilePath());
 
         VariableParser varParserMemory = new VariableParser(CONF_MODEL_MEMORY, trainingMemWithoutCpu.getHeader());
 
         memory = new ResourceModel(trainingMemWithoutCpu, varParserMemory);
+        StageCache.put(memoryKey, memory);
 
         logger.info("Generated Memory Model: ");
         logger.info(memory.getClassifier());
@@ -221,11 +221,16 @@ public class PowerModelGenerator {
 
 
     private void buildModelDisk() {
+        diskKey = StageCache.key("disk", trainingDiskDataSetPaths, CONF_MODEL_DISK, CoreConfiguration.CLASSIFIER, memoryKey);
+        disk = StageCache.get(diskKey);
+        if (disk != null) {
+            return;
+        }
 
         logger.debug("Generating Disk training DataSet");
 
-        trainingDisk = DataSet.join(loadTrainingDataSets(trainingDiskDataSetPaths));
-        logger.info("Generated DISK TRAINING DataSet with " + trainingDisk.getSize() + " samples. File: " + trainingDisk.getFilePath());
+        trainingDisk = DataSet.joinDataSetsFromPath(trainingDiskDataSetPaths);
+        logger.info("Generated DISK TRAINING DataSet with " + trainingDisk.getSize() + " samples.");
 
         List<Double> predictedCpu = cpu.estimateIndependent(trainingDisk);
         DataSet trainingDiskWithoutCpu = trainingDisk.substractFromColumn(trainingDisk.getIndependent(), CoreConfiguration.P_PCPU, predictedCpu);
@@ -236,17 +241,23 @@ public class PowerModelGenerator {
         VariableParser varParserDisk = new VariableParser(CONF_MODEL_DISK, trainingDiskWithoutCpuMemory.getHeader());
 
         disk = new ResourceModel(trainingDiskWithoutCpuMemory, varParserDisk);
+        StageCache.put(diskKey, disk);
         logger.info("Generated Disk Model: ");
         logger.info(disk.getClassifier());
 
     }
 
     private void buildModelNetwork() {
+        networkKey = StageCache.key("network", trainingNetworkDataSetPaths, CONF_MODEL_NETWORK, CoreConfiguration.CLASSIFIER, diskKey);
+        network = StageCache.get(networkKey);
+        if (network != null) {
+            return;
+        }
 
         logger.debug("Generating Network training DataSet");
 
-        trainingNetwork = DataSet.join(loadTrainingDataSets(trainingNetworkDataSetPaths));
-        logger.info("Generated NETWORK TRAINING DataSet with " + trainingNetwork.getSize() + " samples. File: " + trainingNetwork.getFilePath());
+        trainingNetwork = DataSet.joinDataSetsFromPath(trainingNetworkDataSetPaths);
+        logger.info("Generated NETWORK TRAINING DataSet with " + trainingNetwork.getSize() + " samples.");
 
         List<Double> predictedCpu = cpu.estimateIndependent(trainingNetwork);
         DataSet trainingNetworkWithoutCpu = trainingNetwork.substractFromColumn(trainingNetwork.getIndependent(), CoreConfiguration.P_PCPU, predictedCpu);
@@ -259,6 +270,7 @@ public class PowerModelGenerator {
 
         VariableParser varParserNetwork = new VariableParser(CONF_MODEL_NETWORK, trainingNetworkWithoutCpuMemoryDisk.getHeader());
         network = new ResourceModel(trainingNetworkWithoutCpuMemoryDisk, varParserNetwork);
+        StageCache.put(networkKey, network);
         logger.info("Generated Network Model: ");
         logger.info(network.getClassifier());
     }
@@ -266,9 +278,9 @@ public class PowerModelGenerator {
     private ResourceModel buildModelResource(List<String> trainingFile, String varParConf) {
 
         logger.debug("Generating training DataSet");
-        DataSet training = DataSet.join(loadTrainingDataSets(trainingFile));
+        DataSet training = DataSet.joinDataSetsFromPath(trainingFile);
 
-        logger.info("Generated DataSet with " + training.getSize() + " samples: " + training.getFilePath());
+        logger.info("Generated DataSet with " + training.getSize() + " samples.");
 
         VariableParser varParserCustom = new VariableParser(varParConf, training.getHeader());
         varParserCustom.getColumns();
@@ -280,6 +292,10 @@ public class PowerModelGenerator {
         return custom;
     }
 
+    /*
+    Each level trains the levels below it first. Stages already trained with the same data, variables and
+    classifier are taken from the StageCache instead of being trained again.
+    */
     public void generateModelCPU() {
         this.buildModelCPU();
     }
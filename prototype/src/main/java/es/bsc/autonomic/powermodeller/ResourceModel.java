@@ -13,15 +13,31 @@
 
 package es.bsc.autonomic.powermodeller;
 
+import es.bsc.autonomic.powermodeller.exceptions.ResourceModelException;
 import es.bsc.autonomic.powermodeller.exceptions.WekaWrapperException;
+import es.bsc.autonomic.powermodeller.tools.DerivedMetrics;
 import es.bsc.autonomic.powermodeller.tools.VariableParser;
+import es.bsc.autonomic.powermodeller.tools.classifiers.BatchPredictor;
+import es.bsc.autonomic.powermodeller.tools.classifiers.SerializedClassifier;
 import es.bsc.autonomic.powermodeller.tools.classifiers.WekaWrapper;
 import org.apache.log4j.Logger;
 import weka.classifiers.Classifier;
-
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static es.bsc.autonomic.powermodeller.tools.classifiers.WekaWrapper.evaluateDataset;
 
@@ -32,6 +48,22 @@ public class ResourceModel implements Serializable{
     private VariableParser variableParser;
     private List<String> originalHeader;
     private String independent;
+    // Metrics expected by predict(), in order
+    private List<String> inputHeader;
+
+    // Single-row prediction state, built when the model is created or loaded
+    private transient DerivedMetrics derivedMetrics;
+    // Source of each classifier attribute: index in the input row if >= 0, derived metric -(k+1) otherwise
+    private transient int[] attributeSources;
+    private transient int classIndex;
+    private transient int requiredInputs;
+    private transient Map<String, Integer> inputIndex;
+    private transient double[] inputScratch;
+    private transient double[] registerScratch;
+    private transient double[] derivedScratch;
+    private transient double[] instanceValues;
+    private transient Instance instance;
+    private transient BatchPredictor batchPredictor;
 
     final static Logger logger = Logger.getLogger(ResourceModel.class);
 
@@ -49,7 +81,9 @@ public class ResourceModel implements Serializable{
         variableParser = varParser;
         originalHeader = trainingDSForModel.getHeader();
         independent = trainingDSForModel.getIndependent();
+        inputHeader = varParser.getDataSetHeader();
 
+        compilePredictor();
     }
 
     public ResourceModel(DataSet training, String classifier){
@@ -58,20 +92,302 @@ public class ResourceModel implements Serializable{
         logger.debug("Ordered dataset. Generating classifier...");
         model = WekaWrapper.generateClassifier(training, classifier);
         originalHeader = training.getHeader();
+        inputHeader = training.getHeader();
         logger.debug("Model built.");
 
+        compilePredictor();
+
+    }
+
+    /**
+     * Model read from a ModelBundle, with its new metrics and predictor already compiled.
+     */
+    private ResourceModel(Classifier model, VariableParser variableParser, List<String> originalHeader, String independent,
+                          List<String> inputHeader, DerivedMetrics derivedMetrics, BatchPredictor batchPredictor) {
+        this.model = model;
+        this.variableParser = variableParser;
+        this.originalHeader = originalHeader;
+        this.independent = independent;
+        this.inputHeader = inputHeader;
+        compilePredictor(derivedMetrics, batchPredictor);
     }
 
     public Classifier getClassifier() {
         return model;
     }
 
+    /**
+     * Metrics expected by predict(double[]), in order. This is the header of the DataSet used for training,
+     * before new metrics were added.
+     */
+    public List<String> getInputHeader() {
+        return inputHeader;
+    }
+
+    /**
+     * Estimates the independent variable for a single sample. Column positions and new metrics are resolved
+     * when the model is built or loaded, so this only evaluates the expressions and the classifier: nothing
+     * is allocated by this class and no file is written. Not safe for concurrent use, see concurrent().
+     * @param rawMetrics Values of the metrics in the order of getInputHeader(). The value given for the
+     *                   independent variable, if any, is ignored and trailing metrics the model does not
+     *                   use can be left out. NaN means missing.
+     */
+    public double predict(double[] rawMetrics) {
+        fillInstance(rawMetrics, registerScratch, derivedScratch, instanceValues);
+        return batchPredictor.predict(instanceValues, instance);
+    }
+
+    /**
+     * Estimates the independent variable for a block of samples given by columns. Linear regression and
+     * REPTree models are evaluated without going through Weka row by row. Not safe for concurrent use,
+     * see concurrent().
+     * @param rawColumns Columns of the metrics in the order of getInputHeader(), with the same rules as
+     *                   predict(double[]).
+     * @param rows Number of samples, from the beginning of the columns.
+     */
+    public double[] predict(double[][] rawColumns, int rows) {
+        return batchPredictor.predict(assembleColumns(rawColumns, rows), rows);
+    }
+
+    /**
+     * Same as predict(double[]) but taking the metrics by name. Metrics not present in the map are missing.
+     */
+    public double predict(Map<String, Double> rawMetrics) {
+        for (int i = 0; i < inputScratch.length; i++) {
+            Double value = rawMetrics.get(inputHeader.get(i));
+            inputScratch[i] = value != null ? value : Utils.missingValue();
+        }
+        return predict(inputScratch);
+    }
+
+    /**
+     * Returns a view of this model that can be used from several threads at once. It gives the same
+     * results as predict() on this model.
+     */
+    public ConcurrentResourceModel concurrent() {
+        return new ConcurrentResourceModel(this);
+    }
+
+    /**
+     * Writes the attribute values of the classifier for the given sample into values, using registers and
+     * derived as scratch space. Only reads the state of this model.
+     */
+    void fillInstance(double[] rawMetrics, double[] registers, double[] derived, double[] values) {
+        if (rawMetrics.length < requiredInputs) {
+            logger.error("Expected " + requiredInputs + " metrics but got " + rawMetrics.length);
+            throw new ResourceModelException("Expected " + requiredInputs + " metrics but got " + rawMetrics.length);
+        }
+
+        if (derivedMetrics != null) {
+            derivedMetrics.evaluateRow(rawMetrics, registers, derived);
+        }
+        for (int j = 0; j < attributeSources.length; j++) {
+            int source = attributeSources[j];
+            if (j == classIndex) {
+                values[j] = Utils.missingValue();
+            } else {
+                values[j] = source >= 0 ? rawMetrics[source] : derived[-source - 1];
+            }
+        }
+    }
+
+    /**
+     * Columns of the attributes of the classifier for the given samples, the class column being null. Only
+     * reads the state of this model.
+     */
+    double[][] assembleColumns(double[][] rawColumns, int rows) {
+        if (rawColumns.length < requiredInputs) {
+            logger.error("Expected " + requiredInputs + " metrics but got " + rawColumns.length);
+            throw new ResourceModelException("Expected " + requiredInputs + " metrics but got " + rawColumns.length);
+        }
+
+        double[][] derived = derivedMetrics != null ? derivedMetrics.evaluate(rawColumns, rows) : null;
+        double[][] columns = new double[attributeSources.length][];
+        for (int j = 0; j < attributeSources.length; j++) {
+            int source = attributeSources[j];
+            if (j != classIndex) {
+                columns[j] = source >= 0 ? rawColumns[source] : derived[-source - 1];
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Empty dataset with the attributes of the classifier, to attach instances to.
+     */
+    Instances newHeader() {
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>(originalHeader.size());
+        for (String metric : originalHeader) {
+            attributes.add(new Attribute(metric));
+        }
+        Instances dataset = new Instances("predict", attributes, 0);
+        dataset.setClassIndex(classIndex);
+        return dataset;
+    }
+
+    int getOperationCount() {
+        return derivedMetrics != null ? derivedMetrics.getOperationCount() : 0;
+    }
+
+    int getDerivedCount() {
+        return derivedMetrics != null ? derivedMetrics.getNames().size() : 0;
+    }
+
+    int getAttributeCount() {
+        return attributeSources.length;
+    }
+
+    BatchPredictor getBatchPredictor() {
+        return batchPredictor;
+    }
+
+    /**
+     * Resolves where each attribute of the classifier comes from and compiles the new metrics it needs.
+     */
+    private void compilePredictor() {
+        if (inputHeader == null) {
+            inputHeader = variableParser != null ? variableParser.getDataSetHeader() : originalHeader;
+        }
+
+        // Only the new metrics used by the classifier are compiled
+        Map<String, String> expressions = new LinkedHashMap<String, String>();
+        if (variableParser != null) {
+            for (String metric : originalHeader) {
+                String expression = variableParser.getNewMetrics().get(metric);
+                if (expression != null) {
+                    expressions.put(metric, expression);
+                }
+            }
+        }
+        compilePredictor(expressions.isEmpty() ? null : new DerivedMetrics(expressions), null);
+    }
+
+    /**
+     * Same as compilePredictor(), with the new metrics already compiled.
+     * @param predictor Predictor of the classifier, or null to build it.
+     */
+    private void compilePredictor(DerivedMetrics derived, BatchPredictor predictor) {
+        List<String> header = inputHeader;
+        inputIndex = new HashMap<String, Integer>();
+        for (int i = header.size() - 1; i >= 0; i--) {
+            inputIndex.put(header.get(i), i);
+        }
+
+        derivedMetrics = derived;
+        requiredInputs = derivedMetrics != null ? derivedMetrics.getInputCount() : 0;
+        if (requiredInputs > header.size()) {
+            logger.error("New metrics refer to metrics not present in " + header);
+            throw new ResourceModelException("New metrics refer to metrics not present in " + header);
+        }
+
+        // order() puts the independent variable first, and it is the class of the classifier
+        classIndex = 0;
+        attributeSources = new int[originalHeader.size()];
+        List<String> derivedNames = derivedMetrics != null ? derivedMetrics.getNames() : new ArrayList<String>();
+        for (int j = 0; j < originalHeader.size(); j++) {
+            String metric = originalHeader.get(j);
+            Integer position = inputIndex.get(metric);
+            if (derivedNames.contains(metric)) {
+                attributeSources[j] = -(derivedNames.indexOf(metric) + 1);
+            } else if (position != null) {
+                attributeSources[j] = position;
+                if (j != classIndex) {
+                    requiredInputs = Math.max(requiredInputs, position + 1);
+                }
+            } else if (j == classIndex) {
+                // Not used, the class is always missing
+                attributeSources[j] = 0;
+            } else {
+                logger.error("Metric " + metric + " used by the model is not available in " + header);
+                throw new ResourceModelException("Metric " + metric + " used by the model is not available in " + header);
+            }
+        }
+
+        inputScratch = new double[header.size()];
+        registerScratch = new double[derivedMetrics != null ? derivedMetrics.getOperationCount() : 0];
+        derivedScratch = new double[derivedNames.size()];
+        instanceValues = new double[originalHeader.size()];
+
+        Instances dataset = newHeader();
+        // The instance keeps a reference to instanceValues, so values are written there directly
+        instance = new DenseInstance(1.0, instanceValues);
+        instance.setDataset(dataset);
+
+        batchPredictor = predictor != null ? predictor : BatchPredictor.compile(model, originalHeader, classIndex);
+    }
+
+    /**
+     * Writes this model for a ModelBundle: headers, variables, the compiled new metrics, the classifier and
+     * its flat form. The classifier is read back as a SerializedClassifier, so it is only deserialized if the
+     * flat form can not estimate a sample by itself.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        ModelBundle.writeStrings(out, originalHeader);
+        ModelBundle.writeStrings(out, inputHeader);
+        ModelBundle.writeString(out, independent);
+
+        out.writeBoolean(variableParser != null);
+        if (variableParser != null) {
+            ModelBundle.writeStrings(out, variableParser.getDataSetHeader());
+            ModelBundle.writeStrings(out, variableParser.getColumns());
+            List<String> names = new ArrayList<String>(variableParser.getNewMetrics().keySet());
+            List<String> expressions = new ArrayList<String>(names.size());
+            for (String name : names) {
+                expressions.add(variableParser.getNewMetrics().get(name));
+            }
+            ModelBundle.writeStrings(out, names);
+            ModelBundle.writeStrings(out, expressions);
+        }
+
+        out.writeBoolean(derivedMetrics != null);
+        if (derivedMetrics != null) {
+            derivedMetrics.writeTo(out);
+        }
+
+        ModelBundle.writeBytes(out, SerializedClassifier.serialize(model));
+        batchPredictor.writeTo(out);
+    }
+
+    /**
+     * Reads a model written by writeTo().
+     */
+    static ResourceModel readFrom(ByteBuffer in) {
+        List<String> originalHeader = ModelBundle.readStrings(in);
+        List<String> inputHeader = ModelBundle.readStrings(in);
+        String independent = ModelBundle.readString(in);
+
+        VariableParser parser = null;
+        if (ModelBundle.readBoolean(in)) {
+            List<String> dataSetHeader = ModelBundle.readStrings(in);
+            List<String> columns = ModelBundle.readStrings(in);
+            List<String> names = ModelBundle.readStrings(in);
+            List<String> expressions = ModelBundle.readStrings(in);
+            HashMap<String, String> newMetrics = new HashMap<String, String>();
+            for (int i = 0; i < names.size(); i++) {
+                newMetrics.put(names.get(i), expressions.get(i));
+            }
+            parser = new VariableParser(dataSetHeader, columns, newMetrics);
+        }
+
+        DerivedMetrics derived = ModelBundle.readBoolean(in) ? DerivedMetrics.readFrom(in) : null;
+
+        Classifier classifier = new SerializedClassifier(ModelBundle.readBytes(in));
+        // order() puts the independent variable first, and it is the class of the classifier
+        BatchPredictor predictor = BatchPredictor.readFrom(in, classifier, originalHeader, 0);
+        return new ResourceModel(classifier, parser, originalHeader, independent, inputHeader, derived, predictor);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        compilePredictor();
+    }
+
     public List<Double> estimateIndependent(DataSet validationDataset, VariableParser validationVarParser) {
 
         DataSet validationDS = WekaWrapper.processDataSet(validationDataset, validationVarParser);
 
         validationDS = validationDS.order();
-        if (!validationDS.getHeader().containsAll(originalHeader)){
+        if (!validationDS.containsColumns(originalHeader)){
             logger.error("Incompatible training and validation dataset. Training: " + originalHeader.toString() + " Validation: " + validationDS.getHeaderString());
             throw new WekaWrapperException("Incompatible training and validation dataset. Training: " + originalHeader.toString() + " Validation: " + validationDS.getHeaderString());
         }
@@ -0,0 +1,55 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+/**
+ * View of a subset of the rows of another column. It keeps the parent storage alive.
+ */
+class SelectedColumn extends Column {
+
+    private final Column parent;
+    private final int[] rows;
+
+    SelectedColumn(Column parent, int[] rows) {
+        this.parent = parent;
+        this.rows = rows;
+    }
+
+    @Override
+    double get(int row) {
+        return parent.get(rows[row]);
+    }
+
+    @Override
+    int size() {
+        return rows.length;
+    }
+
+    @Override
+    boolean isIntegral(int row) {
+        return parent.isIntegral(rows[row]);
+    }
+
+    /**
+     * Selecting rows of a selection is resolved against the parent, so views never nest.
+     */
+    @Override
+    Column select(int[] selectedRows) {
+        int[] parentRows = new int[selectedRows.length];
+        for (int i = 0; i < selectedRows.length; i++) {
+            parentRows[i] = rows[selectedRows[i]];
+        }
+        return new SelectedColumn(parent, parentRows);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+/**
+ * View of another column with a value subtracted from every cell. It keeps the parent storage alive.
+ */
+class ShiftedColumn extends Column {
+
+    private final Column parent;
+    private final double subtracted;
+
+    ShiftedColumn(Column parent, double subtracted) {
+        this.parent = parent;
+        this.subtracted = subtracted;
+    }
+
+    @Override
+    double get(int row) {
+        return parent.get(row) - subtracted;
+    }
+
+    @Override
+    int size() {
+        return parent.size();
+    }
+
+    @Override
+    boolean isIntegral(int row) {
+        return false;
+    }
+
+    @Override
+    void copyTo(double[] dest, int offset) {
+        parent.copyTo(dest, offset);
+        int size = parent.size();
+        for (int i = 0; i < size; i++) {
+            dest[offset + i] -= subtracted;
+        }
+    }
+
+    @Override
+    Column select(int[] rows) {
+        return new ShiftedColumn(parent.select(rows), subtracted);
+    }
+}
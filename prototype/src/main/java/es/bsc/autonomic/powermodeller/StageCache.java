@@ -0,0 +1,281 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.exceptions.StageCacheException;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memoises the ResourceModels trained by each stage of PowerModelGenerator.
+ *
+ * A stage is identified by a key computed from the contents of its training files and variable
+ * configuration, the settings that change the training data read from them (independent variable, CSV
+ * delimiter, preprocessing filter, moving average window, idle power and invalid-values policy), the
+ * classifier and the key of the stage it depends on, so it is trained only once per run whatever the level
+ * requested. The digest of each file is computed once per run while its size and modification time stay the
+ * same. When stage-cache-dir is set the models are also stored there and reused by
+ * later runs with the same inputs.
+ */
+public final class StageCache {
+
+    final static Logger logger = Logger.getLogger(StageCache.class);
+
+    private static final String EXTENSION = ".stage";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentMap<String, ResourceModel> models = new ConcurrentHashMap<String, ResourceModel>();
+    private static final AtomicInteger hits = new AtomicInteger();
+    private static final AtomicInteger misses = new AtomicInteger();
+    // Digests of the files read, by canonical path, length and modification time
+    private static final ConcurrentMap<String, String> fileDigests = new ConcurrentHashMap<String, String>();
+
+    private StageCache() {
+    }
+
+    /**
+     * Computes the key of a stage.
+     * @param stage Name of the stage.
+     * @param trainingFiles Training files of the stage. Their contents are part of the key, not their paths.
+     * @param variablesConf Variable configuration file of the stage.
+     * @param classifier Classifier used to train the stage.
+     * @param upstream Key of the stage whose estimations are subtracted from the training data, or null.
+     */
+    public static String key(String stage, List<String> trainingFiles, String variablesConf, String classifier, String upstream) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            update(digest, stage);
+            update(digest, classifier.toLowerCase());
+            update(digest, upstream != null ? upstream : "");
+            update(digest, getReadSettings());
+            updateFile(digest, variablesConf);
+            for (String file : trainingFiles) {
+                updateFile(digest, file);
+            }
+            return stage + "-" + toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("Error while computing stage key", e);
+            throw new StageCacheException("Error while computing stage key", e);
+        }
+    }
+
+    /**
+     * Returns the model of the stage if it was already trained in this run or stored in stage-cache-dir.
+     */
+    public static ResourceModel get(String key) {
+        ResourceModel model = models.get(key);
+        if (model == null) {
+            model = load(key);
+            if (model != null) {
+                ResourceModel previous = models.putIfAbsent(key, model);
+                model = previous != null ? previous : model;
+            }
+        }
+
+        if (model != null) {
+            hits.incrementAndGet();
+            logger.info("Reusing trained stage " + key);
+        } else {
+            misses.incrementAndGet();
+        }
+        return model;
+    }
+
+    /**
+     * Keeps the trained model of the stage, storing it in stage-cache-dir if set.
+     */
+    public static void put(String key, ResourceModel model) {
+        models.put(key, model);
+        store(key, model);
+    }
+
+    /**
+     * Forgets the models kept in memory. Stored models are not deleted.
+     */
+    public static void clear() {
+        models.clear();
+    }
+
+    public static int getHits() {
+        return hits.get();
+    }
+
+    public static int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Settings applied to the training files when they are read, see DataSet.joinDataSetsFromPath().
+     */
+    private static String getReadSettings() {
+        return CoreConfiguration.INDEPENDENT + ";" + CoreConfiguration.CSV_DELIMITER + ";" +
+                CoreConfiguration.PREPROCESS_DATASET + ";" + CoreConfiguration.FILTER_TYPE + ";" +
+                CoreConfiguration.MOVING_AVG_WINDOW + ";" + CoreConfiguration.POWER_IDLE + ";" +
+                CoreConfiguration.INVALID_VALUES;
+    }
+
+    private static File getFile(String key) {
+        String dir = CoreConfiguration.STAGE_CACHE_DIR;
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        return new File(dir, key + EXTENSION);
+    }
+
+    private static ResourceModel load(String key) {
+        File file = getFile(key);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new FileInputStream(file));
+            return (ResourceModel) in.readObject();
+        } catch (Exception e) {
+            // An unreadable stage is trained again and overwritten
+            logger.warn("Ignoring stored stage " + file + ": " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void store(String key, ResourceModel model) {
+        File file = getFile(key);
+        if (file == null) {
+            return;
+        }
+
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            logger.error("Could not create stage cache directory " + dir);
+            throw new StageCacheException("Could not create stage cache directory " + dir);
+        }
+
+        // Written aside and renamed, so a run never sees a partially written stage
+        File partial = new File(dir, key + EXTENSION + ".part");
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new FileOutputStream(partial));
+            out.writeObject(model);
+            out.close();
+            out = null;
+            if (!partial.renameTo(file)) {
+                file.delete();
+                if (!partial.renameTo(file)) {
+                    throw new IOException("could not rename " + partial);
+                }
+            }
+            logger.debug("Stored stage " + key + " in " + file);
+        } catch (IOException e) {
+            logger.error("Error while storing stage " + key, e);
+            throw new StageCacheException("Error while storing stage " + key, e);
+        } finally {
+            closeQuietly(out);
+            partial.delete();
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        digest.update((byte) (bytes.length >>> 24));
+        digest.update((byte) (bytes.length >>> 16));
+        digest.update((byte) (bytes.length >>> 8));
+        digest.update((byte) bytes.length);
+        digest.update(bytes);
+    }
+
+    private static void updateFile(MessageDigest digest, String path) {
+        if (path == null) {
+            update(digest, "");
+            return;
+        }
+
+        File file = new File(path);
+        String fileKey;
+        try {
+            fileKey = file.getCanonicalPath() + ";" + file.length() + ";" + file.lastModified();
+        } catch (IOException e) {
+            logger.error("Error while reading " + path, e);
+            throw new StageCacheException("Error while reading " + path, e);
+        }
+        String fileDigest = fileDigests.get(fileKey);
+        if (fileDigest == null) {
+            fileDigest = digestFile(path);
+            fileDigests.put(fileKey, fileDigest);
+        }
+        update(digest, fileDigest);
+    }
+
+    private static String digestFile(String path) {
+        InputStream in = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            in = new FileInputStream(path);
+            byte[] buffer = new byte[65536];
+            int read;
+            long length = 0;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                length += read;
+            }
+            update(digest, Long.toString(length));
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("Error while computing stage key", e);
+            throw new StageCacheException("Error while computing stage key", e);
+        } catch (IOException e) {
+            logger.error("Error while reading " + path, e);
+            throw new StageCacheException("Error while reading " + path, e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.exceptions.PowerModelEstimatorException;
+import es.bsc.autonomic.powermodeller.tools.EstimationMetrics;
+import es.bsc.autonomic.powermodeller.tools.filters.FilterTool;
+import es.bsc.autonomic.powermodeller.tools.filters.MovingAverage;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the power of a stream of samples of raw metrics, of any length, with bounded memory.
+ *
+ * Samples go through the same steps as a validation DataSet read from a CSV file, one block at a time: the
+ * invalid-values policy, the configured preprocessing filter and the models of a ModelBundle (see
+ * BundleEstimator). A record is emitted for each sample estimated, with its timestamp if the samples have
+ * one, the actual power (Pactual) if they have the independent variable, the estimation of each resource
+ * model and the estimated power (Ppredicted).
+ *
+ * Memory is bounded by the block size and the moving average window, except for the samples held back by
+ * the interpolate policy until their metrics get a valid value. The accuracy is tracked with an
+ * EstimationMetrics.Accumulator, which keeps a fixed amount of state. Samples can be pushed with add(), which
+ * emits their records as soon as the filters allow, or pulled from an Iterator or a CSV Reader in blocks of
+ * block-size samples, so each model scores a whole block at once. Not safe for concurrent use.
+ */
+public final class StreamingEstimator {
+
+    final static Logger logger = Logger.getLogger(StreamingEstimator.class);
+
+    private static final String TIMESTAMP = "timestamp";
+
+    /**
+     * Receives the records of the estimated samples, in the order of getOutputHeader(). The same array is
+     * reused for every record, so it must be copied to be kept after accept() returns.
+     */
+    public interface Sink {
+        void accept(double[] record);
+    }
+
+    private final BundleEstimator estimator;
+    private final List<String> header;
+    private final List<String> outputHeader;
+    private final int timestampIndex;
+    private final int independentIndex;
+
+    private final InvalidValues invalidValues;
+    private final MovingAverage.Incremental movingAverage;
+    private final double idle;
+
+    private final EstimationMetrics.Accumulator accuracy = new EstimationMetrics.Accumulator();
+    private long received = 0;
+    private long emitted = 0;
+    private boolean finished = false;
+
+    /**
+     * @param bundle Models to estimate with.
+     * @param header Metrics of the samples, in order.
+     */
+    public StreamingEstimator(ModelBundle bundle, List<String> header) {
+        this.estimator = new BundleEstimator(bundle);
+        this.header = Collections.unmodifiableList(new ArrayList<String>(header));
+        this.timestampIndex = header.indexOf(TIMESTAMP);
+        this.independentIndex = header.indexOf(CoreConfiguration.INDEPENDENT);
+
+        List<String> output = new ArrayList<String>();
+        if (timestampIndex >= 0) {
+            output.add(TIMESTAMP);
+        }
+        if (independentIndex >= 0) {
+            output.add(CoreConfiguration.PACTUAL_LABEL);
+        }
+        output.addAll(estimator.getLabels());
+        this.outputHeader = Collections.unmodifiableList(output);
+
+        // Same steps as DataSetReader and the preprocessing filter of DataSet.joinDataSetsFromPath()
+        String filter = CoreConfiguration.PREPROCESS_DATASET ? CoreConfiguration.FILTER_TYPE : "";
+        String configured = CoreConfiguration.INVALID_VALUES;
+        InvalidValues.Policy policy = configured == null || configured.isEmpty() ? InvalidValues.Policy.KEEP : InvalidValues.Policy.parse(configured);
+        if (filter.equalsIgnoreCase(FilterTool.REMOVE_INVALID) && policy == InvalidValues.Policy.KEEP) {
+            policy = InvalidValues.Policy.DROP;
+        }
+        this.invalidValues = new InvalidValues(header, policy);
+        this.movingAverage = filter.equalsIgnoreCase(FilterTool.MOVING_AVG)
+                ? new MovingAverage.Incremental(header, CoreConfiguration.MOVING_AVG_WINDOW, true) : null;
+        this.idle = filter.equalsIgnoreCase(FilterTool.REMOVE_IDLE) ? CoreConfiguration.POWER_IDLE : 0;
+    }
+
+    public List<String> getHeader() {
+        return header;
+    }
+
+    public List<String> getOutputHeader() {
+        return outputHeader;
+    }
+
+    /**
+     * Adds the next sample and emits the records that can be estimated so far. With a centred moving
+     * average, the record of a sample is emitted once the samples after it have been added.
+     */
+    public void add(double[] sample, Sink sink) {
+        double[][] block = new double[header.size()][1];
+        setRow(block, 0, sample);
+        process(block, 1, false, sink);
+    }
+
+    /**
+     * Emits the records of the samples still held back, at the end of the stream.
+     */
+    public void finish(Sink sink) {
+        if (!finished) {
+            process(new double[header.size()][0], 0, true, sink);
+        }
+    }
+
+    /**
+     * Estimates all the samples of an iterator, in blocks of the given size, and finishes the stream.
+     */
+    public void estimate(Iterator<double[]> samples, int blockSize, Sink sink) {
+        int size = Math.max(1, blockSize);
+        double[][] block = new double[header.size()][size];
+        int rows = 0;
+        while (samples.hasNext()) {
+            setRow(block, rows++, samples.next());
+            if (rows == size) {
+                process(block, rows, false, sink);
+                rows = 0;
+            }
+        }
+        process(block, rows, true, sink);
+    }
+
+    /**
+     * Estimates the samples of a CSV stream, whose header must be that of this estimator, and writes the
+     * records as CSV. Empty and non-numeric values are missing values.
+     */
+    public void estimate(Reader in, Writer out, int blockSize) throws IOException {
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        String headerLine = reader.readLine();
+        if (headerLine == null || !split(headerLine, CoreConfiguration.CSV_DELIMITER).equals(header)) {
+            logger.error("Expected the header " + header + " but got " + headerLine);
+            throw new PowerModelEstimatorException("Expected the header " + header + " but got " + headerLine);
+        }
+        estimateLines(reader, out, blockSize);
+    }
+
+    /**
+     * Estimates the samples of a CSV stream with the models of the bundle and writes the records as CSV.
+     * @return The estimator, for its accuracy and invalid values report.
+     */
+    public static StreamingEstimator estimate(ModelBundle bundle, Reader in, Writer out, int blockSize) throws IOException {
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        String headerLine = reader.readLine();
+        if (headerLine == null) {
+            logger.error("No header in the samples");
+            throw new PowerModelEstimatorException("No header in the samples");
+        }
+        StreamingEstimator ret = new StreamingEstimator(bundle, split(headerLine, CoreConfiguration.CSV_DELIMITER));
+        ret.estimateLines(reader, out, blockSize);
+        return ret;
+    }
+
+    private void estimateLines(final BufferedReader reader, final Writer out, int blockSize) throws IOException {
+        final char delimiter = CoreConfiguration.CSV_DELIMITER;
+        out.write(join(outputHeader, delimiter));
+
+        final IOException[] error = new IOException[1];
+        Iterator<double[]> samples = new Iterator<double[]>() {
+            private String next = readNext();
+
+            private String readNext() {
+                try {
+                    String line = reader.readLine();
+                    while (line != null && line.trim().isEmpty()) {
+                        line = reader.readLine();
+                    }
+                    return line;
+                } catch (IOException e) {
+                    error[0] = e;
+                    return null;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public double[] next() {
+                double[] ret = parse(next, delimiter);
+                next = readNext();
+                return ret;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        final StringBuilder sb = new StringBuilder();
+        estimate(samples, blockSize, new Sink() {
+            @Override
+            public void accept(double[] record) {
+                sb.setLength(0);
+                for (int j = 0; j < record.length; j++) {
+                    if (j > 0) {
+                        sb.append(delimiter);
+                    }
+                    sb.append(record[j]);
+                }
+                try {
+                    out.write(sb.append('\n').toString());
+                } catch (IOException e) {
+                    throw new PowerModelEstimatorException("Error while writing estimations", e);
+                }
+            }
+        });
+        out.flush();
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getEmitted() {
+        return emitted;
+    }
+
+    /**
+     * Accuracy of the estimations emitted so far, if the samples have the independent variable.
+     */
+    public EstimationMetrics getAccuracy() {
+        return accuracy.getMetrics();
+    }
+
+    /**
+     * Invalid values found and samples dropped by the invalid-values policy.
+     */
+    public String getInvalidValuesReport() {
+        return invalidValues.getReport();
+    }
+
+    private void setRow(double[][] block, int row, double[] sample) {
+        if (sample.length != header.size()) {
+            logger.error("Expected " + header.size() + " metrics but got " + sample.length);
+            throw new PowerModelEstimatorException("Expected " + header.size() + " metrics but got " + sample.length);
+        }
+        for (int j = 0; j < sample.length; j++) {
+            block[j][row] = sample[j];
+        }
+    }
+
+    private void process(double[][] block, int rows, boolean last, Sink sink) {
+        if (finished) {
+            logger.error("The stream has already finished");
+            throw new PowerModelEstimatorException("The stream has already finished");
+        }
+        finished = last;
+        received += rows;
+
+        // Invalid values
+        List<Column> chunk = new ArrayList<Column>(block.length);
+        for (double[] column : block) {
+            chunk.add(new ArrayColumn(Arrays.copyOf(column, rows)));
+        }
+        List<Column> valid = invalidValues.process(chunk, last);
+        int validRows = valid.isEmpty() ? 0 : valid.get(0).size();
+
+        // Preprocessing filter
+        double[][] columns;
+        int filteredRows;
+        if (movingAverage != null) {
+            List<double[]> averaged = new ArrayList<double[]>(validRows);
+            double[] sample = new double[header.size()];
+            for (int i = 0; i < validRows; i++) {
+                for (int j = 0; j < sample.length; j++) {
+                    sample[j] = valid.get(j).get(i);
+                }
+                double[] ret = movingAverage.add(sample);
+                if (ret != null) {
+                    averaged.add(ret);
+                }
+            }
+            if (last) {
+                averaged.addAll(movingAverage.flush());
+            }
+            filteredRows = averaged.size();
+            columns = new double[header.size()][filteredRows];
+            for (int i = 0; i < filteredRows; i++) {
+                double[] values = averaged.get(i);
+                for (int j = 0; j < values.length; j++) {
+                    columns[j][i] = values[j];
+                }
+            }
+        } else {
+            filteredRows = validRows;
+            columns = new double[header.size()][filteredRows];
+            for (int j = 0; j < columns.length; j++) {
+                valid.get(j).copyTo(columns[j], 0);
+            }
+        }
+        if (idle != 0 && independentIndex >= 0) {
+            for (int i = 0; i < filteredRows; i++) {
+                columns[independentIndex][i] -= idle;
+            }
+        }
+        if (filteredRows == 0) {
+            return;
+        }
+
+        // Models
+        Map<String, double[]> metrics = new HashMap<String, double[]>();
+        for (int j = 0; j < columns.length; j++) {
+            metrics.put(header.get(j), columns[j]);
+        }
+        Map<String, double[]> estimations = estimator.estimate(metrics, filteredRows);
+        double[] predicted = estimations.get(CoreConfiguration.PPREDICTED_LABEL);
+
+        double[] record = new double[outputHeader.size()];
+        for (int i = 0; i < filteredRows; i++) {
+            int k = 0;
+            if (timestampIndex >= 0) {
+                record[k++] = columns[timestampIndex][i];
+            }
+            if (independentIndex >= 0) {
+                double actual = columns[independentIndex][i];
+                record[k++] = actual;
+                if (!Double.isNaN(actual) && !Double.isNaN(predicted[i])) {
+                    accuracy.add(actual, predicted[i]);
+                }
+            }
+            for (double[] estimation : estimations.values()) {
+                record[k++] = estimation[i];
+            }
+            sink.accept(record);
+            emitted++;
+        }
+    }
+
+    private static List<String> split(String line, char delimiter) {
+        List<String> ret = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i <= line.length(); i++) {
+            if (i == line.length() || line.charAt(i) == delimiter) {
+                String value = line.substring(start, i).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                ret.add(value);
+                start = i + 1;
+            }
+        }
+        return ret;
+    }
+
+    private static double[] parse(String line, char delimiter) {
+        List<String> values = split(line, delimiter);
+        double[] ret = new double[values.size()];
+        for (int j = 0; j < ret.length; j++) {
+            try {
+                ret[j] = values.get(j).isEmpty() ? Double.NaN : Double.parseDouble(values.get(j));
+            } catch (NumberFormatException e) {
+                ret[j] = Double.NaN;
+            }
+        }
+        return ret;
+    }
+
+    private static String join(List<String> values, char delimiter) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) {
+                sb.append(delimiter);
+            }
+            sb.append(value);
+        }
+        return sb.append('\n').toString();
+    }
+}
@@ -0,0 +1,395 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.exceptions.TempStorageException;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the intermediate files written to the temporal directory.
+ *
+ * Every file is reference counted through a TempFile handle and deleted when its last reference is
+ * closed. A reference can be handed to an owner object with track(): it is released when the owner
+ * is closed or, at the latest, once the owner is no longer reachable. Files whose paths are handed
+ * around as plain strings keep their creation reference and are deleted by cleanUp() at the end of
+ * the run. Setting temp-cleanup=false keeps every file for debugging.
+ *
+ * The space used by live files is limited by temp-quota-mb (0 means no limit). Space is reserved with
+ * TempFile.reserve() before it is written, or through the stream of TempFile.openWriter(), so a write that
+ * would go past the quota fails before anything is written. Files written by other means are checked
+ * once written() is called.
+ *
+ * Only files in the temporal directory can be managed.
+ */
+public final class TempStorage {
+
+    final static Logger logger = Logger.getLogger(TempStorage.class);
+
+    private static final ConcurrentMap<String, TempFile> files = new ConcurrentHashMap<String, TempFile>();
+    private static final Set<Lease> leases = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+    private static final ReferenceQueue<Object> unreachable = new ReferenceQueue<Object>();
+
+    private static final AtomicLong bytesWritten = new AtomicLong();
+    private static final AtomicLong bytesReclaimed = new AtomicLong();
+    private static final AtomicLong bytesInUse = new AtomicLong();
+    private static final AtomicInteger filesCreated = new AtomicInteger();
+    private static final AtomicInteger filesDeleted = new AtomicInteger();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("temp-storage-cleanup") {
+            @Override
+            public void run() {
+                if (cleanUp() > 0) {
+                    logger.info(getReport());
+                }
+            }
+        });
+    }
+
+    private TempStorage() {
+    }
+
+    /**
+     * Reserves a new file in the temporal directory. The file itself is not created.
+     * @param extension Extension of the file name, including the dot.
+     * @return Handle holding the only reference to the file.
+     */
+    public static TempFile newFile(String extension) {
+        reap();
+        String path = new File(CoreConfiguration.TEMPDIR, UUID.randomUUID().toString() + extension).getAbsolutePath();
+        TempFile file = new TempFile(path);
+        files.put(path, file);
+        filesCreated.incrementAndGet();
+        return file;
+    }
+
+    /**
+     * Takes a new reference to the given file. Files not created through newFile() become managed from now on
+     * and will be deleted with their last reference.
+     * @throws TempStorageException if the file is not in the temporal directory.
+     */
+    public static TempFile adopt(String path) {
+        reap();
+        if (!isInTempDir(path)) {
+            logger.error("Refusing to manage " + path + ": it is not in the temporal directory " + CoreConfiguration.TEMPDIR);
+            throw new TempStorageException("Refusing to manage " + path + ": it is not in the temporal directory " + CoreConfiguration.TEMPDIR);
+        }
+        String key = new File(path).getAbsolutePath();
+        TempFile file = files.get(key);
+        if (file == null || !file.retain()) {
+            file = new TempFile(key);
+            files.put(key, file);
+        }
+        file.written();
+        return file;
+    }
+
+    /**
+     * Releases the reference taken when the given file was created with newFile(), for files whose path was
+     * handed around instead of their handle. Paths not managed here are ignored.
+     */
+    public static void release(String path) {
+        TempFile file = files.get(new File(path).getAbsolutePath());
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    /**
+     * Hands one reference of file to owner. The reference is released when the returned lease is closed or
+     * when owner is no longer reachable, whatever happens first.
+     */
+    public static Closeable track(Object owner, TempFile file) {
+        Lease lease = new Lease(owner, file);
+        leases.add(lease);
+        return lease;
+    }
+
+    /**
+     * Releases the references held by owners that are no longer reachable.
+     * @return Number of leases released.
+     */
+    public static int reap() {
+        int released = 0;
+        Reference<?> ref;
+        while ((ref = unreachable.poll()) != null) {
+            ((Lease) ref).close();
+            released++;
+        }
+        return released;
+    }
+
+    /**
+     * Deletes every managed file regardless of its references. Meant to be called once the run is over.
+     * @return Number of files deleted.
+     */
+    public static int cleanUp() {
+        reap();
+        int deleted = 0;
+        for (TempFile file : new ArrayList<TempFile>(files.values())) {
+            if (file.discard()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    public static long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public static long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    public static long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    public static String getReport() {
+        return "Temporary storage: " + filesCreated.get() + " files created, " + filesDeleted.get() + " deleted, "
+                + bytesWritten.get() + " bytes written, " + bytesReclaimed.get() + " bytes reclaimed, "
+                + bytesInUse.get() + " bytes in use";
+    }
+
+    private static boolean isInTempDir(String path) {
+        try {
+            String dir = new File(CoreConfiguration.TEMPDIR).getCanonicalPath() + File.separator;
+            return new File(path).getCanonicalPath().startsWith(dir);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds delta bytes to the space in use.
+     * @throws TempStorageException if they do not fit in the quota. Nothing is added then.
+     */
+    private static void addInUse(long delta) {
+        long quota = CoreConfiguration.TEMP_QUOTA_MB * 1024 * 1024;
+        long current;
+        do {
+            current = bytesInUse.get();
+            if (quota > 0 && delta > 0 && current + delta > quota) {
+                String msg = "Temporary storage quota of " + CoreConfiguration.TEMP_QUOTA_MB + " MB exceeded: "
+                        + current + " bytes in use in " + CoreConfiguration.TEMPDIR + ", " + delta + " more needed";
+                logger.error(msg);
+                throw new TempStorageException(msg);
+            }
+        } while (!bytesInUse.compareAndSet(current, current + delta));
+    }
+
+    /**
+     * Reference counted handle to a temporal file. Closing the handle releases one reference.
+     */
+    public static final class TempFile implements Closeable {
+        private final String path;
+        private final AtomicInteger references = new AtomicInteger(1);
+        // Size accounted in bytesInUse, -1 once the file is gone
+        private long size = 0;
+
+        private TempFile(String path) {
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Takes one more reference to this file.
+         * @return False if the file was already deleted.
+         */
+        public boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        /**
+         * Reserves space for bytes more than the space already accounted for this file, before writing them.
+         * @throws TempStorageException if the temporal storage quota would be exceeded.
+         */
+        public void reserve(long bytes) {
+            reap();
+            synchronized (this) {
+                if (size < 0) {
+                    return;
+                }
+                addInUse(bytes);
+                size += bytes;
+            }
+        }
+
+        /**
+         * Opens the file for writing text. Each block of bytes is reserved before it is written, so the
+         * quota is never exceeded. Call written() once the writer is closed.
+         */
+        public Writer openWriter() throws IOException {
+            return new BufferedWriter(new OutputStreamWriter(new ReservingStream(this, new FileOutputStream(path))));
+        }
+
+        /**
+         * Accounts for the actual size of the file, releasing the space reserved but not used. Must be called
+         * once the file has been written.
+         * @throws TempStorageException if the file grew past the space reserved and the temporal storage
+         * quota is exceeded.
+         */
+        public void written() {
+            long length = new File(path).length();
+            synchronized (this) {
+                if (size < 0) {
+                    return;
+                }
+                long delta = length - size;
+                // Written before calling reserve(), so the file is accounted anyway
+                bytesInUse.addAndGet(delta);
+                size = length;
+                if (delta > 0) {
+                    bytesWritten.addAndGet(delta);
+                    long quota = CoreConfiguration.TEMP_QUOTA_MB * 1024 * 1024;
+                    if (quota > 0 && bytesInUse.get() > quota) {
+                        String msg = "Temporary storage quota of " + CoreConfiguration.TEMP_QUOTA_MB + " MB exceeded: "
+                                + bytesInUse.get() + " bytes in use in " + CoreConfiguration.TEMPDIR;
+                        logger.error(msg);
+                        throw new TempStorageException(msg);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (references.decrementAndGet() == 0) {
+                delete();
+            }
+        }
+
+        private boolean discard() {
+            references.set(0);
+            return delete();
+        }
+
+        private boolean delete() {
+            File file = new File(path);
+            long length = file.length();
+            synchronized (this) {
+                if (size < 0) {
+                    return false;
+                }
+                // Files written by external tools may never have been accounted
+                if (length > size) {
+                    bytesWritten.addAndGet(length - size);
+                }
+                bytesInUse.addAndGet(-size);
+                size = -1;
+            }
+            files.remove(path, this);
+            if (!CoreConfiguration.TEMP_CLEANUP) {
+                return false;
+            }
+            if (file.exists() && !file.delete()) {
+                logger.warn("Could not delete temporary file " + path);
+                return false;
+            }
+            bytesReclaimed.addAndGet(length);
+            filesDeleted.incrementAndGet();
+            logger.trace("Deleted temporary file " + path);
+            return true;
+        }
+    }
+
+    /**
+     * Reserves each block of bytes in the quota before writing it. Once a reservation fails the rest of the
+     * output is dropped, so the stream can still be flushed and closed.
+     */
+    private static final class ReservingStream extends FilterOutputStream {
+        private final TempFile file;
+        private boolean failed = false;
+
+        private ReservingStream(TempFile file, OutputStream out) {
+            super(out);
+            this.file = file;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (failed) {
+                return;
+            }
+            try {
+                file.reserve(len);
+            } catch (TempStorageException e) {
+                failed = true;
+                throw e;
+            }
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * Reference of a TempFile held on behalf of an owner object.
+     */
+    private static final class Lease extends PhantomReference<Object> implements Closeable {
+        private final TempFile file;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease(Object owner, TempFile file) {
+            super(owner, unreachable);
+            this.file = file;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                clear();
+                leases.remove(this);
+                file.close();
+            }
+        }
+    }
+}
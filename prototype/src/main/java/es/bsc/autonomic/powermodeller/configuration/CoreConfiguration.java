@@ -29,31 +29,48 @@ import static java.nio.file.Files.setPosixFilePermissions;
 
 public class CoreConfiguration {
 
-    public static char CSV_DELIMITER;
-    public static String INDEPENDENT;
-    public static String TEMPDIR ="temp-" + Calendar.getInstance().getTimeInMillis();
-    public static List<String> TRAINING_CPU;
-    public static List<String> TRAINING_MEMORY;
-    public static List<String> TRAINING_DISK;
-    public static List<String> TRAINING_NETWORK;
-    public static List<String> TRAINING_GLOBAL;
-    public static List<String> VALIDATION;
-    public static boolean PREPROCESS_DATASET;
-    public static boolean SCALE_DATA;
-
-    public static int MOVING_AVG_WINDOW;
-    public static String FILTER_TYPE;
-    public static double POWER_IDLE;
-    public static String CLASSIFIER;
-
-    public static String MODEL_PATH;
-    public static boolean NEW_MODEL;
+    // Settings are read once at start-up and only replaced as a whole afterwards (lists are unmodifiable),
+    // so they can be read from any thread.
+    public static volatile char CSV_DELIMITER;
+    public static volatile String INDEPENDENT;
+    public static volatile String TEMPDIR ="temp-" + Calendar.getInstance().getTimeInMillis();
+    public static volatile List<String> TRAINING_CPU;
+    public static volatile List<String> TRAINING_MEMORY;
+    public static volatile List<String> TRAINING_DISK;
+    public static volatile List<String> TRAINING_NETWORK;
+    public static volatile List<String> TRAINING_GLOBAL;
+    public static volatile List<String> VALIDATION;
+    public static volatile boolean PREPROCESS_DATASET;
+    public static volatile boolean SCALE_DATA;
+
+    public static volatile int MOVING_AVG_WINDOW;
+    public static volatile int DATASET_CHUNK_SIZE;
+    public static volatile long TEMP_QUOTA_MB;
+    public static volatile boolean TEMP_CLEANUP;
+    public static volatile String STAGE_CACHE_DIR;
+    public static volatile int TRAINING_THREADS;
+    public static volatile String SERVER_ADDRESS;
+    public static volatile int SERVER_PORT;
+    public static volatile String SERVER_MODEL_DIR;
+    public static volatile int SERVER_THREADS;
+    public static volatile int SERVER_SCORING_THREADS;
+    public static volatile int SERVER_BATCH_SIZE;
+    public static volatile long SERVER_BATCH_DELAY_MS;
+    public static volatile long SERVER_REQUEST_TIMEOUT_MS;
+    public static volatile int SERVER_MAX_REQUEST_BYTES;
+    public static volatile String FILTER_TYPE;
+    public static volatile String INVALID_VALUES;
+    public static volatile double POWER_IDLE;
+    public static volatile String CLASSIFIER;
+
+    public static volatile String MODEL_PATH;
+    public static volatile boolean NEW_MODEL;
     //public static boolean STEP2_NEW_MODEL;
-    public static String STEP_2_CLASSIFIER;
+    public static volatile String STEP_2_CLASSIFIER;
     //public static String STEP_2_MODEL_PATH;
-    public static String POWER_IDLE_VALIDATION;
-    public static String MODEL_TYPE;
-    public static String MODEL_RESOURCES_LEVEL;
+    public static volatile String POWER_IDLE_VALIDATION;
+    public static volatile String MODEL_TYPE;
+    public static volatile String MODEL_RESOURCES_LEVEL;
 
     public static final String P_PCPU = "P-Pcpu";
     public static final String P_PCPU_PMEM = "P-Pcpu-Pmem";
@@ -77,10 +94,6 @@ public class CoreConfiguration {
     public static final String CONF_MODEL_DISK = "/conf/model-disk.properties";
     public static final String CONF_MODEL_NETWORK = "/conf/model-network.properties";
     public static final String CONF_MODEL_GLOBAL = "/conf/model-global.properties";
-    public static final String R_SCRIPT_ESTIMATION = "/conf/estimation.r";
-    public static final String R_SCRIPT_GENERATE_SCALING = "/conf/scaling_data_training.r";
-    public static final String R_SCRIPT_APPLY_SCALING = "/conf/scaling_data_validation.r";
-    public static final String R_SCRIPT_MOVING_AVERAGE = "/conf/movingAverage.r";
     // Model types:
     public final static String RESOURCES_MODEL = "resources";
     public final static String GLOBAL_MODEL = "global";
@@ -111,6 +124,21 @@ public class CoreConfiguration {
 
         FILTER_TYPE = config.getString("filter-type");
         MOVING_AVG_WINDOW = config.getInt("moving-average-window");
+        INVALID_VALUES = config.getString("invalid-values", "keep");
+        DATASET_CHUNK_SIZE = config.getInt("dataset-chunk-size", 65536);
+        TEMP_QUOTA_MB = config.getLong("temp-quota-mb", 0);
+        TEMP_CLEANUP = config.getBoolean("temp-cleanup", true);
+        STAGE_CACHE_DIR = config.getString("stage-cache-dir", "");
+        TRAINING_THREADS = config.getInt("training-threads", 0);
+        SERVER_ADDRESS = config.getString("server-address", "127.0.0.1");
+        SERVER_PORT = config.getInt("server-port", 8090);
+        SERVER_MODEL_DIR = config.getString("server-model-dir", "");
+        SERVER_THREADS = config.getInt("server-threads", 32);
+        SERVER_SCORING_THREADS = config.getInt("server-scoring-threads", 1);
+        SERVER_BATCH_SIZE = config.getInt("server-batch-size", 1024);
+        SERVER_BATCH_DELAY_MS = config.getLong("server-batch-delay-ms", 0);
+        SERVER_REQUEST_TIMEOUT_MS = config.getLong("server-request-timeout-ms", 30000);
+        SERVER_MAX_REQUEST_BYTES = config.getInt("server-max-request-bytes", 16 * 1024 * 1024);
         POWER_IDLE = config.getDouble("power-idle-training");
         CLASSIFIER = config.getString("classifier");
 
@@ -127,12 +155,12 @@ public class CoreConfiguration {
         //Training dataset configuration
         PropertiesConfiguration datasets = getPropertiesConfiguration(CoreConfiguration.CONF_DATASETS);
 
-        TRAINING_CPU = Arrays.asList(datasets.getStringArray("trainingCPU"));
-        TRAINING_MEMORY = Arrays.asList(datasets.getStringArray("trainingMemory"));
-        TRAINING_DISK = Arrays.asList(datasets.getStringArray("trainingDisk"));
-        TRAINING_NETWORK = Arrays.asList(datasets.getStringArray("trainingNetwork"));
-        VALIDATION = Arrays.asList(datasets.getStringArray("validation"));
-        TRAINING_GLOBAL = Arrays.asList(datasets.getStringArray("trainingGlobal"));
+        TRAINING_CPU = Collections.unmodifiableList(Arrays.asList(datasets.getStringArray("trainingCPU")));
+        TRAINING_MEMORY = Collections.unmodifiableList(Arrays.asList(datasets.getStringArray("trainingMemory")));
+        TRAINING_DISK = Collections.unmodifiableList(Arrays.asList(datasets.getStringArray("trainingDisk")));
+        TRAINING_NETWORK = Collections.unmodifiableList(Arrays.asList(datasets.getStringArray("trainingNetwork")));
+        VALIDATION = Collections.unmodifiableList(Arrays.asList(datasets.getStringArray("validation")));
+        TRAINING_GLOBAL = Collections.unmodifiableList(Arrays.asList(datasets.getStringArray("trainingGlobal")));
 
         //Temporal working directory creation
         File fileDir = new File(TEMPDIR);
@@ -14,6 +14,7 @@
 package es.bsc.autonomic.powermodeller.graphics;
 
 import java.awt.*;
+import java.util.Arrays;
 import java.util.List;
 import javax.swing.JPanel;
 
@@ -70,12 +71,13 @@ public class TotalPowerAndPredictionDifference extends ApplicationFrame
         double d = 0.0D;
         double d1 = 0.0D;
         Day day = new Day();
-        List<Double> pactualCol = ds.getCol(CoreConfiguration.PACTUAL_LABEL);
-        List<Double> ppredictedCol = ds.getCol(CoreConfiguration.PPREDICTED_LABEL);
+        double[][] cols = ds.getCols(Arrays.asList(CoreConfiguration.PACTUAL_LABEL, CoreConfiguration.PPREDICTED_LABEL));
+        double[] pactualCol = cols[0];
+        double[] ppredictedCol = cols[1];
         for (int i = 0; i < ds.getSize(); i++)
         {
-            pactual.add(day, pactualCol.get(i));
-            ppredicted.add(day, ppredictedCol.get(i));
+            pactual.add(day, pactualCol[i]);
+            ppredicted.add(day, ppredictedCol[i]);
             day = (Day)day.next();
         }
 
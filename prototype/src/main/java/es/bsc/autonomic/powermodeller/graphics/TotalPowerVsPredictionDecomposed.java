@@ -15,6 +15,7 @@ package es.bsc.autonomic.powermodeller.graphics;
 
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -72,11 +73,12 @@ public class TotalPowerVsPredictionDecomposed extends ApplicationFrame {
         columns.remove(dataset.getIndependent());
 
         //Processing independent variable first.
+        String[] names = new String[]{CoreConfiguration.PACTUAL_LABEL, CoreConfiguration.PIDLE_LABEL, CoreConfiguration.PCPU_LABEL,
+                CoreConfiguration.PMEM_LABEL, CoreConfiguration.PDISK_LABEL, CoreConfiguration.PNET_LABEL};
+        double[][] cols = dataset.getCols(Arrays.asList(names));
+
         DefaultCategoryDataset pactualDS = new DefaultCategoryDataset();
-        List<Double> independent = dataset.getCol(CoreConfiguration.PACTUAL_LABEL);
-        for(int i = 0; i < independent.size(); i++) {
-            pactualDS.addValue(independent.get(i), CoreConfiguration.PACTUAL_LABEL, Integer.toString(i));
-        }
+        addColumnToDefaultCategoryDataSet(pactualDS, CoreConfiguration.PACTUAL_LABEL, cols[0]);
         ret.put(CoreConfiguration.PACTUAL_LABEL, pactualDS);
 
         //Adding rest of variables
@@ -88,20 +90,18 @@ public class TotalPowerVsPredictionDecomposed extends ApplicationFrame {
 //                metricDS.addValue(values.get(i), metric, Integer.toString(i));
 //            }
 //        }
-        addColumnToDefaultCategoryDataSet(metricDS, CoreConfiguration.PIDLE_LABEL, dataset.getCol(CoreConfiguration.PIDLE_LABEL));
-        addColumnToDefaultCategoryDataSet(metricDS, CoreConfiguration.PCPU_LABEL, dataset.getCol(CoreConfiguration.PCPU_LABEL));
-        addColumnToDefaultCategoryDataSet(metricDS, CoreConfiguration.PMEM_LABEL, dataset.getCol(CoreConfiguration.PMEM_LABEL));
-        addColumnToDefaultCategoryDataSet(metricDS, CoreConfiguration.PDISK_LABEL, dataset.getCol(CoreConfiguration.PDISK_LABEL));
-        addColumnToDefaultCategoryDataSet(metricDS, CoreConfiguration.PNET_LABEL, dataset.getCol(CoreConfiguration.PNET_LABEL));
+        for(int k = 1; k < names.length; k++) {
+            addColumnToDefaultCategoryDataSet(metricDS, names[k], cols[k]);
+        }
 
         ret.put(CoreConfiguration.PPREDICTED_LABEL, metricDS);
 
         return ret;
     }
 
-    private static void addColumnToDefaultCategoryDataSet(DefaultCategoryDataset ds, String name, List<Double> col) {
-        for(int i = 0; i < col.size(); i++) {
-            ds.addValue(col.get(i), name, Integer.toString(i));
+    private static void addColumnToDefaultCategoryDataSet(DefaultCategoryDataset ds, String name, double[] col) {
+        for(int i = 0; i < col.length; i++) {
+            ds.addValue(col[i], name, Integer.toString(i));
         }
     }
 
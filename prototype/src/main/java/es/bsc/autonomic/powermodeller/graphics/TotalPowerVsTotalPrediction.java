@@ -79,11 +79,13 @@ public class TotalPowerVsTotalPrediction extends ApplicationFrame{
 
         XYSeriesCollection xyseriescollection = new XYSeriesCollection();
 
-        for(String metric : ds.getHeader()) {
-            List<Double> column = ds.getCol(metric);
-            XYSeries xyseries = new XYSeries(metric);
-            for(int i = 0; i < column.size(); i++) {
-                xyseries.add(i, column.get(i));
+        List<String> metrics = ds.getHeader();
+        double[][] columns = ds.getCols(metrics);
+        for(int j = 0; j < columns.length; j++) {
+            double[] column = columns[j];
+            XYSeries xyseries = new XYSeries(metrics.get(j));
+            for(int i = 0; i < column.length; i++) {
+                xyseries.add(i, column[i]);
             }
             xyseriescollection.addSeries(xyseries);
         }
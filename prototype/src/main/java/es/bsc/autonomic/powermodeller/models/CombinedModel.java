@@ -14,9 +14,11 @@
 package es.bsc.autonomic.powermodeller.models;
 
 import es.bsc.autonomic.powermodeller.DataSet;
+import es.bsc.autonomic.powermodeller.ModelBundle;
 import es.bsc.autonomic.powermodeller.PowerModelEstimator;
 import es.bsc.autonomic.powermodeller.PowerModelGenerator;
 import es.bsc.autonomic.powermodeller.ResourceModel;
+import es.bsc.autonomic.powermodeller.TempStorage;
 import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
 import es.bsc.autonomic.powermodeller.tools.featureScaling.DataStandardization;
 
@@ -24,7 +26,10 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 public class CombinedModel extends Models implements Serializable{
     private static final long serialVersionUID = 1L;
@@ -39,6 +44,10 @@ public class CombinedModel extends Models implements Serializable{
 
     private DataStandardization dataStandardization;
 
+    // Step 1 models, in the order they are trained and estimated
+    private static final List<String> RESOURCES = Arrays.asList(CoreConfiguration.PCPU_LABEL, CoreConfiguration.PMEM_LABEL,
+            CoreConfiguration.PDISK_LABEL, CoreConfiguration.PNET_LABEL);
+
     @Override
     public void generateModel() {
 
@@ -47,15 +56,13 @@ public class CombinedModel extends Models implements Serializable{
         // Generating model - STEP 1
         if (CoreConfiguration.SCALE_DATA) {
 
-            this.cpu = pmg.generateCustomResourceModel(pmg.getTrainingCPUDataSetPaths(), CoreConfiguration.getFilePath(CoreConfiguration.CONF_MODEL_CPU));
-            this.memory = pmg.generateCustomResourceModel(pmg.getTrainingMemoryDataSetPaths(), CoreConfiguration.getFilePath(CoreConfiguration.CONF_MODEL_MEMORY));
-            this.disk = pmg.generateCustomResourceModel(pmg.getTrainingDiskDataSetPaths(), CoreConfiguration.getFilePath(CoreConfiguration.CONF_MODEL_DISK));
-            this.network = pmg.generateCustomResourceModel(pmg.getTrainingNetworkDataSetPaths(), CoreConfiguration.getFilePath(CoreConfiguration.CONF_MODEL_NETWORK));
+            generateResourceModels(pmg, pmg.getTrainingCPUDataSetPaths(), pmg.getTrainingMemoryDataSetPaths(),
+                    pmg.getTrainingDiskDataSetPaths(), pmg.getTrainingNetworkDataSetPaths());
 
             DataSet trainingJoined = new DataSet(pmg.getTrainingGlobalDataSetPaths().get(0));
 
             DataSet outputPredicted = validateFirstModel(trainingJoined);
-            logger.info("Estimation 1 STEP: " + outputPredicted.getFilePath());
+            logger.info("Estimation 1 STEP: " + outputPredicted.getSize() + " samples.");
 
             // Generating model step 2
             // Apply each Resource model to the whole training set and get a second model
@@ -67,10 +74,8 @@ public class CombinedModel extends Models implements Serializable{
 
         }else {
 
-            this.cpu = pmg.generateCustomResourceModel(CoreConfiguration.TRAINING_CPU, CoreConfiguration.getFilePath(CoreConfiguration.CONF_MODEL_CPU));
-            this.memory = pmg.generateCustomResourceModel(CoreConfiguration.TRAINING_MEMORY, CoreConfiguration.getFilePath(CoreConfiguration.CONF_MODEL_MEMORY));
-            this.disk = pmg.generateCustomResourceModel(CoreConfiguration.TRAINING_DISK, CoreConfiguration.getFilePath(CoreConfiguration.CONF_MODEL_DISK));
-            this.network = pmg.generateCustomResourceModel(CoreConfiguration.TRAINING_NETWORK, CoreConfiguration.getFilePath(CoreConfiguration.CONF_MODEL_NETWORK));
+            generateResourceModels(pmg, CoreConfiguration.TRAINING_CPU, CoreConfiguration.TRAINING_MEMORY,
+                    CoreConfiguration.TRAINING_DISK, CoreConfiguration.TRAINING_NETWORK);
 
             // join all training set
 
@@ -87,7 +92,7 @@ public class CombinedModel extends Models implements Serializable{
             DataSet trainingJoined = DataSet.joinDataSetsFromPath(dataToJoin);
 
             DataSet outputPredicted = validateFirstModel(trainingJoined);
-            logger.info("Estimation 1 STEP: " + outputPredicted.getFilePath());
+            logger.info("Estimation 1 STEP: " + outputPredicted.getSize() + " samples.");
 
             // Generating model step 2
             // Apply each Resource model to the whole training set and get a second model
@@ -99,23 +104,56 @@ public class CombinedModel extends Models implements Serializable{
 
     }
 
-    private DataSet validateFirstModel(DataSet validationDS){
+    /**
+     * Trains the four step 1 models at the same time, they are independent of each other.
+     */
+    private void generateResourceModels(final PowerModelGenerator pmg, List<String> trainingCPU, List<String> trainingMemory,
+                                        List<String> trainingDisk, List<String> trainingNetwork) {
+
+        List<List<String>> trainingFiles = Arrays.asList(trainingCPU, trainingMemory, trainingDisk, trainingNetwork);
+        List<String> confFiles = Arrays.asList(CoreConfiguration.CONF_MODEL_CPU, CoreConfiguration.CONF_MODEL_MEMORY,
+                CoreConfiguration.CONF_MODEL_DISK, CoreConfiguration.CONF_MODEL_NETWORK);
+
+        List<Callable<ResourceModel>> tasks = new ArrayList<Callable<ResourceModel>>();
+        for (int i = 0; i < RESOURCES.size(); i++) {
+            final List<String> training = trainingFiles.get(i);
+            final String conf = CoreConfiguration.getFilePath(confFiles.get(i));
+            tasks.add(new Callable<ResourceModel>() {
+                @Override
+                public ResourceModel call() {
+                    return pmg.generateCustomResourceModel(training, conf);
+                }
+            });
+        }
 
-        HashMap<String, List<Double>> resultsTrained = new HashMap<String, List<Double>>();
+        List<ResourceModel> models = runConcurrently(taskNames("Training"), tasks);
+        this.cpu = models.get(0);
+        this.memory = models.get(1);
+        this.disk = models.get(2);
+        this.network = models.get(3);
+    }
 
-        resultsTrained.put(CoreConfiguration.PACTUAL_LABEL, validationDS.getCol(validationDS.getIndependent()));
+    private DataSet validateFirstModel(final DataSet validationDS){
 
-        DataSet trainingEstimatedCPU = validateSingleModelResource(validationDS, this.cpu);
-        resultsTrained.put(CoreConfiguration.PCPU_LABEL,trainingEstimatedCPU.getCol(CoreConfiguration.PPREDICTED_LABEL));
+        HashMap<String, List<Double>> resultsTrained = new HashMap<String, List<Double>>();
 
-        DataSet trainingEstimatedMemory = validateSingleModelResource(validationDS, this.memory);
-        resultsTrained.put(CoreConfiguration.PMEM_LABEL,trainingEstimatedMemory.getCol(CoreConfiguration.PPREDICTED_LABEL));
+        resultsTrained.put(CoreConfiguration.PACTUAL_LABEL, validationDS.getCol(validationDS.getIndependent()));
 
-        DataSet trainingEstimatedDisk = validateSingleModelResource(validationDS, this.disk);
-        resultsTrained.put(CoreConfiguration.PDISK_LABEL,trainingEstimatedDisk.getCol(CoreConfiguration.PPREDICTED_LABEL));
+        // The four estimations are independent, they only read validationDS
+        List<Callable<DataSet>> tasks = new ArrayList<Callable<DataSet>>();
+        for (final ResourceModel model : Arrays.asList(this.cpu, this.memory, this.disk, this.network)) {
+            tasks.add(new Callable<DataSet>() {
+                @Override
+                public DataSet call() {
+                    return validateSingleModelResource(validationDS, model);
+                }
+            });
+        }
+        List<DataSet> estimated = runConcurrently(taskNames("Estimation"), tasks);
 
-        DataSet trainingEstimatedNetwork = validateSingleModelResource(validationDS, this.network);
-        resultsTrained.put(CoreConfiguration.PNET_LABEL,trainingEstimatedNetwork.getCol(CoreConfiguration.PPREDICTED_LABEL));
+        for (int i = 0; i < RESOURCES.size(); i++) {
+            resultsTrained.put(RESOURCES.get(i), estimated.get(i).getCol(CoreConfiguration.PPREDICTED_LABEL));
+        }
 
         DataSet outputPredicted = new DataSet(resultsTrained);
         outputPredicted.setIndependent(CoreConfiguration.PACTUAL_LABEL);
@@ -123,6 +161,14 @@ public class CombinedModel extends Models implements Serializable{
         return outputPredicted;
     }
 
+    private static List<String> taskNames(String prefix) {
+        List<String> names = new ArrayList<String>();
+        for (String resource : RESOURCES) {
+            names.add(prefix + " " + resource);
+        }
+        return names;
+    }
+
 
 
 
@@ -141,10 +187,16 @@ public class CombinedModel extends Models implements Serializable{
         DataSet validationDS = null;
 
         if (CoreConfiguration.SCALE_DATA) {
-            String fileToProcess = DataSet.joinDataSetsFromPath(validationFiles).getFilePath();
-            DataStandardization validateStandardization = new DataStandardization(this.dataStandardization.getMu(), this.dataStandardization.getSigma());
+            String fileToProcess = DataSet.joinDataSetsToFile(validationFiles);
+            DataStandardization validateStandardization = new DataStandardization(this.dataStandardization.getMetrics(), this.dataStandardization.getIndependent(),
+                    this.dataStandardization.getMu(), this.dataStandardization.getSigma());
+
+            String scaledFile = validateStandardization.applyStandardization(fileToProcess, CoreConfiguration.INDEPENDENT);
 
-            validationDS = new DataSet(validateStandardization.applyStandardization(fileToProcess, CoreConfiguration.INDEPENDENT));
+            // The validation DataSet owns the scaled file, the joined one is no longer needed
+            validationDS = new DataSet(scaledFile, true);
+            TempStorage.release(scaledFile);
+            TempStorage.release(fileToProcess);
         }
         else{
             validationFiles = new ArrayList<String>(CoreConfiguration.VALIDATION);
@@ -163,7 +215,33 @@ public class CombinedModel extends Models implements Serializable{
     }
 
     @Override
-    protected String getType() {
+    protected Map<String, ResourceModel> getResourceModels() {
+        Map<String, ResourceModel> models = new LinkedHashMap<String, ResourceModel>();
+        putIfGenerated(models, "cpu", this.cpu);
+        putIfGenerated(models, "memory", this.memory);
+        putIfGenerated(models, "disk", this.disk);
+        putIfGenerated(models, "network", this.network);
+        putIfGenerated(models, "step2", this.step2Model);
+        return models;
+    }
+
+    @Override
+    protected DataStandardization getDataStandardization() {
+        return this.dataStandardization;
+    }
+
+    @Override
+    protected void restore(ModelBundle bundle) {
+        this.cpu = bundle.getModels().get("cpu");
+        this.memory = bundle.getModels().get("memory");
+        this.disk = bundle.getModels().get("disk");
+        this.network = bundle.getModels().get("network");
+        this.step2Model = bundle.getModels().get("step2");
+        this.dataStandardization = bundle.getDataStandardization();
+    }
+
+    @Override
+    public String getType() {
         return this.type;
     }
 }
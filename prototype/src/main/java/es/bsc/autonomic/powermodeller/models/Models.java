@@ -14,21 +14,50 @@
 package es.bsc.autonomic.powermodeller.models;
 
 import es.bsc.autonomic.powermodeller.DataSet;
+import es.bsc.autonomic.powermodeller.ModelBundle;
+import es.bsc.autonomic.powermodeller.ResourceModel;
 import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
 import es.bsc.autonomic.powermodeller.exceptions.ModelException;
 import es.bsc.autonomic.powermodeller.tools.featureScaling.DataStandardization;
 import org.apache.log4j.Logger;
 
-import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public abstract class Models {
     final static Logger logger = Logger.getLogger(Models.class);
     private final String SerializedModelFilePath = CoreConfiguration.TEMPDIR + "/" + "serialized" + this.getClass().getSimpleName() + ".model";
+    // Set when the model was built from a bundle by fromBundle()
+    private boolean restored;
 
     /**
-     * Build the model according to the type configured in the configuration file and serialize the model.
+     * Builds the model saved in a bundle. runValidation() then uses it instead of reading model-path.
+     */
+    public static Models fromBundle(ModelBundle bundle) {
+        Models ret;
+        if (bundle.getType().equalsIgnoreCase(CoreConfiguration.RESOURCES_MODEL)) {
+            ret = new ResourcesModel();
+        } else if (bundle.getType().equalsIgnoreCase(CoreConfiguration.GLOBAL_MODEL)) {
+            ret = new GlobalModel();
+        } else if (bundle.getType().equalsIgnoreCase(CoreConfiguration.COMBINED_MODEL)) {
+            ret = new CombinedModel();
+        } else {
+            logger.error(bundle.getType() + " is not a valid type of model!");
+            throw new ModelException(bundle.getType() + " is not a valid type of model!");
+        }
+        ret.restore(bundle);
+        ret.restored = true;
+        return ret;
+    }
+
+    /**
+     * Build the model according to the type configured in the configuration file and save it as a ModelBundle.
      * Types available: resourcesModel, globalModel, composedModel
      */
 
@@ -38,8 +67,8 @@ public abstract class Models {
             this.generateModel();
 
 
-            serializeModel();
-            logger.info("Model serialized: " + SerializedModelFilePath);
+            new ModelBundle(getType(), getDataStandardization(), getResourceModels()).write(SerializedModelFilePath);
+            logger.info("Model saved: " + SerializedModelFilePath);
         }
 
     }
@@ -51,60 +80,97 @@ public abstract class Models {
     public DataSet runValidation(){
 
         DataSet ret;
-        if (CoreConfiguration.NEW_MODEL) {
+        if (CoreConfiguration.NEW_MODEL || restored) {
             ret = this.validateModel();
         }else{
-            logger.info("Using deserialized model: " + SerializedModelFilePath);
-            Models mod = unserializeModel();
+            logger.info("Using saved model: " + CoreConfiguration.MODEL_PATH);
+            ModelBundle bundle = ModelBundle.read(CoreConfiguration.MODEL_PATH);
 
-            if (!mod.getType().equalsIgnoreCase(CoreConfiguration.MODEL_TYPE))
-                throw new ModelException("The serialized model does not correspond to the type defined in the configuration file: " + mod.getType() + " vs " + CoreConfiguration.MODEL_TYPE);
+            if (!bundle.getType().equalsIgnoreCase(CoreConfiguration.MODEL_TYPE))
+                throw new ModelException("The saved model does not correspond to the type defined in the configuration file: " + bundle.getType() + " vs " + CoreConfiguration.MODEL_TYPE);
 
-            ret = mod.validateModel();
+            restore(bundle);
+            ret = this.validateModel();
         }
 
         return ret;
 
     }
 
-    private void serializeModel(){
+    /**
+     * Runs independent tasks on at most training-threads threads and returns their results in the order of the
+     * tasks, whatever the order they finish in. The time taken by each task is logged. If any task fails, its
+     * exception is thrown once all of them are done.
+     */
+    protected static <T> List<T> runConcurrently(final List<String> names, List<Callable<T>> tasks) {
+
+        List<Callable<T>> timedTasks = new ArrayList<Callable<T>>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            final String name = names.get(i);
+            final Callable<T> task = tasks.get(i);
+            timedTasks.add(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    long start = System.currentTimeMillis();
+                    logger.debug(name + " started");
+                    T result = task.call();
+                    logger.info(name + " done in " + (System.currentTimeMillis() - start) + " ms");
+                    return result;
+                }
+            });
+        }
 
-        FileOutputStream fileOut;
+        int threads = CoreConfiguration.TRAINING_THREADS > 0 ? CoreConfiguration.TRAINING_THREADS : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
         try {
-            fileOut = new FileOutputStream(SerializedModelFilePath);
-            ObjectOutputStream out = new ObjectOutputStream(fileOut);
-
-            out.writeObject(this);
-            out.close();
-            fileOut.close();
-
-        } catch (IOException e) {
-            throw new ModelException("Error while serializing model: " + e.getMessage());
+            List<Future<T>> futures = executor.invokeAll(timedTasks);
+            List<T> results = new ArrayList<T>(futures.size());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    logger.error("Error in " + names.get(i), cause);
+                    throw new ModelException("Error in " + names.get(i), cause);
+                }
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while waiting for " + names);
+            throw new ModelException("Interrupted while waiting for " + names, e);
+        } finally {
+            executor.shutdownNow();
         }
-
     }
 
-    private Models unserializeModel() {
-
-        Models model;
+    /**
+     * ResourceModels this model is made of, by name. Models not generated are left out.
+     */
+    protected abstract Map<String, ResourceModel> getResourceModels();
 
-        try {
-            FileInputStream fileIn = new FileInputStream(CoreConfiguration.MODEL_PATH);
-            ObjectInputStream in = new ObjectInputStream(fileIn);
-            model = (Models) in.readObject();
-            in.close();
-            fileIn.close();
-
-        } catch (IOException i) {
-            throw new ModelException("Error while unserializing model: " + i.getMessage());
-        } catch (ClassNotFoundException c) {
-            throw new ModelException("Class not found while unserializing model: " + c.getMessage());
+    protected static void putIfGenerated(Map<String, ResourceModel> models, String name, ResourceModel model) {
+        if (model != null) {
+            models.put(name, model);
         }
-
-        return model;
     }
 
+    /**
+     * Scaling parameters of the training data, or null if it was not scaled.
+     */
+    protected abstract DataStandardization getDataStandardization();
+
+    /**
+     * Sets the state generateModel() builds from a saved model.
+     */
+    protected abstract void restore(ModelBundle bundle);
+
     protected abstract void generateModel();
     protected abstract DataSet validateModel();
-    protected abstract String getType();
+    public abstract String getType();
 }
@@ -14,16 +14,20 @@
 package es.bsc.autonomic.powermodeller.models;
 
 import es.bsc.autonomic.powermodeller.DataSet;
+import es.bsc.autonomic.powermodeller.ModelBundle;
 import es.bsc.autonomic.powermodeller.PowerModelEstimator;
 import es.bsc.autonomic.powermodeller.PowerModelGenerator;
 import es.bsc.autonomic.powermodeller.ResourceModel;
+import es.bsc.autonomic.powermodeller.TempStorage;
 import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
 import es.bsc.autonomic.powermodeller.tools.featureScaling.DataStandardization;
 
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ResourcesModel extends Models implements Serializable{
     private static final long serialVersionUID = 1L;
@@ -71,10 +75,16 @@ public class ResourcesModel extends Models implements Serializable{
         DataSet validationDS = null;
 
         if (CoreConfiguration.SCALE_DATA) {
-            String fileToProcess = DataSet.joinDataSetsFromPath(validationFiles).getFilePath();
-            DataStandardization validateStandardization = new DataStandardization(this.dataStandardization.getMu(), this.dataStandardization.getSigma());
+            String fileToProcess = DataSet.joinDataSetsToFile(validationFiles);
+            DataStandardization validateStandardization = new DataStandardization(this.dataStandardization.getMetrics(), this.dataStandardization.getIndependent(),
+                    this.dataStandardization.getMu(), this.dataStandardization.getSigma());
 
-            validationDS = new DataSet(validateStandardization.applyStandardization(fileToProcess, CoreConfiguration.INDEPENDENT));
+            String scaledFile = validateStandardization.applyStandardization(fileToProcess, CoreConfiguration.INDEPENDENT);
+
+            // The validation DataSet owns the scaled file, the joined one is no longer needed
+            validationDS = new DataSet(scaledFile, true);
+            TempStorage.release(scaledFile);
+            TempStorage.release(fileToProcess);
         }
         else{
 
@@ -104,7 +114,31 @@ public class ResourcesModel extends Models implements Serializable{
     }
 
     @Override
-    protected String getType() {
+    protected Map<String, ResourceModel> getResourceModels() {
+        Map<String, ResourceModel> models = new LinkedHashMap<String, ResourceModel>();
+        putIfGenerated(models, "cpu", this.cpu);
+        putIfGenerated(models, "memory", this.memory);
+        putIfGenerated(models, "disk", this.disk);
+        putIfGenerated(models, "network", this.network);
+        return models;
+    }
+
+    @Override
+    protected DataStandardization getDataStandardization() {
+        return this.dataStandardization;
+    }
+
+    @Override
+    protected void restore(ModelBundle bundle) {
+        this.cpu = bundle.getModels().get("cpu");
+        this.memory = bundle.getModels().get("memory");
+        this.disk = bundle.getModels().get("disk");
+        this.network = bundle.getModels().get("network");
+        this.dataStandardization = bundle.getDataStandardization();
+    }
+
+    @Override
+    public String getType() {
         return this.type;
     }
 
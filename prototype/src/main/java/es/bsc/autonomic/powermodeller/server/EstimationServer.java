@@ -0,0 +1,299 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import es.bsc.autonomic.powermodeller.BundleEstimator;
+import es.bsc.autonomic.powermodeller.ModelRegistry;
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.exceptions.EstimationServerException;
+import es.bsc.autonomic.powermodeller.exceptions.PowerModelEstimatorException;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless power estimation service. The models are loaded once, from a ModelRegistry, and the samples sent
+ * by clients are estimated through a MicroBatcher.
+ *
+ * Endpoints:
+ * - POST /estimate?host=HOST_TYPE: estimates the samples in the body, CSV or JSON (see SampleParser). The
+ *   host type can be left out when a single one is loaded. Returns the power and the per-resource breakdown
+ *   of each sample as JSON.
+ * - GET /models: host types loaded and their type of model.
+ *
+ * Errors are returned as a JSON object with an "error" message. Bodies larger than server-max-request-bytes
+ * are rejected with 413.
+ */
+public final class EstimationServer {
+
+    final static Logger logger = Logger.getLogger(EstimationServer.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ModelRegistry registry;
+    private final MicroBatcher batcher;
+    private final ConcurrentMap<String, BundleEstimator> estimators = new ConcurrentHashMap<String, BundleEstimator>();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public EstimationServer(ModelRegistry registry, MicroBatcher batcher) {
+        this.registry = registry;
+        this.batcher = batcher;
+    }
+
+    /**
+     * Starts serving on the given address and port (0 = any free port).
+     * @param threads Number of threads handling requests.
+     */
+    public synchronized void start(String address, int port, int threads) {
+        // Responses are written in several parts, Nagle's algorithm would delay each of them by the client's
+        // delayed acknowledgement. Read by the JDK server the first time one is created.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        } catch (IOException e) {
+            logger.error("Error while starting estimation server on " + address + ":" + port, e);
+            throw new EstimationServerException("Error while starting estimation server on " + address + ":" + port, e);
+        }
+        server.createContext("/estimate", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleEstimate(exchange);
+            }
+        });
+        server.createContext("/models", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleModels(exchange);
+            }
+        });
+        executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Estimation server listening on " + server.getAddress());
+    }
+
+    public synchronized int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests, waiting up to a second for the ones in progress, and stops the batcher.
+     */
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        batcher.close();
+        server = null;
+        logger.info("Estimation server stopped after " + batcher.getSamples() + " samples in " + batcher.getBatches() + " batches");
+    }
+
+    private void handleEstimate(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                send(exchange, 405, SampleParser.errorJson("Samples must be sent with POST"));
+                return;
+            }
+
+            ModelRegistry.Entry entry = getEntry(getParameter(exchange, "host"));
+            if (entry == null) {
+                send(exchange, 404, SampleParser.errorJson("No model loaded for host type " + getParameter(exchange, "host")));
+                return;
+            }
+
+            String body = readBody(exchange, CoreConfiguration.SERVER_MAX_REQUEST_BYTES);
+            if (body == null) {
+                send(exchange, 413, SampleParser.errorJson("Samples larger than " + CoreConfiguration.SERVER_MAX_REQUEST_BYTES + " bytes"));
+                return;
+            }
+
+            List<Map<String, Double>> samples;
+            try {
+                samples = SampleParser.parse(body, exchange.getRequestHeaders().getFirst("Content-Type"), CoreConfiguration.CSV_DELIMITER);
+            } catch (EstimationServerException e) {
+                send(exchange, 400, SampleParser.errorJson(e.getMessage()));
+                return;
+            }
+
+            List<BundleEstimator.Estimation> estimations = batcher.estimate(getEstimator(entry), samples);
+            send(exchange, 200, SampleParser.toJson(entry.getHostType(), entry.getBundle().getType(), estimations));
+        } catch (EstimationServerException e) {
+            send(exchange, 503, SampleParser.errorJson(e.getMessage()));
+        } catch (PowerModelEstimatorException e) {
+            send(exchange, 500, SampleParser.errorJson(e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, SampleParser.errorJson("Estimation interrupted"));
+        } catch (RuntimeException e) {
+            logger.error("Error while estimating samples", e);
+            send(exchange, 500, SampleParser.errorJson(String.valueOf(e.getMessage())));
+        }
+    }
+
+    private void handleModels(HttpExchange exchange) throws IOException {
+        StringBuilder sb = new StringBuilder("{");
+        boolean first = true;
+        for (String hostType : registry.getHostTypes()) {
+            ModelRegistry.Entry entry = registry.getEntry(hostType);
+            if (entry == null) {
+                continue;
+            }
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            SampleParser.appendString(sb, hostType);
+            sb.append(':');
+            SampleParser.appendString(sb, entry.getBundle().getType());
+        }
+        send(exchange, 200, sb.append('}').toString());
+    }
+
+    /**
+     * Model of the host type, or the only one loaded if no host type is given.
+     */
+    private ModelRegistry.Entry getEntry(String hostType) {
+        if (hostType == null) {
+            Set<String> hostTypes = registry.getHostTypes();
+            if (hostTypes.size() != 1) {
+                return null;
+            }
+            hostType = hostTypes.iterator().next();
+        }
+        return registry.getEntry(hostType);
+    }
+
+    /**
+     * Estimator of the model of the entry, created again when the registry reloads the model.
+     */
+    private BundleEstimator getEstimator(ModelRegistry.Entry entry) {
+        BundleEstimator estimator = estimators.get(entry.getHostType());
+        if (estimator == null || estimator.getBundle() != entry.getBundle()) {
+            estimator = new BundleEstimator(entry.getBundle());
+            estimators.put(entry.getHostType(), estimator);
+        }
+        return estimator;
+    }
+
+    private static String getParameter(HttpExchange exchange, String name) throws UnsupportedEncodingException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            String key = equals >= 0 ? parameter.substring(0, equals) : parameter;
+            if (URLDecoder.decode(key, "UTF-8").equals(name)) {
+                return equals >= 0 ? URLDecoder.decode(parameter.substring(equals + 1), "UTF-8") : "";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Body of the request, or null if larger than maxBytes.
+     */
+    private static String readBody(HttpExchange exchange, int maxBytes) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        try {
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (length != null && length.matches("\\d{1,18}") && Long.parseLong(length) > maxBytes) {
+                return null;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (bytes.size() + read > maxBytes) {
+                    return null;
+                }
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), UTF8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Serves the models of server-model-dir, reloading them when retrained, or the model of model-path if
+     * server-model-dir is not set.
+     */
+    public static void main(String[] args) {
+        ModelRegistry registry;
+        if (!CoreConfiguration.SERVER_MODEL_DIR.isEmpty()) {
+            registry = new ModelRegistry(CoreConfiguration.SERVER_MODEL_DIR);
+            registry.watch();
+        } else {
+            File model = new File(CoreConfiguration.MODEL_PATH);
+            File dir = model.getAbsoluteFile().getParentFile();
+            registry = new ModelRegistry(dir.getPath());
+            String hostType = ModelRegistry.getHostType(model.getName());
+            registry.load(hostType != null ? hostType : "default", model.getPath());
+        }
+
+        MicroBatcher batcher = new MicroBatcher(CoreConfiguration.SERVER_BATCH_SIZE, CoreConfiguration.SERVER_BATCH_DELAY_MS,
+                CoreConfiguration.SERVER_SCORING_THREADS);
+        final EstimationServer server = new EstimationServer(registry, batcher);
+        server.start(CoreConfiguration.SERVER_ADDRESS, CoreConfiguration.SERVER_PORT, CoreConfiguration.SERVER_THREADS);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        }));
+    }
+}
@@ -0,0 +1,266 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller.server;
+
+import es.bsc.autonomic.powermodeller.BundleEstimator;
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.exceptions.EstimationServerException;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Joins the samples of concurrent requests so each model scores them in a single multi-row call.
+ *
+ * Requests are queued and taken by the scoring threads. A scoring thread takes every request waiting, up to
+ * max-batch samples, and waits up to max-delay for more if the batch is not full. Requests are grouped by
+ * estimator and each group is estimated at once. A request larger than max-batch is estimated alone.
+ *
+ * With no delay, requests are batched only while the scoring threads are busy, so a single request is never
+ * delayed. A request not estimated within the timeout is dropped and fails.
+ */
+public final class MicroBatcher implements Closeable {
+
+    final static Logger logger = Logger.getLogger(MicroBatcher.class);
+
+    private static final Request STOP = new Request(null, null);
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final long timeoutMillis;
+    private final List<Thread> scorers = new ArrayList<Thread>();
+    private volatile boolean closed;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong samples = new AtomicLong();
+
+    private static final class Request {
+        final BundleEstimator estimator;
+        final List<Map<String, Double>> samples;
+        final CountDownLatch done = new CountDownLatch(1);
+        List<BundleEstimator.Estimation> result;
+        RuntimeException error;
+
+        Request(BundleEstimator estimator, List<Map<String, Double>> samples) {
+            this.estimator = estimator;
+            this.samples = samples;
+        }
+    }
+
+    /**
+     * Batcher failing the requests not estimated within server-request-timeout-ms.
+     */
+    public MicroBatcher(int maxBatch, long maxDelayMillis, int threads) {
+        this(maxBatch, maxDelayMillis, threads, CoreConfiguration.SERVER_REQUEST_TIMEOUT_MS);
+    }
+
+    /**
+     * @param maxBatch Maximum number of samples estimated at once.
+     * @param maxDelayMillis Maximum time a scoring thread waits for more requests to fill a batch.
+     * @param threads Number of scoring threads.
+     * @param timeoutMillis Maximum time a request waits for its estimations.
+     */
+    public MicroBatcher(int maxBatch, long maxDelayMillis, int threads, long timeoutMillis) {
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+        this.timeoutMillis = Math.max(1, timeoutMillis);
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            Thread scorer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    scoreLoop();
+                }
+            }, "estimation-scorer-" + i);
+            scorer.setDaemon(true);
+            scorer.start();
+            scorers.add(scorer);
+        }
+    }
+
+    /**
+     * Estimates the samples together with those of other requests, waiting for the result.
+     */
+    public List<BundleEstimator.Estimation> estimate(BundleEstimator estimator, List<Map<String, Double>> samples) throws InterruptedException {
+        if (closed) {
+            throw new EstimationServerException("Estimation server is stopping");
+        }
+        Request request = new Request(estimator, samples);
+        queue.add(request);
+        // close() may have drained the queue before the request was added
+        if (closed && queue.remove(request)) {
+            throw new EstimationServerException("Estimation server is stopping");
+        }
+        if (!request.done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            // Not taken yet, or being estimated and then discarded
+            queue.remove(request);
+            logger.error("Samples not estimated in " + timeoutMillis + " ms");
+            throw new EstimationServerException("Samples not estimated in " + timeoutMillis + " ms");
+        }
+        if (request.error != null) {
+            throw request.error;
+        }
+        return request.result;
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getSamples() {
+        return samples.get();
+    }
+
+    /**
+     * Number of requests waiting to be taken by a scoring thread.
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (Request request : queue) {
+            if (request != STOP) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Stops the scoring threads once the queued requests are estimated.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (int i = 0; i < scorers.size(); i++) {
+            queue.add(STOP);
+        }
+        for (Thread scorer : scorers) {
+            try {
+                scorer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        // Requests queued while stopping
+        Request request;
+        while ((request = queue.poll()) != null) {
+            if (request != STOP) {
+                request.error = new EstimationServerException("Estimation server is stopping");
+                request.done.countDown();
+            }
+        }
+    }
+
+    private void scoreLoop() {
+        List<Request> batch = new ArrayList<Request>();
+        while (true) {
+            batch.clear();
+            try {
+                if (!fill(batch)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                // Requests taken before stopping are still estimated
+                if (!batch.isEmpty()) {
+                    score(batch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the requests of the next batch. Returns false when the batcher is stopping.
+     */
+    private boolean fill(List<Request> batch) throws InterruptedException {
+        Request request = queue.take();
+        if (request == STOP) {
+            return false;
+        }
+        batch.add(request);
+        int rows = request.samples.size();
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (rows < maxBatch) {
+            request = queue.poll();
+            if (request == null && maxDelayNanos > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining > 0) {
+                    request = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                }
+            }
+            if (request == null) {
+                break;
+            }
+            if (request == STOP) {
+                // Left for this thread to find once the batch is estimated
+                queue.add(STOP);
+                break;
+            }
+            batch.add(request);
+            rows += request.samples.size();
+        }
+        return true;
+    }
+
+    private void score(List<Request> batch) {
+        Map<BundleEstimator, List<Request>> groups = new IdentityHashMap<BundleEstimator, List<Request>>();
+        for (Request request : batch) {
+            List<Request> group = groups.get(request.estimator);
+            if (group == null) {
+                group = new ArrayList<Request>();
+                groups.put(request.estimator, group);
+            }
+            group.add(request);
+        }
+
+        for (Map.Entry<BundleEstimator, List<Request>> group : groups.entrySet()) {
+            List<Request> requests = group.getValue();
+            List<Map<String, Double>> rows = new ArrayList<Map<String, Double>>();
+            for (Request request : requests) {
+                rows.addAll(request.samples);
+            }
+
+            try {
+                List<BundleEstimator.Estimation> estimations = group.getKey().estimate(rows);
+                int offset = 0;
+                for (Request request : requests) {
+                    request.result = estimations.subList(offset, offset + request.samples.size());
+                    offset += request.samples.size();
+                }
+                batches.incrementAndGet();
+                samples.addAndGet(rows.size());
+            } catch (RuntimeException e) {
+                logger.error("Error while estimating " + rows.size() + " samples", e);
+                for (Request request : requests) {
+                    request.error = e;
+                }
+            } finally {
+                for (Request request : requests) {
+                    request.done.countDown();
+                }
+            }
+        }
+    }
+}
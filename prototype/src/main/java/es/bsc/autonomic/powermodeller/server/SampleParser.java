@@ -0,0 +1,302 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller.server;
+
+import es.bsc.autonomic.powermodeller.BundleEstimator;
+import es.bsc.autonomic.powermodeller.exceptions.EstimationServerException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the samples sent to the estimation server and writes its responses.
+ *
+ * Samples are either CSV, a header line with the metric names followed by a line per sample, or JSON, an
+ * object of metric values or an array of them. Empty CSV values and JSON nulls are missing values.
+ */
+public final class SampleParser {
+
+    private SampleParser() {
+    }
+
+    public static List<Map<String, Double>> parse(String body, String contentType, char delimiter) {
+        String trimmed = body.trim();
+        boolean json = contentType != null ? contentType.toLowerCase().contains("json") : trimmed.startsWith("{") || trimmed.startsWith("[");
+        return json ? parseJson(trimmed) : parseCsv(trimmed, delimiter);
+    }
+
+    public static List<Map<String, Double>> parseCsv(String body, char delimiter) {
+        String[] lines = body.split("\r?\n");
+        if (lines.length < 2) {
+            throw new EstimationServerException("CSV samples need a header line and at least one sample");
+        }
+
+        String[] header = split(lines[0], delimiter);
+        List<Map<String, Double>> ret = new ArrayList<Map<String, Double>>(lines.length - 1);
+        for (int l = 1; l < lines.length; l++) {
+            if (lines[l].trim().isEmpty()) {
+                continue;
+            }
+            String[] values = split(lines[l], delimiter);
+            if (values.length != header.length) {
+                throw new EstimationServerException("Line " + (l + 1) + " has " + values.length + " values but the header has " + header.length);
+            }
+            Map<String, Double> sample = new HashMap<String, Double>(header.length * 2);
+            for (int j = 0; j < header.length; j++) {
+                sample.put(header[j], parseValue(values[j], l + 1));
+            }
+            ret.add(sample);
+        }
+        return ret;
+    }
+
+    private static String[] split(String line, char delimiter) {
+        List<String> ret = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i <= line.length(); i++) {
+            if (i == line.length() || line.charAt(i) == delimiter) {
+                String value = line.substring(start, i).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                ret.add(value);
+                start = i + 1;
+            }
+        }
+        return ret.toArray(new String[ret.size()]);
+    }
+
+    private static Double parseValue(String value, int line) {
+        if (value.isEmpty()) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new EstimationServerException("Invalid value " + value + " in line " + line);
+        }
+    }
+
+    public static List<Map<String, Double>> parseJson(String body) {
+        JsonReader reader = new JsonReader(body);
+        List<Map<String, Double>> ret = new ArrayList<Map<String, Double>>();
+        reader.skipSpaces();
+        if (reader.peek() == '[') {
+            reader.expect('[');
+            if (!reader.consume(']')) {
+                do {
+                    ret.add(reader.readSample());
+                } while (reader.consume(','));
+                reader.expect(']');
+            }
+        } else {
+            ret.add(reader.readSample());
+        }
+        reader.skipSpaces();
+        if (reader.pos != body.length()) {
+            throw reader.error("Unexpected content");
+        }
+        if (ret.isEmpty()) {
+            throw new EstimationServerException("No samples given");
+        }
+        return ret;
+    }
+
+    /**
+     * Reader of the subset of JSON used for samples: objects of numbers or nulls.
+     */
+    private static final class JsonReader {
+        private final String text;
+        private int pos;
+
+        JsonReader(String text) {
+            this.text = text;
+        }
+
+        Map<String, Double> readSample() {
+            Map<String, Double> sample = new HashMap<String, Double>();
+            expect('{');
+            if (consume('}')) {
+                return sample;
+            }
+            do {
+                skipSpaces();
+                String name = readString();
+                expect(':');
+                sample.put(name, readNumber());
+            } while (consume(','));
+            expect('}');
+            return sample;
+        }
+
+        String readString() {
+            if (peek() != '"') {
+                throw error("Expected a metric name");
+            }
+            StringBuilder sb = new StringBuilder();
+            pos++;
+            while (pos < text.length() && text.charAt(pos) != '"') {
+                char c = text.charAt(pos++);
+                if (c == '\\' && pos < text.length()) {
+                    char escaped = text.charAt(pos++);
+                    switch (escaped) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'u':
+                            if (pos + 4 > text.length()) {
+                                throw error("Invalid escape");
+                            }
+                            int code = 0;
+                            for (int i = 0; i < 4; i++) {
+                                int digit = Character.digit(text.charAt(pos++), 16);
+                                if (digit < 0) {
+                                    throw error("Invalid escape");
+                                }
+                                code = code * 16 + digit;
+                            }
+                            sb.append((char) code);
+                            break;
+                        default: sb.append(escaped);
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+            if (pos >= text.length()) {
+                throw error("Unterminated string");
+            }
+            pos++;
+            return sb.toString();
+        }
+
+        Double readNumber() {
+            skipSpaces();
+            if (text.startsWith("null", pos)) {
+                pos += 4;
+                return Double.NaN;
+            }
+            int start = pos;
+            while (pos < text.length() && "+-.0123456789eE".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            try {
+                return Double.parseDouble(text.substring(start, pos));
+            } catch (NumberFormatException e) {
+                pos = start;
+                throw error("Expected a number");
+            }
+        }
+
+        void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        char peek() {
+            skipSpaces();
+            return pos < text.length() ? text.charAt(pos) : 0;
+        }
+
+        boolean consume(char c) {
+            if (peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            if (!consume(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        EstimationServerException error(String message) {
+            return new EstimationServerException(message + " at position " + pos + " of the JSON samples");
+        }
+    }
+
+    /**
+     * JSON response with the estimations of the samples. Values that are not numbers are written as null.
+     */
+    public static String toJson(String hostType, String modelType, List<BundleEstimator.Estimation> estimations) {
+        StringBuilder sb = new StringBuilder(64 + estimations.size() * 96);
+        sb.append("{\"host\":");
+        appendString(sb, hostType);
+        sb.append(",\"model\":");
+        appendString(sb, modelType);
+        sb.append(",\"estimations\":[");
+        for (int i = 0; i < estimations.size(); i++) {
+            BundleEstimator.Estimation estimation = estimations.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"power\":");
+            appendNumber(sb, estimation.getPower());
+            sb.append(",\"breakdown\":{");
+            boolean first = true;
+            for (Map.Entry<String, Double> part : estimation.getBreakdown().entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendString(sb, part.getKey());
+                sb.append(':');
+                appendNumber(sb, part.getValue());
+            }
+            sb.append("}}");
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    public static String errorJson(String message) {
+        StringBuilder sb = new StringBuilder("{\"error\":");
+        appendString(sb, message);
+        return sb.append('}').toString();
+    }
+
+    static void appendString(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private static void appendNumber(StringBuilder sb, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append("null");
+        } else {
+            sb.append(value);
+        }
+    }
+}
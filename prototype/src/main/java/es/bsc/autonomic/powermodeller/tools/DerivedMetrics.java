@@ -0,0 +1,435 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller.tools;
+
+import es.bsc.autonomic.powermodeller.ModelBundle;
+import es.bsc.autonomic.powermodeller.exceptions.VariableParserException;
+import org.apache.log4j.Logger;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.StringTokenizer;
+
+/**
+ * Compiles the expressions of the new metrics produced by VariableParser ("a2*10", "sqrta5*(a1+a2)", ...)
+ * and computes all of them at once.
+ *
+ * Expressions are parsed exactly like Weka's AddExpression filter does, so results are the same, but
+ * they are compiled into a single list of operations where identical subexpressions are computed only
+ * once, even across metrics. Rows are evaluated in blocks: every operation runs over a whole block of
+ * primitive values before moving to the next one.
+ *
+ * As in AddExpression, results that are NaN or infinite are returned as NaN (missing).
+ *
+ * The compiled program can be stored with writeTo() and loaded with readFrom() without parsing the
+ * expressions again.
+ */
+public class DerivedMetrics {
+
+    final static Logger logger = Logger.getLogger(DerivedMetrics.class);
+
+    private static final String OPERATORS = "+-*/()^lbcesfhrtn";
+    private static final String UNARY_FUNCTIONS = "lbcesfhrtn";
+    private static final String[][] FUNCTION_NAMES = {
+            {"log", "l"}, {"abs", "b"}, {"cos", "c"}, {"exp", "e"}, {"sqrt", "s"},
+            {"floor", "f"}, {"ceil", "h"}, {"rint", "r"}, {"tan", "t"}, {"sin", "n"}};
+
+    private static final int BLOCK_SIZE = 1024;
+
+    private static final char LOAD = 'a';
+    private static final char CONST = '#';
+
+    private final List<String> names = new ArrayList<String>();
+    // Operations in evaluation order. Operands always refer to previous operations.
+    private final List<Operation> operations = new ArrayList<Operation>();
+    private final Map<String, Integer> operationIndex = new HashMap<String, Integer>();
+    // Operation holding the result of each metric
+    private int[] results;
+
+    private static final class Operation {
+        final char code;
+        final int left;
+        final int right;
+        // Input column of LOAD (negated if the operand had a leading minus), value of CONST
+        final int column;
+        final boolean negative;
+        final double value;
+
+        Operation(char code, int left, int right, int column, boolean negative, double value) {
+            this.code = code;
+            this.left = left;
+            this.right = right;
+            this.column = column;
+            this.negative = negative;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Compiles the given expressions. Metrics are computed in the iteration order of the map.
+     * @param expressions Expression of each new metric, referring to the input columns as a1, a2, ...
+     */
+    public DerivedMetrics(Map<String, String> expressions) {
+        results = new int[expressions.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry : expressions.entrySet()) {
+            names.add(entry.getKey());
+            try {
+                results[i++] = compile(entry.getValue());
+            } catch (RuntimeException e) {
+                logger.error("Error while compiling expression " + entry.getValue() + " of new metric " + entry.getKey(), e);
+                throw new VariableParserException("Error while compiling expression " + entry.getValue() + " of new metric " + entry.getKey());
+            }
+        }
+        logger.debug("Compiled " + names.size() + " new metrics into " + operations.size() + " operations");
+    }
+
+    private DerivedMetrics() {
+    }
+
+    /**
+     * Writes the compiled program: names, operations and result of each metric.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        ModelBundle.writeStrings(out, names);
+        out.writeInt(operations.size());
+        for (Operation op : operations) {
+            out.writeChar(op.code);
+            out.writeInt(op.left);
+            out.writeInt(op.right);
+            out.writeInt(op.column);
+            out.writeBoolean(op.negative);
+            out.writeDouble(op.value);
+        }
+        ModelBundle.writeInts(out, results);
+    }
+
+    /**
+     * Reads a program written by writeTo().
+     */
+    public static DerivedMetrics readFrom(ByteBuffer in) {
+        DerivedMetrics ret = new DerivedMetrics();
+        ret.names.addAll(ModelBundle.readStrings(in));
+        int count = in.getInt();
+        for (int k = 0; k < count; k++) {
+            char code = in.getChar();
+            int left = in.getInt();
+            int right = in.getInt();
+            int column = in.getInt();
+            boolean negative = ModelBundle.readBoolean(in);
+            double value = in.getDouble();
+            if (left >= k || right >= k || (OPERATORS.indexOf(code) == -1 && code != LOAD && code != CONST)) {
+                throw new VariableParserException("Invalid operation " + k + " in compiled new metrics");
+            }
+            ret.operations.add(new Operation(code, left, right, column, negative, value));
+        }
+        ret.results = ModelBundle.readInts(in);
+        for (int result : ret.results) {
+            if (result < 0 || result >= count) {
+                throw new VariableParserException("Invalid result " + result + " in compiled new metrics");
+            }
+        }
+        if (ret.results.length != ret.names.size()) {
+            throw new VariableParserException("Compiled new metrics have " + ret.names.size() + " names but " + ret.results.length + " results");
+        }
+        return ret;
+    }
+
+    /**
+     * Names of the new metrics, in the order their values are returned by evaluate().
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Number of distinct operations needed to compute every metric.
+     */
+    public int getOperationCount() {
+        return operations.size();
+    }
+
+    /**
+     * Computes every new metric.
+     * @param columns Input columns, in the order used by the expressions (a1 is columns[0]).
+     * @param rows Number of rows.
+     * @return One column of values per metric, in the order of getNames().
+     */
+    public double[][] evaluate(double[][] columns, int rows) {
+        if (getInputCount() > columns.length) {
+            String msg = "Expressions refer to column a" + getInputCount() + " but only " + columns.length + " are available";
+            logger.error(msg);
+            throw new VariableParserException(msg);
+        }
+
+        double[][] ret = new double[results.length][rows];
+        double[][] registers = new double[operations.size()][Math.min(BLOCK_SIZE, rows)];
+
+        for (int from = 0; from < rows; from += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, rows - from);
+            for (int k = 0; k < operations.size(); k++) {
+                run(operations.get(k), registers, k, columns, from, n);
+            }
+            for (int m = 0; m < results.length; m++) {
+                double[] result = registers[results[m]];
+                double[] out = ret[m];
+                for (int i = 0; i < n; i++) {
+                    double value = result[i];
+                    out[from + i] = Double.isInfinite(value) ? Double.NaN : value;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Computes every new metric for a single row without allocating anything.
+     * @param row Input values, in the order used by the expressions (a1 is row[0]).
+     * @param registers Scratch space of at least getOperationCount() values.
+     * @param out Receives the value of each metric, in the order of getNames().
+     */
+    public void evaluateRow(double[] row, double[] registers, double[] out) {
+        for (int k = 0; k < operations.size(); k++) {
+            Operation op = operations.get(k);
+            double a = op.left >= 0 ? registers[op.left] : 0;
+            double b = op.right >= 0 ? registers[op.right] : 0;
+            double value;
+            switch (op.code) {
+                case LOAD: value = op.negative ? -row[op.column] : row[op.column]; break;
+                case CONST: value = op.value; break;
+                case '+': value = a + b; break;
+                case '-': value = a - b; break;
+                case '*': value = a * b; break;
+                case '/': value = a / b; break;
+                case '^': value = Math.pow(a, b); break;
+                case 'l': value = Math.log(a); break;
+                case 'b': value = Math.abs(a); break;
+                case 'c': value = Math.cos(a); break;
+                case 'e': value = Math.exp(a); break;
+                case 's': value = Math.sqrt(a); break;
+                case 'f': value = Math.floor(a); break;
+                case 'h': value = Math.ceil(a); break;
+                case 'r': value = Math.rint(a); break;
+                case 't': value = Math.tan(a); break;
+                case 'n': value = Math.sin(a); break;
+                default:
+                    throw new IllegalStateException("Unknown operation " + op.code);
+            }
+            registers[k] = value;
+        }
+        for (int m = 0; m < results.length; m++) {
+            double value = registers[results[m]];
+            out[m] = Double.isInfinite(value) ? Double.NaN : value;
+        }
+    }
+
+    /**
+     * Highest input column used by the expressions plus one, i.e. the minimum length of an input row.
+     */
+    public int getInputCount() {
+        int ret = 0;
+        for (Operation op : operations) {
+            if (op.code == LOAD) {
+                ret = Math.max(ret, op.column + 1);
+            }
+        }
+        return ret;
+    }
+
+    private static void run(Operation op, double[][] registers, int k, double[][] columns, int from, int n) {
+        double[] out = registers[k];
+        double[] a = op.left >= 0 ? registers[op.left] : null;
+        double[] b = op.right >= 0 ? registers[op.right] : null;
+        switch (op.code) {
+            case LOAD:
+                double[] in = columns[op.column];
+                if (op.negative) {
+                    for (int i = 0; i < n; i++) out[i] = -in[from + i];
+                } else {
+                    System.arraycopy(in, from, out, 0, n);
+                }
+                break;
+            case CONST:
+                for (int i = 0; i < n; i++) out[i] = op.value;
+                break;
+            case '+': for (int i = 0; i < n; i++) out[i] = a[i] + b[i]; break;
+            case '-': for (int i = 0; i < n; i++) out[i] = a[i] - b[i]; break;
+            case '*': for (int i = 0; i < n; i++) out[i] = a[i] * b[i]; break;
+            case '/': for (int i = 0; i < n; i++) out[i] = a[i] / b[i]; break;
+            case '^': for (int i = 0; i < n; i++) out[i] = Math.pow(a[i], b[i]); break;
+            case 'l': for (int i = 0; i < n; i++) out[i] = Math.log(a[i]); break;
+            case 'b': for (int i = 0; i < n; i++) out[i] = Math.abs(a[i]); break;
+            case 'c': for (int i = 0; i < n; i++) out[i] = Math.cos(a[i]); break;
+            case 'e': for (int i = 0; i < n; i++) out[i] = Math.exp(a[i]); break;
+            case 's': for (int i = 0; i < n; i++) out[i] = Math.sqrt(a[i]); break;
+            case 'f': for (int i = 0; i < n; i++) out[i] = Math.floor(a[i]); break;
+            case 'h': for (int i = 0; i < n; i++) out[i] = Math.ceil(a[i]); break;
+            case 'r': for (int i = 0; i < n; i++) out[i] = Math.rint(a[i]); break;
+            case 't': for (int i = 0; i < n; i++) out[i] = Math.tan(a[i]); break;
+            case 'n': for (int i = 0; i < n; i++) out[i] = Math.sin(a[i]); break;
+            default:
+                throw new IllegalStateException("Unknown operation " + op.code);
+        }
+    }
+
+    /**
+     * Compiles one expression and returns the operation holding its result.
+     */
+    private int compile(String infix) {
+        Stack<Integer> operands = new Stack<Integer>();
+        for (Object component : toPostfix(infix)) {
+            if (component instanceof Character) {
+                char code = (Character) component;
+                if (UNARY_FUNCTIONS.indexOf(code) != -1) {
+                    int operand = operands.pop();
+                    operands.push(addOperation(new Operation(code, operand, -1, -1, false, 0), code + "(" + operand + ")"));
+                } else {
+                    int right = operands.pop();
+                    int left = operands.pop();
+                    operands.push(addOperation(new Operation(code, left, right, -1, false, 0), code + "(" + left + "," + right + ")"));
+                }
+            } else {
+                operands.push((Integer) component);
+            }
+        }
+        if (operands.size() != 1) {
+            throw new IllegalArgumentException("Problem applying function");
+        }
+        return operands.pop();
+    }
+
+    /**
+     * Adds the operation unless an identical one already exists.
+     */
+    private int addOperation(Operation op, String key) {
+        Integer index = operationIndex.get(key);
+        if (index == null) {
+            index = operations.size();
+            operations.add(op);
+            operationIndex.put(key, index);
+        }
+        return index;
+    }
+
+    private int addOperand(String tok, boolean negative) {
+        if (tok.indexOf('a') != -1) {
+            int column = Integer.parseInt(tok.substring(1)) - 1;
+            if (column < 0) {
+                throw new IllegalArgumentException("Invalid column " + tok);
+            }
+            return addOperation(new Operation(LOAD, -1, -1, column, negative, 0), (negative ? "-a" : "a") + column);
+        }
+        double value = Double.valueOf(tok);
+        if (negative) {
+            value = -value;
+        }
+        return addOperation(new Operation(CONST, -1, -1, -1, false, value), "#" + Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Converts the infix expression to postfix following weka.core.AttributeExpression. Operands are returned
+     * as operation indexes and operators as characters.
+     */
+    private List<Object> toPostfix(String infix) {
+        infix = infix.replace(" ", "");
+        for (String[] function : FUNCTION_NAMES) {
+            infix = infix.replace(function[0], function[1]);
+        }
+
+        List<Object> postfix = new ArrayList<Object>();
+        Stack<Character> stack = new Stack<Character>();
+        boolean negative = false;
+        String previous = "";
+
+        StringTokenizer tokenizer = new StringTokenizer(infix, OPERATORS, true);
+        while (tokenizer.hasMoreTokens()) {
+            String tok = tokenizer.nextToken();
+            char c = tok.charAt(0);
+            if (tok.length() > 1 || OPERATORS.indexOf(c) == -1) {
+                postfix.add(addOperand(tok, negative));
+                negative = false;
+            } else if (c == ')') {
+                char popped;
+                do {
+                    popped = stack.pop();
+                    if (popped != '(') {
+                        postfix.add(popped);
+                    }
+                } while (popped != '(');
+            } else {
+                boolean push = true;
+                int priority = infixPriority(c);
+                while (!stack.empty() && stackPriority(stack.peek()) >= priority) {
+                    // An operator right after another one is the sign of the next operand
+                    if (previous.length() == 1 && OPERATORS.indexOf(previous.charAt(0)) != -1 && previous.charAt(0) != ')') {
+                        negative = c == '-';
+                        push = false;
+                        break;
+                    }
+                    postfix.add(stack.pop());
+                }
+                if (postfix.isEmpty() && c == '-') {
+                    negative = true;
+                    push = false;
+                }
+                if (push) {
+                    stack.push(c);
+                }
+            }
+            previous = tok;
+        }
+
+        while (!stack.empty()) {
+            char popped = stack.pop();
+            if (popped == '(' || popped == ')') {
+                throw new IllegalArgumentException("Mis-matched parenthesis!");
+            }
+            postfix.add(popped);
+        }
+        return postfix;
+    }
+
+    private static int infixPriority(char c) {
+        return c == '(' ? 4 : priority(c);
+    }
+
+    private static int stackPriority(char c) {
+        return c == '(' ? 0 : priority(c);
+    }
+
+    private static int priority(char c) {
+        if (UNARY_FUNCTIONS.indexOf(c) != -1) {
+            return 3;
+        }
+        switch (c) {
+            case '^':
+            case '*':
+            case '/':
+                return 2;
+            case '+':
+            case '-':
+                return 1;
+            case ')':
+                return 0;
+            default:
+                throw new IllegalArgumentException("Unrecognized operator:" + c);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller.tools;
+
+import es.bsc.autonomic.powermodeller.DataSet;
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+
+import java.util.Arrays;
+
+/**
+ * Accuracy of a set of estimations: correlation, R^2 (squared correlation), MAE, RMSE, RAE and MAPE, the
+ * last two in percent. Samples where the actual or the predicted power is missing are not taken into
+ * account.
+ *
+ * compute() gives the metrics of a whole estimation DataSet. Streaming estimations add their samples to an
+ * Accumulator and take the metrics whenever they are needed. The Accumulator keeps a fixed amount of state,
+ * so its RAE is relative to the deviation of each actual value from the running mean at the time it was
+ * added instead of from the final mean. compute() makes a second pass over the samples and gives the exact
+ * RAE.
+ */
+public final class EstimationMetrics {
+
+    private final long count;
+    private final double correlation;
+    private final double r2;
+    private final double mae;
+    private final double rmse;
+    private final double rae;
+    private final double mape;
+
+    EstimationMetrics(long count, double correlation, double mae, double rmse, double rae, double mape) {
+        this.count = count;
+        this.correlation = correlation;
+        this.r2 = correlation * correlation;
+        this.mae = mae;
+        this.rmse = rmse;
+        this.rae = rae;
+        this.mape = mape;
+    }
+
+    /**
+     * Metrics of the Pactual and Ppredicted columns of an estimation DataSet.
+     */
+    public static EstimationMetrics compute(DataSet estimation) {
+        return compute(estimation, CoreConfiguration.PACTUAL_LABEL, CoreConfiguration.PPREDICTED_LABEL);
+    }
+
+    public static EstimationMetrics compute(DataSet estimation, String actualLabel, String predictedLabel) {
+        double[][] columns = estimation.getCols(Arrays.asList(actualLabel, predictedLabel));
+        return compute(columns[0], columns[1]);
+    }
+
+    public static EstimationMetrics compute(double[] actual, double[] predicted) {
+        if (actual.length != predicted.length) {
+            throw new IllegalArgumentException("Got " + actual.length + " actual values but " + predicted.length + " predictions");
+        }
+        Accumulator accumulator = new Accumulator();
+        for (int i = 0; i < actual.length; i++) {
+            accumulator.add(actual[i], predicted[i]);
+        }
+
+        // Mean absolute deviation of the actual values from their final mean
+        double deviation = 0;
+        long n = 0;
+        for (int i = 0; i < actual.length; i++) {
+            if (!Double.isNaN(actual[i]) && !Double.isNaN(predicted[i])) {
+                n++;
+                deviation += (Math.abs(actual[i] - accumulator.meanActual) - deviation) / n;
+            }
+        }
+        return accumulator.getMetrics(deviation);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getCorrelation() {
+        return correlation;
+    }
+
+    public double getR2() {
+        return r2;
+    }
+
+    public double getMAE() {
+        return mae;
+    }
+
+    public double getRMSE() {
+        return rmse;
+    }
+
+    public double getRAE() {
+        return rae;
+    }
+
+    public double getMAPE() {
+        return mape;
+    }
+
+    @Override
+    public String toString() {
+        return "Correlation = " + correlation + "\n" +
+                "R^2 = " + r2 + "\n" +
+                "MAE = " + mae + "\n" +
+                "RMSE = " + rmse + "\n" +
+                "RAE = " + rae + "\n" +
+                "MAPE = " + mape + "\n";
+    }
+
+    /**
+     * Updates the metrics one sample at a time, keeping a fixed amount of state whatever the number of
+     * samples. Means and co-moments are updated with Welford's method so that long streams do not lose
+     * precision. RAE is relative to the deviation from the running mean, see above. Not safe for concurrent
+     * use.
+     */
+    public static final class Accumulator {
+        private long count = 0;
+        private double meanActual = 0;
+        private double meanPredicted = 0;
+        private double m2Actual = 0;
+        private double m2Predicted = 0;
+        private double coMoment = 0;
+        private double meanAbsError = 0;
+        private double meanSquaredError = 0;
+        private double meanAbsPercentError = 0;
+        private double meanAbsDeviation = 0;
+
+        public void add(double actual, double predicted) {
+            if (Double.isNaN(actual) || Double.isNaN(predicted)) {
+                return;
+            }
+
+            count++;
+            double deltaActual = actual - meanActual;
+            double deltaPredicted = predicted - meanPredicted;
+            meanActual += deltaActual / count;
+            meanPredicted += deltaPredicted / count;
+            m2Actual += deltaActual * (actual - meanActual);
+            m2Predicted += deltaPredicted * (predicted - meanPredicted);
+            coMoment += deltaActual * (predicted - meanPredicted);
+
+            double error = Math.abs(predicted - actual);
+            meanAbsError += (error - meanAbsError) / count;
+            meanSquaredError += (error * error - meanSquaredError) / count;
+            meanAbsPercentError += (error / Math.abs(actual) - meanAbsPercentError) / count;
+            meanAbsDeviation += (Math.abs(actual - meanActual) - meanAbsDeviation) / count;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Metrics of the samples added so far. The accumulator can still be updated afterwards.
+         */
+        public EstimationMetrics getMetrics() {
+            return getMetrics(meanAbsDeviation);
+        }
+
+        private EstimationMetrics getMetrics(double deviation) {
+            if (count == 0) {
+                return new EstimationMetrics(0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+            }
+
+            double correlation = coMoment / Math.sqrt(m2Actual * m2Predicted);
+            return new EstimationMetrics(count, correlation, meanAbsError, Math.sqrt(meanSquaredError),
+                    100 * meanAbsError / deviation, 100 * meanAbsPercentError);
+        }
+    }
+}
@@ -37,6 +37,10 @@ public class VariableParser implements Serializable{
 
     public VariableParser(String filePath, List<String> dataSetHeader) {
         this.dataSetHeader = dataSetHeader;
+        Map<String, Integer> headerIndex = new HashMap<String, Integer>();
+        for(int i = dataSetHeader.size() - 1; i >= 0; i--) {
+            headerIndex.put(dataSetHeader.get(i), i);
+        }
 
         PropertiesConfiguration config = new PropertiesConfiguration();
         try {
@@ -44,13 +48,13 @@ public class VariableParser implements Serializable{
 
             columns = new LinkedList(Arrays.asList(config.getStringArray("metrics")));
             for(String column : columns) {
-                if( !dataSetHeader.contains(column) ) {
+                if( !headerIndex.containsKey(column) ) {
                     throw new VariableParserException("Selected metric '" + column + "' does not exist in the provided dataset");
                 }
             }
 
-            HashMap<String, String> varDictionary = processRawHM(populateHMFromKeyPrefix("var", config), null);
-            newMetrics = processRawHM(populateHMFromKeyPrefix("newmetric", config), varDictionary);
+            HashMap<String, String> varDictionary = processRawHM(populateHMFromKeyPrefix("var", config), null, headerIndex);
+            newMetrics = processRawHM(populateHMFromKeyPrefix("newmetric", config), varDictionary, headerIndex);
 
         } catch (ConfigurationException e) {
             logger.error("Error while loading configuration file", e);
@@ -59,6 +63,16 @@ public class VariableParser implements Serializable{
     }
 
 
+    /**
+     * Parser already processed, e.g. read from a ModelBundle.
+     */
+    public VariableParser(List<String> dataSetHeader, List<String> columns, HashMap<String, String> newMetrics) {
+        this.dataSetHeader = dataSetHeader;
+        this.columns = columns;
+        this.newMetrics = newMetrics;
+    }
+
+
     private List<String> mierda(List<String> dataSetHeader) {
         List<String> ret = new ArrayList<String>();
 
@@ -88,9 +102,10 @@ public class VariableParser implements Serializable{
      * Translates the value expressions of a HashMap into argument numbers and returns a new translated HashMap.
      * @param rawHM HashMap to be translated: its values will be translated into argument numbers. i.e. cpu-cycles -> a31
      * @param varDictionary If not null, the function will treat rawHM as new metrics to be included in the columns list
+     * @param headerIndex Position of each metric in the dataset header
      * @return
      */
-    private HashMap<String, String> processRawHM(HashMap<String, String> rawHM, HashMap<String, String> varDictionary) {
+    private HashMap<String, String> processRawHM(HashMap<String, String> rawHM, HashMap<String, String> varDictionary, Map<String, Integer> headerIndex) {
 
         HashMap<String, String> ret = new HashMap<String, String>();
 
@@ -104,8 +119,9 @@ public class VariableParser implements Serializable{
             {
                 String wrappedMetric = regexMatcher.group();
                 String metricName = wrappedMetric.substring(1, wrappedMetric.length() - 1);
-                if(dataSetHeader.indexOf(metricName) >= 0) { //Operating on an existing metric
-                    int j = dataSetHeader.indexOf(metricName) + 1;
+                Integer index = headerIndex.get(metricName);
+                if(index != null) { //Operating on an existing metric
+                    int j = index + 1;
                     expression = expression.replace(wrappedMetric, "a" + j);
                 } /*else if(ret.containsKey(metricName)) { //Operating on a new var/metric that uses previously defined vars/metrics, respectively
                     expression = expression.replace(wrappedMetric, ret.get(metricName));
@@ -145,4 +161,11 @@ public class VariableParser implements Serializable{
     public List<String> getColumns() {
         return columns;
     }
+
+    /**
+     * Header of the DataSet the expressions refer to: a1 is its first metric, a2 the second one...
+     */
+    public List<String> getDataSetHeader() {
+        return dataSetHeader;
+    }
 }
@@ -0,0 +1,523 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller.tools.classifiers;
+
+import es.bsc.autonomic.powermodeller.ModelBundle;
+import es.bsc.autonomic.powermodeller.exceptions.WekaWrapperException;
+import org.apache.log4j.Logger;
+import weka.classifiers.Classifier;
+import weka.classifiers.functions.LinearRegression;
+import weka.classifiers.trees.REPTree;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Estimates the class of a whole block of samples given by columns.
+ *
+ * LinearRegression models are evaluated as a dot product over the columns and REPTree models by walking a
+ * flattened copy of the tree. Both give exactly the same values as classifyInstance(); rows with missing
+ * values, which Weka treats specially, go through the classifier itself. Any other classifier is evaluated
+ * row by row with classifyInstance().
+ *
+ * The compiled state never changes, but the classifier is used for some rows and most Weka classifiers are
+ * not safe for concurrent use: give each thread its own copy().
+ *
+ * The flattened form is stored with writeTo() and loaded with readFrom(), which does not need to inspect
+ * the classifier again. Single rows are estimated with predict(double[], Instance), which also leaves the
+ * classifier alone unless the row has missing values, so a SerializedClassifier is only deserialized when
+ * it is really needed.
+ */
+public abstract class BatchPredictor {
+
+    final static Logger logger = Logger.getLogger(BatchPredictor.class);
+
+    // Rows evaluated at once by the linear path, so the partial results stay in cache
+    private static final int BLOCK_SIZE = 1024;
+
+    // Kind of predictor stored by writeTo()
+    private static final byte INSTANCE = 0;
+    private static final byte LINEAR = 1;
+    private static final byte TREE = 2;
+
+    protected final Classifier classifier;
+    protected final Instances header;
+
+    protected BatchPredictor(Classifier classifier, Instances header) {
+        this.classifier = classifier;
+        this.header = header;
+    }
+
+    /**
+     * Builds the predictor for a classifier trained on the given attributes.
+     * @param classifier Trained classifier. It is not copied, so it must not be retrained afterwards.
+     * @param attributes Names of the attributes the classifier was trained with, in order.
+     * @param classIndex Position of the class in attributes.
+     */
+    public static BatchPredictor compile(Classifier classifier, List<String> attributes, int classIndex) {
+        Instances header = newHeader(attributes, classIndex);
+
+        BatchPredictor predictor = null;
+        Classifier model = SerializedClassifier.unwrap(classifier);
+        try {
+            if (model instanceof LinearRegression) {
+                predictor = LinearPredictor.compile((LinearRegression) model, classifier, header);
+            } else if (model instanceof REPTree) {
+                predictor = TreePredictor.compile((REPTree) model, classifier, header);
+            }
+        } catch (Exception e) {
+            logger.debug("Could not inspect " + classifier.getClass().getName() + ", estimating instance by instance", e);
+        }
+        return predictor != null ? predictor : new InstancePredictor(classifier, header);
+    }
+
+    /**
+     * Reads a predictor written by writeTo().
+     * @param classifier Classifier the predictor was built for, used for the rows it cannot handle itself.
+     * @param attributes Names of the attributes the classifier was trained with, in order.
+     * @param classIndex Position of the class in attributes.
+     */
+    public static BatchPredictor readFrom(ByteBuffer in, Classifier classifier, List<String> attributes, int classIndex) {
+        Instances header = newHeader(attributes, classIndex);
+        byte kind = in.get();
+        switch (kind) {
+            case INSTANCE:
+                return new InstancePredictor(classifier, header);
+            case LINEAR: {
+                int[] used = ModelBundle.readInts(in);
+                double[] coefficients = ModelBundle.readDoubles(in);
+                checkAttributes(used, header);
+                if (coefficients.length != used.length + 1) {
+                    throw new WekaWrapperException("Linear predictor has " + used.length + " attributes but " + coefficients.length + " coefficients");
+                }
+                return new LinearPredictor(classifier, header, used, coefficients, coefficients[used.length]);
+            }
+            case TREE: {
+                int[] attribute = ModelBundle.readInts(in);
+                double[] splitPoint = ModelBundle.readDoubles(in);
+                int[] left = ModelBundle.readInts(in);
+                int[] right = ModelBundle.readInts(in);
+                double[] value = ModelBundle.readDoubles(in);
+                int nodes = attribute.length;
+                if (nodes == 0 || splitPoint.length != nodes || left.length != nodes || right.length != nodes || value.length != nodes) {
+                    throw new WekaWrapperException("Inconsistent tree predictor");
+                }
+                for (int n = 0; n < nodes; n++) {
+                    // Children always come after their parent, so walking the tree always ends
+                    if (attribute[n] >= 0 && (attribute[n] >= header.numAttributes() || left[n] <= n || right[n] <= n
+                            || left[n] >= nodes || right[n] >= nodes)) {
+                        throw new WekaWrapperException("Inconsistent tree predictor");
+                    }
+                }
+                return new TreePredictor(classifier, header, attribute, splitPoint, left, right, value);
+            }
+            default:
+                throw new WekaWrapperException("Unknown kind of predictor " + kind);
+        }
+    }
+
+    /**
+     * Writes the flattened form of the classifier. The classifier itself is not written.
+     */
+    public abstract void writeTo(DataOutput out) throws IOException;
+
+    private static Instances newHeader(List<String> attributes, int classIndex) {
+        ArrayList<Attribute> list = new ArrayList<Attribute>(attributes.size());
+        for (String name : attributes) {
+            list.add(new Attribute(name));
+        }
+        Instances header = new Instances("predict", list, 0);
+        header.setClassIndex(classIndex);
+        return header;
+    }
+
+    private static void checkAttributes(int[] attributes, Instances header) {
+        for (int attribute : attributes) {
+            if (attribute < 0 || attribute >= header.numAttributes() || attribute == header.classIndex()) {
+                throw new WekaWrapperException("Invalid attribute " + attribute + " in predictor");
+            }
+        }
+    }
+
+    /**
+     * Estimates the class of the given rows.
+     * @param columns One column per attribute, in the order given to compile(). The class column is not read
+     *                and can be null. NaN means missing.
+     * @param rows Number of rows to estimate, from the beginning of the columns.
+     */
+    public double[] predict(double[][] columns, int rows) {
+        if (columns.length != header.numAttributes()) {
+            logger.error("Expected " + header.numAttributes() + " columns but got " + columns.length);
+            throw new WekaWrapperException("Expected " + header.numAttributes() + " columns but got " + columns.length);
+        }
+        double[] estimated = new double[rows];
+        predict(columns, rows, estimated);
+        return estimated;
+    }
+
+    /**
+     * True if the classifier is evaluated without going through Weka for rows without missing values.
+     */
+    public abstract boolean isSpecialised();
+
+    /**
+     * Estimates a single row, giving the same value as predict(double[][], int).
+     * @param values Backing array of instance, with one value per attribute in the order given to compile().
+     *               The class value is not read. NaN means missing.
+     */
+    public abstract double predict(double[] values, Instance instance);
+
+    /**
+     * Same predictor, estimating the rows it cannot handle itself with the given classifier instead. The
+     * compiled state is shared, so a copy of the original classifier gives a predictor for another thread.
+     */
+    public abstract BatchPredictor copy(Classifier classifier);
+
+    protected abstract void predict(double[][] columns, int rows, double[] estimated);
+
+    /**
+     * Estimates a single row with the classifier itself. values is the backing array of instance.
+     */
+    protected double classify(double[][] columns, int row, double[] values, Instance instance) {
+        for (int j = 0; j < values.length; j++) {
+            values[j] = columns[j] != null ? columns[j][row] : Utils.missingValue();
+        }
+        return classify(instance);
+    }
+
+    protected double classify(Instance instance) {
+        try {
+            return classifier.classifyInstance(instance);
+        } catch (Exception e) {
+            logger.error("Error while estimating instances", e);
+            throw new WekaWrapperException("Error while estimating instances");
+        }
+    }
+
+    protected Instance newInstance(double[] values) {
+        // The instance keeps a reference to values, so they are written there directly
+        Instance instance = new DenseInstance(1.0, values);
+        instance.setDataset(header);
+        return instance;
+    }
+
+    private static Object getField(Class<?> cls, Object target, String name) throws Exception {
+        Field field = cls.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+
+    /**
+     * Any classifier, one classifyInstance() call per row.
+     */
+    private static final class InstancePredictor extends BatchPredictor {
+
+        private InstancePredictor(Classifier classifier, Instances header) {
+            super(classifier, header);
+        }
+
+        @Override
+        public boolean isSpecialised() {
+            return false;
+        }
+
+        @Override
+        public BatchPredictor copy(Classifier classifier) {
+            return new InstancePredictor(classifier, new Instances(header, 0));
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(INSTANCE);
+        }
+
+        @Override
+        public double predict(double[] values, Instance instance) {
+            return classify(instance);
+        }
+
+        @Override
+        protected void predict(double[][] columns, int rows, double[] estimated) {
+            double[] values = new double[header.numAttributes()];
+            Instance instance = newInstance(values);
+            for (int i = 0; i < rows; i++) {
+                estimated[i] = classify(columns, i, values, instance);
+            }
+        }
+    }
+
+    /**
+     * LinearRegression: intercept plus the weighted sum of the selected attributes, added in attribute order
+     * like Weka does so the results are identical. Missing values are replaced by the training means in Weka,
+     * so those rows are left to the classifier.
+     */
+    private static final class LinearPredictor extends BatchPredictor {
+        private final int[] attributes;
+        private final double[] coefficients;
+        private final double intercept;
+
+        private LinearPredictor(Classifier classifier, Instances header, int[] attributes, double[] coefficients, double intercept) {
+            super(classifier, header);
+            this.attributes = attributes;
+            this.coefficients = coefficients;
+            this.intercept = intercept;
+        }
+
+        private static BatchPredictor compile(LinearRegression model, Classifier classifier, Instances header) throws Exception {
+            boolean[] selected = (boolean[]) getField(LinearRegression.class, model, "m_SelectedAttributes");
+            double[] coefficients = (double[]) getField(LinearRegression.class, model, "m_Coefficients");
+            int modelClass = (Integer) getField(LinearRegression.class, model, "m_ClassIndex");
+            if (selected == null || coefficients == null || selected.length != header.numAttributes()
+                    || modelClass != header.classIndex()) {
+                return null;
+            }
+
+            List<Integer> used = new ArrayList<Integer>();
+            for (int j = 0; j < selected.length; j++) {
+                if (j != modelClass && selected[j]) {
+                    used.add(j);
+                }
+            }
+            if (coefficients.length != used.size() + 1) {
+                return null;
+            }
+            int[] attributes = new int[used.size()];
+            for (int k = 0; k < attributes.length; k++) {
+                attributes[k] = used.get(k);
+            }
+            return new LinearPredictor(classifier, header, attributes, coefficients.clone(), coefficients[attributes.length]);
+        }
+
+        @Override
+        public boolean isSpecialised() {
+            return true;
+        }
+
+        @Override
+        public BatchPredictor copy(Classifier classifier) {
+            return new LinearPredictor(classifier, new Instances(header, 0), attributes, coefficients, intercept);
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(LINEAR);
+            ModelBundle.writeInts(out, attributes);
+            ModelBundle.writeDoubles(out, coefficients);
+        }
+
+        @Override
+        public double predict(double[] values, Instance instance) {
+            // Same order of additions as the columns path
+            double estimated = 0;
+            for (int k = 0; k < attributes.length; k++) {
+                estimated += coefficients[k] * values[attributes[k]];
+            }
+            estimated += intercept;
+            return Double.isNaN(estimated) ? classify(instance) : estimated;
+        }
+
+        @Override
+        protected void predict(double[][] columns, int rows, double[] estimated) {
+            double[] values = null;
+            Instance instance = null;
+
+            for (int start = 0; start < rows; start += BLOCK_SIZE) {
+                int end = Math.min(rows, start + BLOCK_SIZE);
+                for (int k = 0; k < attributes.length; k++) {
+                    double[] column = columns[attributes[k]];
+                    double coefficient = coefficients[k];
+                    for (int i = start; i < end; i++) {
+                        estimated[i] += coefficient * column[i];
+                    }
+                }
+                for (int i = start; i < end; i++) {
+                    estimated[i] += intercept;
+                }
+
+                // Only NaN inputs give a NaN result
+                for (int i = start; i < end; i++) {
+                    if (Double.isNaN(estimated[i])) {
+                        if (instance == null) {
+                            values = new double[header.numAttributes()];
+                            instance = newInstance(values);
+                        }
+                        estimated[i] = classify(columns, i, values, instance);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * REPTree with numeric attributes, flattened into arrays. Nodes whose distribution is unknown take the one
+     * of their closest ancestor, as Weka does. Rows reaching a missing value are left to the classifier, which
+     * averages the branches.
+     */
+    private static final class TreePredictor extends BatchPredictor {
+        // Split attribute of each node, -1 for leaves
+        private final int[] attribute;
+        private final double[] splitPoint;
+        private final int[] left;
+        private final int[] right;
+        private final double[] value;
+
+        private TreePredictor(Classifier classifier, Instances header, int[] attribute, double[] splitPoint, int[] left, int[] right, double[] value) {
+            super(classifier, header);
+            this.attribute = attribute;
+            this.splitPoint = splitPoint;
+            this.left = left;
+            this.right = right;
+            this.value = value;
+        }
+
+        private static BatchPredictor compile(REPTree model, Classifier classifier, Instances header) throws Exception {
+            // Trees with no split on the data are replaced by ZeroR
+            if (getField(REPTree.class, model, "m_zeroR") != null) {
+                return null;
+            }
+            Object root = getField(REPTree.class, model, "m_Tree");
+            if (root == null) {
+                return null;
+            }
+
+            List<Integer> attribute = new ArrayList<Integer>();
+            List<Double> splitPoint = new ArrayList<Double>();
+            List<Integer> left = new ArrayList<Integer>();
+            List<Integer> right = new ArrayList<Integer>();
+            List<Double> value = new ArrayList<Double>();
+            if (!flatten(root, Double.NaN, header, attribute, splitPoint, left, right, value)) {
+                return null;
+            }
+
+            int nodes = attribute.size();
+            int[] attributeArray = new int[nodes];
+            double[] splitArray = new double[nodes];
+            int[] leftArray = new int[nodes];
+            int[] rightArray = new int[nodes];
+            double[] valueArray = new double[nodes];
+            for (int n = 0; n < nodes; n++) {
+                attributeArray[n] = attribute.get(n);
+                splitArray[n] = splitPoint.get(n);
+                leftArray[n] = left.get(n);
+                rightArray[n] = right.get(n);
+                valueArray[n] = value.get(n);
+            }
+            return new TreePredictor(classifier, header, attributeArray, splitArray, leftArray, rightArray, valueArray);
+        }
+
+        private static boolean flatten(Object node, double inherited, Instances header, List<Integer> attribute, List<Double> splitPoint,
+                                       List<Integer> left, List<Integer> right, List<Double> value) throws Exception {
+            Class<?> cls = node.getClass();
+            int split = (Integer) getField(cls, node, "m_Attribute");
+            double[] classProbs = (double[]) getField(cls, node, "m_ClassProbs");
+            double own = classProbs != null ? classProbs[0] : inherited;
+
+            int index = attribute.size();
+            attribute.add(-1);
+            splitPoint.add(0.0);
+            left.add(-1);
+            right.add(-1);
+            value.add(own);
+            if (split < 0) {
+                return true;
+            }
+
+            Instances info = (Instances) getField(cls, node, "m_Info");
+            Object[] successors = (Object[]) getField(cls, node, "m_Successors");
+            if (split >= header.numAttributes() || (info != null && !info.attribute(split).isNumeric())
+                    || successors == null || successors.length != 2) {
+                return false;
+            }
+            attribute.set(index, split);
+            splitPoint.set(index, (Double) getField(cls, node, "m_SplitPoint"));
+            left.set(index, attribute.size());
+            if (!flatten(successors[0], own, header, attribute, splitPoint, left, right, value)) {
+                return false;
+            }
+            right.set(index, attribute.size());
+            return flatten(successors[1], own, header, attribute, splitPoint, left, right, value);
+        }
+
+        @Override
+        public boolean isSpecialised() {
+            return true;
+        }
+
+        @Override
+        public BatchPredictor copy(Classifier classifier) {
+            return new TreePredictor(classifier, new Instances(header, 0), attribute, splitPoint, left, right, value);
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(TREE);
+            ModelBundle.writeInts(out, attribute);
+            ModelBundle.writeDoubles(out, splitPoint);
+            ModelBundle.writeInts(out, left);
+            ModelBundle.writeInts(out, right);
+            ModelBundle.writeDoubles(out, value);
+        }
+
+        @Override
+        public double predict(double[] values, Instance instance) {
+            int node = 0;
+            while (attribute[node] >= 0) {
+                double x = values[attribute[node]];
+                if (Double.isNaN(x)) {
+                    return classify(instance);
+                }
+                node = x < splitPoint[node] ? left[node] : right[node];
+            }
+            return Double.isNaN(value[node]) ? classify(instance) : value[node];
+        }
+
+        @Override
+        protected void predict(double[][] columns, int rows, double[] estimated) {
+            double[] values = null;
+            Instance instance = null;
+
+            for (int i = 0; i < rows; i++) {
+                int node = 0;
+                boolean missing = false;
+                while (attribute[node] >= 0) {
+                    double x = columns[attribute[node]][i];
+                    if (Double.isNaN(x)) {
+                        missing = true;
+                        break;
+                    }
+                    node = x < splitPoint[node] ? left[node] : right[node];
+                }
+
+                if (missing || Double.isNaN(value[node])) {
+                    if (instance == null) {
+                        values = new double[header.numAttributes()];
+                        instance = newInstance(values);
+                    }
+                    estimated[i] = classify(columns, i, values, instance);
+                } else {
+                    estimated[i] = value[node];
+                }
+            }
+        }
+    }
+}
@@ -18,7 +18,6 @@ import es.bsc.autonomic.powermodeller.exceptions.WekaWrapperException;
 import weka.classifiers.Classifier;
 import weka.classifiers.functions.MultilayerPerceptron;
 import weka.core.Instances;
-import weka.core.converters.ConverterUtils;
 
 public class MultilayerPerceptronClassifier  extends WekaWrapper {
     @Override
@@ -36,12 +35,8 @@ public class MultilayerPerceptronClassifier  extends WekaWrapper {
 
         try {
 
-            // Read all the instances in the file (ARFF, CSV, XRFF, ...)
-            ConverterUtils.DataSource source = new ConverterUtils.DataSource(training_ds.getFilePath());
-            Instances instances = source.getDataSet();
-
-            // Set the independent variable (powerWatts).
-            instances.setClassIndex(instances.attribute(independent).index());
+            // Build the instances in memory, with the independent variable (powerWatts) as class.
+            Instances instances = convertDataSetToInstances(training_ds);
 
             // Builds a regression model for the given data.
             model = new weka.classifiers.functions.MultilayerPerceptron();
@@ -0,0 +1,122 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller.tools.classifiers;
+
+import es.bsc.autonomic.powermodeller.exceptions.WekaWrapperException;
+import org.apache.log4j.Logger;
+import weka.classifiers.Classifier;
+import weka.core.Capabilities;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Classifier kept in its Java-serialized form and only deserialized the first time it is used.
+ *
+ * Models loaded from a ModelBundle are estimated by their BatchPredictor, which only needs the Weka
+ * classifier for rows it cannot handle itself, so most of them never pay for deserializing it nor depend
+ * on the Weka classes being unchanged. Copies made with AbstractClassifier.makeCopy() only copy the bytes.
+ */
+public final class SerializedClassifier implements Classifier, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final static Logger logger = Logger.getLogger(SerializedClassifier.class);
+
+    private final byte[] bytes;
+    private transient volatile Classifier classifier;
+
+    public SerializedClassifier(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Java-serialized form of the given classifier.
+     */
+    public static byte[] serialize(Classifier classifier) throws IOException {
+        if (classifier instanceof SerializedClassifier) {
+            return ((SerializedClassifier) classifier).bytes;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream objectOut = new ObjectOutputStream(out);
+        objectOut.writeObject(classifier);
+        objectOut.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * The classifier itself if the given one is a SerializedClassifier, deserializing it if needed.
+     */
+    public static Classifier unwrap(Classifier classifier) {
+        return classifier instanceof SerializedClassifier ? ((SerializedClassifier) classifier).getClassifier() : classifier;
+    }
+
+    public boolean isDeserialized() {
+        return classifier != null;
+    }
+
+    public Classifier getClassifier() {
+        Classifier ret = classifier;
+        if (ret == null) {
+            synchronized (this) {
+                ret = classifier;
+                if (ret == null) {
+                    try {
+                        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                        ret = (Classifier) in.readObject();
+                        in.close();
+                    } catch (Exception e) {
+                        logger.error("Error while reading classifier", e);
+                        throw new WekaWrapperException("Error while reading classifier", e);
+                    }
+                    classifier = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Not supported: the stored bytes would no longer match the classifier.
+     */
+    @Override
+    public void buildClassifier(Instances data) throws Exception {
+        throw new WekaWrapperException("A stored classifier can not be trained again");
+    }
+
+    @Override
+    public double classifyInstance(Instance instance) throws Exception {
+        return getClassifier().classifyInstance(instance);
+    }
+
+    @Override
+    public double[] distributionForInstance(Instance instance) throws Exception {
+        return getClassifier().distributionForInstance(instance);
+    }
+
+    @Override
+    public Capabilities getCapabilities() {
+        return getClassifier().getCapabilities();
+    }
+
+    @Override
+    public String toString() {
+        return getClassifier().toString();
+    }
+}
@@ -16,24 +16,22 @@ package es.bsc.autonomic.powermodeller.tools.classifiers;
 import es.bsc.autonomic.powermodeller.DataSet;
 import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
 import es.bsc.autonomic.powermodeller.exceptions.WekaWrapperException;
+import es.bsc.autonomic.powermodeller.tools.DerivedMetrics;
 import es.bsc.autonomic.powermodeller.tools.VariableParser;
 import es.bsc.autonomic.powermodeller.tools.filters.FilterTool;
 import org.apache.log4j.Logger;
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
-import weka.core.Instance;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
 import weka.core.Instances;
-import weka.core.converters.CSVSaver;
-import weka.core.converters.ConverterUtils;
-import weka.filters.unsupervised.attribute.AddExpression;
 
-import java.io.File;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-
-import static weka.filters.Filter.useFilter;
+import java.util.Set;
 
 public abstract class WekaWrapper {
     private static final String LINEAR_REGRESSION = "LinearRegression";
@@ -66,23 +64,26 @@ public abstract class WekaWrapper {
             throw new WekaWrapperException("Independent variable is not set in dataset.");
 
         HashMap<String, String> expression_list = parser.getNewMetrics();
-        Instances data = convertDataSetToInstances(ds);
+        List<String> header = ds.getHeader();
+        List<String> names = new ArrayList<String>(header);
+        double[][] columns;
 
         try {
-            // Apply filters for all the new variables
-            for (Map.Entry<String, String> entry : expression_list.entrySet()) {
-                String key = entry.getKey();
-                String value = entry.getValue();
-                logger.debug("Generating new variable " + key + " as " + value);
-
-                AddExpression add_filter = new AddExpression();
-                add_filter.setName(key);
-                add_filter.setExpression(value);
-                add_filter.setInputFormat(data);
-
-                data = useFilter(data, add_filter);
-
+            // Compute all the new variables in a single pass
+            DerivedMetrics derived = new DerivedMetrics(expression_list);
+            for (String key : derived.getNames()) {
+                logger.debug("Generating new variable " + key + " as " + expression_list.get(key));
+                if (ds.getMetricIndex(key) >= 0) {
+                    throw new WekaWrapperException("New variable " + key + " already exists in the dataset");
+                }
             }
+            double[][] input = ds.getCols(header);
+            double[][] newColumns = derived.evaluate(input, ds.getSize());
+
+            names.addAll(derived.getNames());
+            columns = new double[names.size()][];
+            System.arraycopy(input, 0, columns, 0, input.length);
+            System.arraycopy(newColumns, 0, columns, header.size(), newColumns.length);
 
         } catch (Exception e) {
             logger.error("Error while processing new variables", e);
@@ -90,45 +91,25 @@ public abstract class WekaWrapper {
         }
 
         // Iterate over all the columns and keep only the ones contained in variables list
-        List<String> variables = parser.getColumns();
+        Set<String> variables = new HashSet<String>(parser.getColumns());
 
         // Append independent variable to the list of variables to keep
         variables.add(independent);
 
         // Remove unneeded attributes
-        try {
-
-            // it's important to iterate from last to first, because when we remove
-            // an instance, the rest shifts by one position.
-            for (int i = data.numAttributes() - 1; i >= 0; i--) {
-                String n = data.attribute(i).name();
-                if (!variables.contains(data.attribute(i).name())) {
-                    logger.trace("Deleting unnecessary attribute " + data.attribute(i).name());
-                    data.deleteAttributeAt(i);
-                }
+        List<String> keptNames = new ArrayList<String>();
+        List<double[]> keptColumns = new ArrayList<double[]>();
+        for (int i = 0; i < names.size(); i++) {
+            if (variables.contains(names.get(i))) {
+                keptNames.add(names.get(i));
+                keptColumns.add(columns[i]);
+            } else {
+                logger.trace("Deleting unnecessary attribute " + names.get(i));
             }
-
-            data.toString();
-        } catch (Exception e) {
-            logger.error("Error while removing unneeded variables", e);
-            throw new WekaWrapperException("Error while removing unneeded variables");
         }
 
-
-
-        // Convert Instances in csv and return the new DataSet
-        String new_path = CoreConfiguration.getNewCSVFileName();
-        try {
-            CSVSaver saver = new CSVSaver();
-            saver.setInstances(data);
-            saver.setFile(new File(new_path));
-            saver.writeBatch();
-        } catch (Exception e) {
-            logger.error("Error while removing unneeded variables", e);
-            throw new WekaWrapperException("Error while removing unneeded variables");
-        }
-
-        DataSet ret = new DataSet(new_path);
+        // Integral values keep the compact representation Weka used to write
+        DataSet ret = new DataSet(keptColumns.toArray(new double[keptColumns.size()][]), keptNames, true);
         ret.setIndependent(independent);
         return ret;
     }
@@ -151,26 +132,38 @@ public abstract class WekaWrapper {
     public static List<Double> validateDataset(Classifier classifier, DataSet validationDS) {
 
         logger.debug("Validating dataset.");
-        List<Double> estimated = new ArrayList<Double>();
-        Instances validation_ds = convertDataSetToInstances(validationDS);
-        //logger.debug(classifier.toString());
-        try {
-            // estimate each instance
-            for (Instance instance : validation_ds) {
-                try {
-                    Double k = classifier.classifyInstance(instance);
-                    estimated.add(k);
-                } catch (Exception e) {
-                    logger.error("Error while estimating instances", e);
-                    throw new WekaWrapperException("Error while estimating instances");
-                }
+        final double[] estimated = predictDataset(classifier, validationDS);
 
+        // Read-only view, values are boxed only when they are read
+        return new AbstractList<Double>() {
+            @Override
+            public Double get(int index) {
+                return estimated[index];
             }
-        } catch (Exception e) {
-            logger.error("Error while reading input DataSet", e);
-            throw new WekaWrapperException("Error while reading input DataSet");
-        }
-        return estimated;
+
+            @Override
+            public int size() {
+                return estimated.length;
+            }
+        };
+
+    }
+
+    /**
+     * Estimates the independent variable of every row of the DataSet at once. The columns of the DataSet must
+     * be in the order the classifier was trained with.
+     */
+    public static double[] predictDataset(Classifier classifier, DataSet ds) {
+
+        String independent = ds.getIndependent();
+
+        if (independent == null)
+            throw new WekaWrapperException("Independent variable is not set in dataset.");
+
+        List<String> header = ds.getHeader();
+        BatchPredictor predictor = BatchPredictor.compile(classifier, header, header.indexOf(independent));
+        logger.trace("Estimating " + ds.getSize() + " instances, specialised: " + predictor.isSpecialised());
+        return predictor.predict(ds.getCols(header), ds.getSize());
 
     }
 
@@ -223,14 +216,31 @@ public abstract class WekaWrapper {
 
     }
 
+    /**
+     * Builds Weka instances straight from the columns of the DataSet, with its independent variable as class.
+     * Every metric becomes a numeric attribute and NaN cells become missing values.
+     */
     public static Instances convertDataSetToInstances(DataSet ds){
 
         Instances instances;
         try {
-            // Read all the instances in the file and initialize data
+            List<String> header = ds.getHeader();
+            double[][] columns = ds.getCols(header);
+            int size = ds.getSize();
+
+            ArrayList<Attribute> attributes = new ArrayList<Attribute>(header.size());
+            for (String name : header) {
+                attributes.add(new Attribute(name));
+            }
 
-            ConverterUtils.DataSource source = new ConverterUtils.DataSource(ds.getFilePath());
-            instances = source.getDataSet();
+            instances = new Instances("DataSet", attributes, size);
+            for (int i = 0; i < size; i++) {
+                double[] values = new double[columns.length];
+                for (int j = 0; j < columns.length; j++) {
+                    values[j] = columns[j][i];
+                }
+                instances.add(new DenseInstance(1.0, values));
+            }
 
             instances.setClassIndex(instances.attribute(ds.getIndependent()).index());
 
@@ -242,6 +252,27 @@ public abstract class WekaWrapper {
         return instances;
     }
 
+    /**
+     * Builds a DataSet from numeric Weka instances. Values with no fractional part keep the compact
+     * representation Weka uses when writing them ("23" instead of "23.0").
+     */
+    public static DataSet convertInstancesToDataSet(Instances instances) {
+
+        List<String> header = new ArrayList<String>(instances.numAttributes());
+        double[][] columns = new double[instances.numAttributes()][];
+        for (int j = 0; j < instances.numAttributes(); j++) {
+            Attribute attribute = instances.attribute(j);
+            if (!attribute.isNumeric()) {
+                logger.error("Attribute " + attribute.name() + " is not numeric.");
+                throw new WekaWrapperException("Attribute " + attribute.name() + " is not numeric.");
+            }
+            header.add(attribute.name());
+            columns[j] = instances.attributeToDoubleArray(j);
+        }
+
+        return new DataSet(columns, header, true);
+    }
+
     protected abstract Classifier buildClassifier(DataSet training_ds);
 
 }
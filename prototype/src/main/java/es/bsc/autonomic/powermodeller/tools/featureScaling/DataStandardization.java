@@ -13,24 +13,51 @@
 
 package es.bsc.autonomic.powermodeller.tools.featureScaling;
 
-import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.DataSet;
+import es.bsc.autonomic.powermodeller.exceptions.DataStandardizationException;
 import org.apache.log4j.Logger;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.Serializable;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Standardizes every metric to zero mean and unit standard deviation, shifted by 300 to keep values
+ * positive. The independent variable and the metrics in UNSCALED_METRICS are kept as they are, and missing
+ * or infinite results are written as 0.
+ *
+ * Mean and standard deviation are computed from the training file in a single streaming pass (Welford's
+ * algorithm, missing values ignored) and kept in this object with the names of the metrics, so they can be
+ * applied to validation files and samples whatever the order of their metrics.
+ */
 public class DataStandardization implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 3L;
 
     final static Logger logger = Logger.getLogger(DataStandardization.class);
 
-    private String mu;
-    private String sigma;
+    private static final double SHIFT = 300;
+    private static final List<String> UNSCALED_METRICS = Arrays.asList("timestamp", "Core_1CPU", "Core_2CPU", "numSockets");
+
+    private List<String> metrics;
+    private String independent;
+    private double[] mu;
+    private double[] sigma;
     private String fileOutputPath;
     private String fileOutputPathValidated;
 
-    public DataStandardization(String mu, String sigma) {
+    /**
+     * @param metrics Metrics of the training file, in the order of mu and sigma.
+     * @param independent Independent variable of the training file, not scaled.
+     */
+    public DataStandardization(List<String> metrics, String independent, double[] mu, double[] sigma) {
+        if (metrics.size() != mu.length || metrics.size() != sigma.length) {
+            logger.error("Expected the mean and standard deviation of " + metrics.size() + " metrics");
+            throw new DataStandardizationException("Expected the mean and standard deviation of " + metrics.size() + " metrics");
+        }
+        this.metrics = Collections.unmodifiableList(new ArrayList<String>(metrics));
+        this.independent = independent;
         this.mu = mu;
         this.sigma = sigma;
     }
@@ -41,60 +68,136 @@ public class DataStandardization implements Serializable {
     public void generateStandardization(String fileToScale, String independentVar) {
 
         logger.info("Scaling training data....");
-        this.fileOutputPath = CoreConfiguration.getNewCSVFileName();
-        this.mu = CoreConfiguration.getNewSerializedFileName();
-        this.sigma = CoreConfiguration.getNewSerializedFileName();
-
-        String RscriptPath = CoreConfiguration.getFilePath(CoreConfiguration.R_SCRIPT_GENERATE_SCALING);
-        try {
-            String line;
-            Process p = Runtime.getRuntime().exec(new String[]{RscriptPath, fileToScale, fileOutputPath, mu, sigma, independentVar});
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader(p.getInputStream()));
-            while ((line = in.readLine()) != null) {
-                System.out.println(line);
-            }
-            in.close();
-            System.out.println("################################");
-            logger.info("Scaled file: " + fileOutputPath);
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        final List<String> header = new ArrayList<String>();
+        final long[][] count = new long[1][];
+        final double[][] mean = new double[1][];
+        final double[][] m2 = new double[1][];
+        DataSet.readInChunks(fileToScale, new DataSet.ChunkConsumer() {
+            @Override
+            public void accept(DataSet chunk) {
+                double[][] columns = chunk.getCols(chunk.getHeader());
+                if (count[0] == null) {
+                    header.addAll(chunk.getHeader());
+                    count[0] = new long[columns.length];
+                    mean[0] = new double[columns.length];
+                    m2[0] = new double[columns.length];
+                }
+                for (int j = 0; j < columns.length; j++) {
+                    double[] column = columns[j];
+                    long n = count[0][j];
+                    double m = mean[0][j];
+                    double s = m2[0][j];
+                    for (double x : column) {
+                        if (!Double.isNaN(x)) {
+                            n++;
+                            double delta = x - m;
+                            m += delta / n;
+                            s += delta * (x - m);
+                        }
+                    }
+                    count[0][j] = n;
+                    mean[0][j] = m;
+                    m2[0][j] = s;
+                }
+            }
+        });
+
+        int size = count[0] != null ? count[0].length : 0;
+        mu = new double[size];
+        sigma = new double[size];
+        for (int j = 0; j < size; j++) {
+            long n = count[0][j];
+            mu[j] = n > 0 ? mean[0][j] : Double.NaN;
+            sigma[j] = n > 1 ? Math.sqrt(m2[0][j] / (n - 1)) : Double.NaN;
         }
+        metrics = Collections.unmodifiableList(header);
+        independent = independentVar;
+
+        this.fileOutputPath = scale(fileToScale, independentVar);
+        logger.info("Scaled file: " + fileOutputPath);
     }
 
     public String applyStandardization(String fileToScale, String independentVar){
 
         logger.info("Scaling validation data....");
-        fileOutputPathValidated = CoreConfiguration.getNewCSVFileName();
-
-        String RscriptPath = CoreConfiguration.getFilePath(CoreConfiguration.R_SCRIPT_APPLY_SCALING);
-        try {
-            String line;
-            Process p = Runtime.getRuntime().exec(new String[]{RscriptPath, fileToScale, mu, sigma, fileOutputPathValidated, independentVar});
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader(p.getInputStream()));
-            while ((line = in.readLine()) != null) {
-                System.out.println(line);
-            }
-            in.close();
-            System.out.println("################################");
-            logger.info("Scaled file: " + fileOutputPathValidated);
-            return  fileOutputPathValidated;
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+        fileOutputPathValidated = scale(fileToScale, independentVar);
+        logger.info("Scaled file: " + fileOutputPathValidated);
+        return fileOutputPathValidated;
+
+    }
+
+    /**
+     * Values of the metric as they are in the scaled files. Metrics not in the training file are returned
+     * as they are.
+     */
+    public double[] standardize(String metric, double[] values) {
+        checkGenerated();
+        int index = metrics.indexOf(metric);
+        if (index < 0) {
+            return values;
         }
+        double[] ret = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ret[i] = standardize(index, metric, independent, values[i]);
+        }
+        return ret;
+    }
+
+    private double standardize(int index, String metric, String independentVar, double value) {
+        boolean scaled = !metric.equals(independentVar) && !UNSCALED_METRICS.contains(metric);
+        double ret = scaled ? (value - mu[index]) / sigma[index] + SHIFT : value;
+        return Double.isNaN(ret) || Double.isInfinite(ret) ? 0 : ret;
+    }
 
+    private void checkGenerated() {
+        if (metrics == null || mu == null || sigma == null) {
+            logger.error("Standardization has not been generated.");
+            throw new DataStandardizationException("Standardization has not been generated.");
+        }
     }
 
+    private String scale(String fileToScale, final String independentVar) {
+        checkGenerated();
+
+        return DataSet.transformToFile(fileToScale, new DataSet.ChunkTransformer() {
+            @Override
+            public DataSet apply(DataSet chunk) {
+                List<String> header = chunk.getHeader();
+                double[][] columns = chunk.getCols(header);
+                for (int j = 0; j < columns.length; j++) {
+                    String metric = header.get(j);
+                    int index = metrics.indexOf(metric);
+                    if (index < 0) {
+                        logger.error("Metric " + metric + " to standardize was not in the training data");
+                        throw new DataStandardizationException("Metric " + metric + " to standardize was not in the training data");
+                    }
+                    double[] column = columns[j];
+                    for (int i = 0; i < column.length; i++) {
+                        column[i] = standardize(index, metric, independentVar, column[i]);
+                    }
+                }
+                return new DataSet(columns, header, true);
+            }
+        });
+    }
+
+    /**
+     * Metrics of the training file, in the order of getMu() and getSigma().
+     */
+    public List<String> getMetrics() {
+        return metrics;
+    }
+
+    public String getIndependent() {
+        return independent;
+    }
 
-    public String getMu() {
+    public double[] getMu() {
         return mu;
     }
 
-    public String getSigma() {
+    public double[] getSigma() {
         return sigma;
     }
 
@@ -23,6 +23,15 @@ public abstract class FilterTool {
     final static Logger logger = Logger.getLogger(FilterTool.class);
 
     public static DataSet applyPreprocessingFilter(String fname, DataSet ds) {
+        FilterTool f = newFilter(fname);
+        return f != null ? f.apply(ds) : ds;
+    }
+
+    /**
+     * Instantiates the filter with the given name.
+     * @return The filter, or null if it does not exist or could not be created.
+     */
+    public static FilterTool newFilter(String fname) {
         try {
             String pack = FilterTool.class.getPackage().getName();
 
@@ -35,20 +44,45 @@ public abstract class FilterTool {
 
             String filter = pack.concat(".").concat(fname);
 
-            FilterTool f = (FilterTool) Class.forName(filter).newInstance();
-            return f.runFilter(ds);
+            return (FilterTool) Class.forName(filter).newInstance();
 
         } catch (ClassNotFoundException e) {
             logger.error("No preprocessing filter '" + fname + "' defined: this filter will be applied");
-            return ds;
+            return null;
         } catch (Exception e) {
             logger.error("Error in filter definition '" + fname +"': No filter will be applied");
             logger.error(e);
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Applies this filter. If it fails the DataSet is returned unfiltered.
+     */
+    public DataSet apply(DataSet ds) {
+        try {
+            DataSet ret = runFilter(ds);
+            if (ret == null) {
+                logger.error("Filter " + this.getClass().getSimpleName() + " failed: No filter will be applied");
+                return ds;
+            }
+            return ret;
+        } catch (Exception e) {
+            logger.error("Error while applying filter " + this.getClass().getSimpleName() + ": No filter will be applied");
+            logger.error(e);
             return ds;
         }
     }
 
+    /**
+     * Number of samples before and after each sample the filter looks at. Filters with a non-zero
+     * context must return one sample per input sample.
+     */
+    public int getContextSize() {
+        return 0;
+    }
+
     protected abstract DataSet runFilter(DataSet ds);
 
 }
@@ -16,112 +16,270 @@ package es.bsc.autonomic.powermodeller.tools.filters;
 import es.bsc.autonomic.powermodeller.DataSet;
 import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Replaces every sample by the average of the samples in a window around it. Centred windows take the
+ * same number of samples before and after the current one (one more after if the window is even), trailing
+ * windows the current sample and the previous ones. Windows are cut at the ends of the data and missing
+ * values are left out of the average, which is missing only if every sample in the window is.
+ * The metrics in UNSCALED_METRICS are kept as they are.
+ *
+ * Each metric is averaged in a single pass keeping a running sum of the window, so the cost does not depend
+ * on the window size. Incremental gives the same results for samples that arrive one at a time.
+ */
 public class MovingAverage extends FilterTool{
 
-    // Window for moving average
-    private int span = CoreConfiguration.MOVING_AVG_WINDOW;
+    private static final List<String> UNSCALED_METRICS = Arrays.asList("timestamp", "Core_1CPU", "Core_2CPU", "numSockets");
+
+    // Number of samples averaged
+    private int window = CoreConfiguration.MOVING_AVG_WINDOW;
+    private boolean centered = true;
 
     public MovingAverage() {
     }
 
+    /**
+     * Centred moving average of span samples at each side of the current one.
+     */
     public MovingAverage(int span) {
-        this.span = span;
+        setSpan(span);
     }
 
+    public MovingAverage(int window, boolean centered) {
+        this.window = window;
+        this.centered = centered;
+    }
 
-    protected DataSet runFilterMauro(DataSet ds) {
-
-        logger.info("Applying filter " + this.getClass().getSimpleName() + "Span: " + span);
+    @Override
+    protected DataSet runFilter(DataSet ds) {
 
-        HashMap<String, List<Double>> newColumns = new HashMap<String, List<Double>>();
-        List<Double> subValues;
-        Double new_value;
-        int size;
-        int lowIndex;
-        int highIndex;
+        logger.info("Applying filter " + this.getClass().getSimpleName() + " window: " + window + (centered ? " centered" : " trailing"));
 
-        // get list of metrics
         List<String> metrics = ds.getHeader();
+        double[][] columns = ds.getCols(metrics);
+        for (int j = 0; j < columns.length; j++) {
+            if (!UNSCALED_METRICS.contains(metrics.get(j))) {
+                columns[j] = average(columns[j], getBefore(), getAfter());
+            }
+        }
 
-        for (String metric : metrics){
-            List<Double> values = ds.getCol(metric);
-            size = values.size();
-            List<Double> valuesAvg = new ArrayList<Double>();
-
-            for (int i = 0; i <= size - 1; i++) {
-
-                lowIndex = i - span;
-                highIndex = i + span;
-
-                if (lowIndex < 0)
-                    lowIndex = 0;
-
-                if (highIndex >= size-1)
-                    highIndex = size-1;
-
-                subValues = values.subList(lowIndex, highIndex+1);
-
-                new_value = computeAvg(subValues);
-                valuesAvg.add(new_value);
+        DataSet ret = new DataSet(columns, metrics, true);
+        if (ds.hasIndependent()) {
+            ret.setIndependent(ds.getIndependent());
+        }
+        logger.info("Moving-averaged " + ret.getSize() + " samples.");
+        return ret;
+    }
 
+    /**
+     * Averages the values in the window [i - before, i + after] of every position i.
+     */
+    static double[] average(double[] values, int before, int after) {
+        int size = values.length;
+        double[] ret = new double[size];
+        RunningSum sum = new RunningSum();
+
+        // Window of the first position
+        for (int k = 0; k <= after && k < size; k++) {
+            sum.add(values[k]);
+        }
+        for (int i = 0; i < size; i++) {
+            ret[i] = sum.average();
+            int entering = i + after + 1;
+            int leaving = i - before;
+            if (entering < size) {
+                sum.add(values[entering]);
+            }
+            if (leaving >= 0) {
+                sum.remove(values[leaving]);
             }
-            newColumns.put(metric, valuesAvg);
         }
-        DataSet ret = new DataSet(newColumns);
-        logger.info("File containing moving-averaged data: " + ret.getFilePath());
         return ret;
     }
 
+    private int getBefore() {
+        int n = Math.max(window, 1);
+        return centered ? (n - 1) / 2 : n - 1;
+    }
+
+    private int getAfter() {
+        int n = Math.max(window, 1);
+        return centered ? n / 2 : 0;
+    }
+
     @Override
-    protected DataSet runFilter(DataSet ds) {
+    public int getContextSize() {
+        return Math.max(getBefore(), getAfter());
+    }
 
-    // R implementation
+    public void setSpan(Integer span) {
+        this.window = 2 * span + 1;
+        this.centered = true;
+    }
 
-        logger.info("Scaling validation data....");
-        String fileOutput = CoreConfiguration.getNewCSVFileName();
+    public void setWindow(int window, boolean centered) {
+        this.window = window;
+        this.centered = centered;
+    }
 
-        String RscriptPath = CoreConfiguration.getFilePath(CoreConfiguration.R_SCRIPT_MOVING_AVERAGE);
-        try {
-            String line;
-            Process p = Runtime.getRuntime().exec(new String[]{RscriptPath, ds.getFilePath(), Integer.toString(CoreConfiguration.MOVING_AVG_WINDOW), fileOutput});
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader(p.getInputStream()));
-            while ((line = in.readLine()) != null) {
-                System.out.println(line);
+    /**
+     * Sum and count of the non-missing values of a window, compensated so that adding and removing values
+     * over long series does not accumulate rounding errors. Infinite values are only counted, so the sum
+     * recovers once they leave the window; while they are in it the average is infinite, or NaN if there are
+     * infinities of both signs, as when the window is summed directly.
+     */
+    private static final class RunningSum {
+        private double sum;
+        private double compensation;
+        private int count;
+        private int positiveInfinities;
+        private int negativeInfinities;
+
+        void add(double value) {
+            if (Double.isNaN(value)) {
+                return;
+            }
+            if (value == Double.POSITIVE_INFINITY) {
+                positiveInfinities++;
+            } else if (value == Double.NEGATIVE_INFINITY) {
+                negativeInfinities++;
+            } else {
+                accumulate(value);
             }
-            in.close();
-            System.out.println("################################");
-            logger.info("Scaled file: " + fileOutput);
-            return  new DataSet(fileOutput);
+            count++;
+        }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+        void remove(double value) {
+            if (Double.isNaN(value)) {
+                return;
+            }
+            if (value == Double.POSITIVE_INFINITY) {
+                positiveInfinities--;
+            } else if (value == Double.NEGATIVE_INFINITY) {
+                negativeInfinities--;
+            } else {
+                accumulate(-value);
+            }
+            if (--count == 0) {
+                sum = 0;
+                compensation = 0;
+            }
         }
 
+        double average() {
+            if (positiveInfinities > 0) {
+                return negativeInfinities > 0 ? Double.NaN : Double.POSITIVE_INFINITY;
+            }
+            if (negativeInfinities > 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            return count > 0 ? (sum + compensation) / count : Double.NaN;
+        }
 
+        private void accumulate(double value) {
+            double t = sum + value;
+            if (Math.abs(sum) >= Math.abs(value)) {
+                compensation += (sum - t) + value;
+            } else {
+                compensation += (value - t) + sum;
+            }
+            sum = t;
+        }
     }
 
+    /**
+     * Moving average of a live stream of samples. A centred sample can only be averaged once the samples
+     * after it have arrived, so add() returns the sample getDelay() positions back; flush() returns the
+     * remaining ones at the end of the stream.
+     */
+    public static final class Incremental {
+        private final int before;
+        private final int after;
+        private final boolean[] unscaled;
+        private final RunningSum[] sums;
+        // Last before + after + 1 samples received, by arrival number modulo its length
+        private final double[][] history;
+        private long received = 0;
+        private long emitted = 0;
+
+        public Incremental(List<String> metrics, int window, boolean centered) {
+            MovingAverage filter = new MovingAverage(window, centered);
+            this.before = filter.getBefore();
+            this.after = filter.getAfter();
+            this.unscaled = new boolean[metrics.size()];
+            this.sums = new RunningSum[metrics.size()];
+            for (int j = 0; j < metrics.size(); j++) {
+                unscaled[j] = UNSCALED_METRICS.contains(metrics.get(j));
+                sums[j] = new RunningSum();
+            }
+            this.history = new double[before + after + 1][];
+        }
+
+        public int getDelay() {
+            return after;
+        }
 
-    private Double computeAvg(List<Double> values){
-        double sum =  0.0;
+        /**
+         * Adds the next sample of the stream.
+         * @return The averaged sample getDelay() positions back, or null if there is none yet.
+         */
+        public double[] add(double[] sample) {
+            if (sample.length != sums.length) {
+                throw new IllegalArgumentException("Expected " + sums.length + " metrics but got " + sample.length);
+            }
+            // The oldest sample leaves the window of the sample to emit
+            if (received >= history.length) {
+                double[] leaving = history[(int) (received % history.length)];
+                for (int j = 0; j < sums.length; j++) {
+                    sums[j].remove(leaving[j]);
+                }
+            }
+            double[] copy = sample.clone();
+            history[(int) (received % history.length)] = copy;
+            for (int j = 0; j < sums.length; j++) {
+                sums[j].add(copy[j]);
+            }
+            received++;
 
-        int size = values.size();
+            return received > after ? emit() : null;
+        }
 
-        for (int i = 0; i <= size -1 ; i++) {
-            sum += values.get(i);
+        /**
+         * Averages of the samples not returned yet, whose windows are cut at the end of the stream.
+         */
+        public List<double[]> flush() {
+            List<double[]> ret = new ArrayList<double[]>();
+            while (emitted < received) {
+                // The window of the next sample starts one position later
+                long leaving = emitted - before - 1;
+                if (leaving >= 0 && leaving >= received - history.length) {
+                    double[] values = history[(int) (leaving % history.length)];
+                    for (int j = 0; j < sums.length; j++) {
+                        sums[j].remove(values[j]);
+                    }
+                }
+                ret.add(average(emitted));
+                emitted++;
+            }
+            return ret;
         }
 
-        return sum / size;
-    }
+        private double[] emit() {
+            double[] ret = average(emitted);
+            emitted++;
+            return ret;
+        }
 
-   public void setSpan(Integer span) {
-        this.span = span;
+        private double[] average(long position) {
+            double[] current = history[(int) (position % history.length)];
+            double[] ret = new double[sums.length];
+            for (int j = 0; j < sums.length; j++) {
+                ret[j] = unscaled[j] ? current[j] : sums[j].average();
+            }
+            return ret;
+        }
     }
 }
@@ -14,48 +14,34 @@
 package es.bsc.autonomic.powermodeller.tools.filters;
 
 import es.bsc.autonomic.powermodeller.DataSet;
+import es.bsc.autonomic.powermodeller.InvalidValues;
 import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
-import es.bsc.autonomic.powermodeller.exceptions.RemoveInvalidFilterException;
-
-import java.io.*;
 
+/**
+ * Handles the missing, NaN and infinite values of a DataSet with the invalid-values policy, or drops the
+ * samples containing them if the policy is keep. CSV files are already handled while they are read unless
+ * the policy is keep, so this filter is only needed for DataSets built in memory.
+ */
 public class RemoveInvalid extends FilterTool {
 
-    @Override
-    protected DataSet runFilter(DataSet ds) {
-
-        logger.debug("Applying filter " + this.getClass().getSimpleName());
+    private InvalidValues.Policy policy;
 
-        File inputFile = new File(ds.getFilePath());
-        File tempFile = new File(CoreConfiguration.getNewCSVFileName());
-        boolean successful = false;
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-            BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
-
-            String currentLine;
-            while ((currentLine = reader.readLine()) != null) {
-                // trim newline when comparing with lineToRemove
-                String trimmedLine = currentLine.trim();
-                if (trimmedLine.contains("?") || trimmedLine.toLowerCase().contains("nan")) {
-                    logger.debug("Removing invalid instance: " + trimmedLine);
-                    continue;
-                }
-                writer.write(currentLine + System.getProperty("line.separator"));
-            }
-            writer.close();
-            reader.close();
-            successful = tempFile.renameTo(inputFile);
-        } catch(IOException e) {
-            successful = false;
+    public RemoveInvalid() {
+        String configured = CoreConfiguration.INVALID_VALUES;
+        this.policy = configured == null || configured.isEmpty() ? InvalidValues.Policy.DROP : InvalidValues.Policy.parse(configured);
+        if (this.policy == InvalidValues.Policy.KEEP) {
+            this.policy = InvalidValues.Policy.DROP;
         }
+    }
 
-        if(!successful) {
-            throw new RemoveInvalidFilterException("Error while filtering DataSet in " + ds.getFilePath());
-        }
+    public RemoveInvalid(InvalidValues.Policy policy) {
+        this.policy = policy;
+    }
+
+    @Override
+    protected DataSet runFilter(DataSet ds) {
 
-        DataSet ret = new DataSet(inputFile.getAbsolutePath());
-        ret.setIndependent(ds.getIndependent());
-        return ret;
+        logger.debug("Applying filter " + this.getClass().getSimpleName());
+        return InvalidValues.apply(ds, policy);
     }
 }
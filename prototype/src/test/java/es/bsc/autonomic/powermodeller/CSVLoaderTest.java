@@ -0,0 +1,138 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import static org.junit.Assert.*;
+
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.exceptions.DataSetException;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+public class CSVLoaderTest {
+
+    private static boolean parse(CSVLoader.CellParser parser, String cell) {
+        byte[] bytes = cell.getBytes(Charset.forName("UTF-8"));
+        return parser.parse(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testCellParsing() throws Exception {
+        CSVLoader.CellParser parser = new CSVLoader.CellParser();
+
+        assertTrue(parse(parser, "23"));
+        assertEquals(23.0, parser.value, 0.0);
+        assertTrue(parser.integral);
+
+        assertTrue(parse(parser, " \"-0.5\"\r"));
+        assertEquals(-0.5, parser.value, 0.0);
+        assertFalse(parser.integral);
+
+        assertTrue(parse(parser, "1e3"));
+        assertEquals(1000.0, parser.value, 0.0);
+        assertFalse(parser.integral);
+
+        assertTrue(parse(parser, "1.7976931348623157E308"));
+        assertEquals(Double.MAX_VALUE, parser.value, 0.0);
+
+        assertTrue(parse(parser, "?"));
+        assertTrue(Double.isNaN(parser.value));
+        assertTrue(parse(parser, ""));
+        assertTrue(Double.isNaN(parser.value));
+        assertTrue(parse(parser, "nAn"));
+        assertTrue(Double.isNaN(parser.value));
+
+        assertFalse(parse(parser, "abc"));
+        assertFalse(parse(parser, "1e"));
+    }
+
+    @Test
+    public void testCellParsingMatchesParseDouble() throws Exception {
+        CSVLoader.CellParser parser = new CSVLoader.CellParser();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i++) {
+            String cell;
+            switch (i % 3) {
+                case 0:
+                    cell = Double.toString(random.nextDouble() * 1000);
+                    break;
+                case 1:
+                    cell = String.format("%.3f", random.nextGaussian() * 100).replace(',', '.');
+                    break;
+                default:
+                    cell = Double.toString(Double.longBitsToDouble(random.nextLong()));
+                    break;
+            }
+            assertTrue(cell, parse(parser, cell));
+            assertEquals(cell, Double.doubleToLongBits(Double.parseDouble(cell)), Double.doubleToLongBits(parser.value));
+        }
+    }
+
+    @Test
+    public void testParallelLoad() throws Exception {
+        String path = CoreConfiguration.getNewCSVFileName();
+        int rows = 200000;
+        BufferedWriter writer = new BufferedWriter(new FileWriter(path));
+        writer.write("a,b,c\n");
+        for (int i = 0; i < rows; i++) {
+            writer.write(i + "," + (i * 0.25) + "," + (-i) + "\n");
+            if (i % 50000 == 0) {
+                writer.write("\n");
+            }
+        }
+        writer.close();
+
+        DataSet ds = new DataSet(path);
+        assertEquals(rows, ds.getSize());
+        double[][] cols = ds.getCols(ds.getHeader());
+        for (int i = 0; i < rows; i++) {
+            assertEquals(i, cols[0][i], 0.0);
+            assertEquals(i * 0.25, cols[1][i], 0.0);
+            assertEquals(-i, cols[2][i], 0.0);
+        }
+    }
+
+    @Test(expected = DataSetException.class)
+    public void testShortRecordFails() throws Exception {
+        String path = CoreConfiguration.getNewCSVFileName();
+        BufferedWriter writer = new BufferedWriter(new FileWriter(path));
+        writer.write("a,b,c\n1,2,3\n4,5\n");
+        writer.close();
+
+        new DataSet(path).toString();
+    }
+
+    @Test
+    public void testDataIsParsedOnDemand() throws Exception {
+        String path = CoreConfiguration.getNewCSVFileName();
+        BufferedWriter writer = new BufferedWriter(new FileWriter(path));
+        writer.write("a,b\n1,2\n\n3,x\n");
+        writer.close();
+
+        DataSet ds = new DataSet(path);
+        assertEquals("a,b", ds.getHeaderString());
+        assertEquals(2, ds.getSize());
+        try {
+            ds.getCol("b");
+            fail("Invalid value should be reported when data is requested");
+        } catch (DataSetException e) {
+            // Expected
+        }
+    }
+}
@@ -18,15 +18,20 @@ import static org.junit.Assert.*;
 import es.bsc.autonomic.powermodeller.DataSet;
 import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
 import es.bsc.autonomic.powermodeller.exceptions.DataSetException;
+import es.bsc.autonomic.powermodeller.tools.filters.FilterTool;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 
 public class DataSetTest {
 
@@ -217,4 +222,180 @@ public class DataSetTest {
                                             "97.5,83.00189431249845,3.833370769133635,5.0,1.0307303142228674,2.255765022338011\n" +
                                             "96.5,83.00177943981195,3.811144214041475,5.0,1.2248578453585068,2.255765022338011\n"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCSVSubSampleOfSubSampleDataSet() throws Exception {
+
+        DataSet csvNew = csvDecomposedPower.getSubSampleRange(2, 10).getSubSample(Arrays.asList(5, 2));
+
+        assertTrue(csvNew.toString().equals("Pactual,Pcpu,Pdisk,Pidle,Pmem,Pnet\n" +
+                                            "99.5,83.00180569642602,3.8252883854637583,5.0,1.9061694905004538,0.6704600232462878\n" +
+                                            "81.0,83.00180569642602,3.768711699774623,5.0,-4.2695324085272635,-3.0745358441732904\n"));
+    }
+
+    @Test
+    public void testCSVCopyDataSet() throws Exception {
+
+        DataSet view = csvA.order();
+        DataSet copy = view.copy();
+
+        assertTrue(copy.toString().equals(view.toString()));
+        assertTrue(copy.getIndependent().equals("power"));
+    }
+
+    @Test
+    public void testCSVGetCols() throws Exception {
+
+        double[][] cols = csvA.getCols(Arrays.asList("cache", "power"));
+
+        assertArrayEquals(new double[]{0.7, 8.9}, cols[0], 0.0);
+        assertArrayEquals(new double[]{100.6, 140.0}, cols[1], 0.0);
+    }
+
+    @Test
+    public void testBinarySaveAndLoad() throws Exception {
+
+        DataSet joined = DataSet.join(Arrays.asList(csvB, csvB)).getSubSampleRange(1, 4);
+        DataSet loaded = new DataSet(joined.save());
+
+        assertTrue(loaded.toString().equals(joined.toString()));
+        assertTrue(new DataSet(loaded.getFilePath()).toString().equals(joined.toString()));
+    }
+
+    @Test(expected = DataSetException.class)
+    public void testBinaryLoadTruncatedFails() throws Exception {
+
+        String path = csvA.save();
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        file.setLength(file.length() - 8);
+        file.close();
+
+        new DataSet(path);
+    }
+
+    @Test
+    public void testBinaryLoadCorruptedHeaderFails() throws Exception {
+
+        // Length of the first column name, after the signature, version, columns and rows
+        for (int length : new int[]{-1, Integer.MAX_VALUE}) {
+            String path = csvA.save();
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            file.seek(16);
+            file.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(length).array());
+            file.close();
+
+            try {
+                new DataSet(path);
+                fail("Column name length " + length + " was accepted");
+            } catch (DataSetException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testJoinFromPathByChunks() throws Exception {
+
+        int chunkSize = CoreConfiguration.DATASET_CHUNK_SIZE;
+        CoreConfiguration.DATASET_CHUNK_SIZE = 2;
+        try {
+            List<String> paths = Arrays.asList(getClass().getResource("/csvA.csv").getPath(),
+                                               csvB.save());
+            String expected = DataSet.join(Arrays.asList(csvA, csvB)).toString();
+
+            assertTrue(DataSet.joinDataSetsFromPath(paths).toString().equals(expected));
+            String joined = DataSet.joinDataSetsToFile(paths);
+            assertTrue(DataSetFile.isBinary(joined));
+            assertTrue(new DataSet(joined).toString().equals(expected));
+        } finally {
+            CoreConfiguration.DATASET_CHUNK_SIZE = chunkSize;
+        }
+    }
+
+    @Test
+    public void testJoinFromPathFilteredByChunks() throws Exception {
+
+        int chunkSize = CoreConfiguration.DATASET_CHUNK_SIZE;
+        int window = CoreConfiguration.MOVING_AVG_WINDOW;
+        boolean preprocess = CoreConfiguration.PREPROCESS_DATASET;
+        String filter = CoreConfiguration.FILTER_TYPE;
+        try {
+            List<String> header = Arrays.asList("power", "cpu");
+            Random random = new Random(11);
+            List<DataSet> files = new ArrayList<DataSet>();
+            List<String> paths = new ArrayList<String>();
+            for (int rows : new int[]{23, 10}) {
+                double[][] values = new double[2][rows];
+                for (int i = 0; i < rows; i++) {
+                    values[0][i] = 100 + random.nextInt(50);
+                    values[1][i] = random.nextDouble() * 100;
+                }
+                DataSet file = new DataSet(values, header);
+                files.add(file);
+                paths.add(file.save());
+            }
+
+            // The filter starts again on each file
+            CoreConfiguration.MOVING_AVG_WINDOW = 7;
+            List<DataSet> filtered = new ArrayList<DataSet>();
+            for (DataSet file : files) {
+                filtered.add(FilterTool.applyPreprocessingFilter(FilterTool.MOVING_AVG, file));
+            }
+            String expected = DataSet.join(filtered).toString();
+
+            // Chunks smaller than the window, so the context comes from the neighbouring chunks
+            CoreConfiguration.PREPROCESS_DATASET = true;
+            CoreConfiguration.FILTER_TYPE = FilterTool.MOVING_AVG;
+            CoreConfiguration.DATASET_CHUNK_SIZE = 2;
+            assertEquals(expected, DataSet.joinDataSetsFromPath(paths).toString());
+            assertEquals(expected, new DataSet(DataSet.joinDataSetsToFile(paths)).toString());
+        } finally {
+            CoreConfiguration.DATASET_CHUNK_SIZE = chunkSize;
+            CoreConfiguration.MOVING_AVG_WINDOW = window;
+            CoreConfiguration.PREPROCESS_DATASET = preprocess;
+            CoreConfiguration.FILTER_TYPE = filter;
+        }
+    }
+
+    @Test(expected = DataSetException.class)
+    public void testJoinFromPathIncompatibleFails() throws Exception {
+        DataSet.joinDataSetsToFile(Arrays.asList(getClass().getResource("/csvA.csv").getPath(),
+                                                 getClass().getResource("/csvC.csv").getPath()));
+    }
+
+    @Test
+    public void testColumnLookup() throws Exception {
+        assertEquals(2, csvA.getMetricIndex("cache"));
+        assertEquals(-1, csvA.getMetricIndex("memory"));
+        assertTrue(csvA.containsColumns(Arrays.asList("cache", "power")));
+        assertFalse(csvA.containsColumns(Arrays.asList("cache", "memory")));
+        assertEquals(0, csvA.order().getMetricIndex("power"));
+    }
+
+    @Test
+    public void testConstantColumn() throws Exception {
+        DataSet csvNew = csvA.addConstantColumn("idle", 30.0);
+        assertTrue(csvNew.toString().equals("power,cpu,cache,idle\n" +
+                                            "100.6,2.3,0.7,30.0\n" +
+                                            "140.0,100.0,8.9,30.0\n"));
+        assertTrue(csvNew.getIndependent().equals("power"));
+        assertTrue(csvNew.getCol("idle").toString().equals("[30.0, 30.0]"));
+
+        DataSet substracted = csvNew.substractFromColumn("idle", "idle-10", 10.0);
+        assertTrue(substracted.getCol("idle-10").toString().equals("[20.0, 20.0]"));
+
+        DataSet added = csvNew.addColumns("idle+cpu", Arrays.asList("idle", "cpu"));
+        assertTrue(added.toString().equals("power,cache,idle+cpu\n" +
+                                           "100.6,0.7,32.3\n" +
+                                           "140.0,8.9,130.0\n"));
+
+        substracted.setIndependent("power");
+        added = substracted.addConstantColumn("idle", 30.0).addColumns("idles", Arrays.asList("idle", "idle-10"));
+        assertTrue(added.getCol("idles").toString().equals("[50.0, 50.0]"));
+    }
+
+    @Test(expected = DataSetException.class)
+    public void testConstantColumnAlreadyExistsFails() throws Exception {
+        csvA.addConstantColumn("cpu", 30.0);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.tools.filters.RemoveInvalid;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class InvalidValuesTest {
+
+    private static final String CSV = "a,b\n1,10\n?,20\n3,nan\nnan,Infinity\n5,50\n6,?\n";
+
+    private static TempStorage.TempFile file;
+
+    @BeforeClass
+    public static void writeFile() throws Exception {
+        file = TempStorage.newFile(".csv");
+        FileWriter writer = new FileWriter(file.getPath());
+        writer.write(CSV);
+        writer.close();
+        file.written();
+    }
+
+    @AfterClass
+    public static void deleteFile() {
+        file.close();
+    }
+
+    private static String read(String policy, int chunkSize) {
+        String previousPolicy = CoreConfiguration.INVALID_VALUES;
+        int previousChunkSize = CoreConfiguration.DATASET_CHUNK_SIZE;
+        CoreConfiguration.INVALID_VALUES = policy;
+        CoreConfiguration.DATASET_CHUNK_SIZE = chunkSize;
+        try {
+            final List<DataSet> chunks = new ArrayList<DataSet>();
+            DataSet.readInChunks(file.getPath(), new DataSet.ChunkConsumer() {
+                @Override
+                public void accept(DataSet chunk) {
+                    chunks.add(chunk);
+                }
+            });
+            String ret = DataSet.join(chunks).toString();
+
+            DataSet whole = new DataSet(file.getPath());
+            assertEquals(ret, whole.toString());
+            assertEquals(whole.getSize(), new DataSet(file.getPath()).getSize());
+
+            // Only the values as stored are read from the source file by external tools
+            String exported = whole.getFilePath();
+            assertEquals(policy.equals("keep"), exported.equals(file.getPath()));
+            assertEquals(ret, new DataSet(exported).toString());
+            whole.close();
+            return ret;
+        } finally {
+            CoreConfiguration.INVALID_VALUES = previousPolicy;
+            CoreConfiguration.DATASET_CHUNK_SIZE = previousChunkSize;
+        }
+    }
+
+    @Test
+    public void policiesWhileReading() {
+        for (int chunkSize = 1; chunkSize <= 6; chunkSize++) {
+            assertEquals(CSV.replace("?", "NaN").replace("nan", "NaN"), read("keep", chunkSize));
+            assertEquals("a,b\n1,10\n5,50\n", read("drop", chunkSize));
+            assertEquals("a,b\n1,10\n1,20\n3,20\n3,20\n5,50\n6,50\n", read("forward-fill", chunkSize));
+            assertEquals("a,b\n1,10\n2.0,20\n3,30.0\n4.0,40.0\n5,50\n6,50\n", read("interpolate", chunkSize));
+        }
+    }
+
+    @Test
+    public void countsAndLeadingInvalid() {
+        DataSet ds = new DataSet(new double[][]{{Double.NaN, 2, Double.NaN, 4}, {1, Double.POSITIVE_INFINITY, 3, 4}},
+                Arrays.asList("a", "b"), true);
+
+        InvalidValues stage = new InvalidValues(ds.getHeader(), InvalidValues.Policy.FORWARD_FILL);
+        DataSet filled = DataSet.fromColumns(ds.getHeader(), stage.process(ds.columns(), true));
+        // Valid cells of removed samples are still used to fill the next ones
+        assertEquals("a,b\n2,1\n2,3\n4,4\n", filled.toString());
+        assertEquals(2, stage.getInvalidCount("a"));
+        assertEquals(1, stage.getInvalidCount("b"));
+        // The first sample has no previous value of a
+        assertEquals(1, stage.getDroppedRows());
+
+        assertEquals("a,b\n4,4\n", new RemoveInvalid().apply(ds).toString());
+    }
+}
@@ -0,0 +1,216 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.exceptions.ModelBundleException;
+import es.bsc.autonomic.powermodeller.tools.VariableParser;
+import es.bsc.autonomic.powermodeller.tools.classifiers.SerializedClassifier;
+import es.bsc.autonomic.powermodeller.tools.featureScaling.DataStandardization;
+import org.junit.Test;
+
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ModelBundleTest {
+
+    private Map<String, ResourceModel> trainModels() {
+        DataSet training = new DataSet(getClass().getResource("/trainingCPU.csv").getPath());
+        training.setIndependent("powerWatts");
+        VariableParser varParser = new VariableParser(getClass().getResource("/variablesCPU.conf").getPath(), training.getHeader());
+
+        Random random = new Random(5);
+        List<String> header = Arrays.asList("powerWatts", "cpu", "mem");
+        double[][] synthetic = new double[header.size()][500];
+        for (int i = 0; i < 500; i++) {
+            synthetic[1][i] = random.nextDouble() * 100;
+            synthetic[2][i] = random.nextDouble() * 100;
+            synthetic[0][i] = 80 + synthetic[1][i] + (synthetic[2][i] > 50 ? 20 : 0) + random.nextGaussian();
+        }
+        DataSet syntheticDS = new DataSet(synthetic, header);
+        syntheticDS.setIndependent("powerWatts");
+
+        Map<String, ResourceModel> models = new LinkedHashMap<String, ResourceModel>();
+        models.put("cpu", new ResourceModel(training, varParser));
+        models.put("tree", new ResourceModel(syntheticDS, "RepTree"));
+        models.put("linear", new ResourceModel(syntheticDS, "linearregression"));
+        return models;
+    }
+
+    private static TempStorage.TempFile write(ModelBundle bundle) {
+        TempStorage.TempFile file = TempStorage.newFile(".model");
+        bundle.write(file.getPath());
+        file.written();
+        return file;
+    }
+
+    @Test
+    public void sameEstimationsOnceLoaded() {
+        Map<String, ResourceModel> models = trainModels();
+        DataStandardization standardization = new DataStandardization(Arrays.asList("cpu", "mem"), "powerWatts", new double[]{1, 2.5}, new double[]{0.5, Double.NaN});
+        TempStorage.TempFile file = write(new ModelBundle("combined", standardization, models));
+        try {
+            ModelBundle loaded = ModelBundle.read(file.getPath());
+            assertEquals("combined", loaded.getType());
+            assertEquals(standardization.getMetrics(), loaded.getDataStandardization().getMetrics());
+            assertEquals("powerWatts", loaded.getDataStandardization().getIndependent());
+            assertArrayEquals(standardization.getMu(), loaded.getDataStandardization().getMu(), 0.0);
+            assertArrayEquals(standardization.getSigma(), loaded.getDataStandardization().getSigma(), 0.0);
+            assertEquals(models.keySet(), loaded.getModels().keySet());
+
+            Random random = new Random(9);
+            for (String name : models.keySet()) {
+                ResourceModel original = models.get(name);
+                ResourceModel copy = loaded.getModels().get(name);
+                assertEquals(original.getInputHeader(), copy.getInputHeader());
+                assertEquals(original.getBatchPredictor().isSpecialised(), copy.getBatchPredictor().isSpecialised());
+
+                int columns = original.getInputHeader().size();
+                int rows = 300;
+                double[][] samples = new double[columns][rows];
+                for (int j = 0; j < columns; j++) {
+                    for (int i = 0; i < rows; i++) {
+                        samples[j][i] = i % 31 == j ? Double.NaN : random.nextDouble() * 100;
+                    }
+                }
+                double[] expected = original.predict(samples, rows);
+                double[] actual = copy.predict(samples, rows);
+                for (int i = 0; i < rows; i++) {
+                    assertEquals(name, Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(actual[i]));
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void scaledBundleEstimatesRawSamples() {
+        Random random = new Random(3);
+        List<String> header = Arrays.asList("powerWatts", "cpu", "mem");
+        double[][] raw = new double[header.size()][200];
+        for (int i = 0; i < 200; i++) {
+            raw[1][i] = random.nextDouble() * 100;
+            raw[2][i] = random.nextDouble() * 8000;
+            raw[0][i] = 80 + raw[1][i] + raw[2][i] / 100 + random.nextGaussian();
+        }
+        DataStandardization standardization = new DataStandardization(header, "powerWatts",
+                new double[]{0, 50, 4000}, new double[]{1, 29, 2300});
+        double[][] scaled = new double[header.size()][];
+        for (int j = 0; j < header.size(); j++) {
+            scaled[j] = standardization.standardize(header.get(j), raw[j]);
+        }
+        DataSet training = new DataSet(scaled, header);
+        training.setIndependent("powerWatts");
+        Map<String, ResourceModel> models = new LinkedHashMap<String, ResourceModel>();
+        ResourceModel model = new ResourceModel(training, "linearregression");
+        models.put("global", model);
+
+        TempStorage.TempFile file = write(new ModelBundle("global", standardization, models));
+        try {
+            BundleEstimator estimator = new BundleEstimator(ModelBundle.read(file.getPath()));
+
+            // Raw metrics by name, in another order than the training file
+            Map<String, double[]> metrics = new LinkedHashMap<String, double[]>();
+            metrics.put("mem", raw[2]);
+            metrics.put("cpu", raw[1]);
+            double[] power = estimator.estimate(metrics, 200).get("Ppredicted");
+            double[] expected = model.predict(new double[][]{scaled[0], scaled[1], scaled[2]}, 200);
+            assertArrayEquals(expected, power, 1e-9);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void classifierOnlyReadWhenNeeded() {
+        Map<String, ResourceModel> models = trainModels();
+        models.remove("cpu");
+        TempStorage.TempFile file = write(new ModelBundle("resources", null, models));
+        try {
+            ModelBundle loaded = ModelBundle.read(file.getPath());
+            for (String name : models.keySet()) {
+                ResourceModel original = models.get(name);
+                ResourceModel copy = loaded.getModels().get(name);
+                SerializedClassifier classifier = (SerializedClassifier) copy.getClassifier();
+
+                double[][] samples = {{0, 0}, {20, 80}, {70, 30}};
+                double[] expected = original.predict(samples, 2);
+                assertArrayEquals(expected, copy.predict(samples, 2), 0.0);
+                assertEquals(expected[1], copy.predict(new double[]{0, 80, 30}), 0.0);
+                assertEquals(expected[1], copy.concurrent().predict(new double[]{0, 80, 30}), 0.0);
+                assertFalse(name, classifier.isDeserialized());
+
+                // Missing values are left to the classifier
+                assertEquals(original.predict(new double[]{0, Double.NaN, 30}), copy.predict(new double[]{0, Double.NaN, 30}), 0.0);
+                assertTrue(name, classifier.isDeserialized());
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void rejectsOtherVersionsAndCorruptedFiles() throws Exception {
+        Map<String, ResourceModel> models = new LinkedHashMap<String, ResourceModel>();
+        models.put("tree", trainModels().get("tree"));
+        TempStorage.TempFile file = write(new ModelBundle("resources", null, models));
+        try {
+            assertNull(ModelBundle.read(file.getPath()).getDataStandardization());
+
+            RandomAccessFile raw = new RandomAccessFile(file.getPath(), "rw");
+            raw.seek(4);
+            raw.writeInt(ModelBundle.FORMAT_VERSION + 1);
+            expectRejected(file.getPath(), "format version " + (ModelBundle.FORMAT_VERSION + 1));
+
+            raw.seek(4);
+            raw.writeInt(ModelBundle.FORMAT_VERSION);
+            raw.seek(raw.length() - 10);
+            int value = raw.read();
+            raw.seek(raw.length() - 10);
+            raw.write(value ^ 0xff);
+            raw.close();
+            expectRejected(file.getPath(), "checksum");
+
+            // Models saved by older versions
+            ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file.getPath()));
+            out.writeObject(models.get("tree"));
+            out.close();
+            expectRejected(file.getPath(), "not a model bundle");
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void expectRejected(String path, String message) {
+        try {
+            ModelBundle.read(path);
+            fail("Bundle should have been rejected");
+        } catch (ModelBundleException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
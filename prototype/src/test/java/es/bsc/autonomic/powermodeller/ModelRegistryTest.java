@@ -0,0 +1,138 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.models.GlobalModel;
+import es.bsc.autonomic.powermodeller.models.Models;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ModelRegistryTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File(CoreConfiguration.TEMPDIR, "registry-" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    // Global model whose estimation is always the given power
+    private static ModelBundle constantModel(double power) {
+        List<String> header = Arrays.asList("powerWatts", "cpu");
+        double[][] columns = new double[2][20];
+        for (int i = 0; i < 20; i++) {
+            columns[0][i] = power;
+            columns[1][i] = i;
+        }
+        DataSet ds = new DataSet(columns, header);
+        ds.setIndependent("powerWatts");
+        return new ModelBundle(CoreConfiguration.GLOBAL_MODEL, null,
+                Collections.singletonMap("global", new ResourceModel(ds, "linearregression")));
+    }
+
+    private static double estimate(ModelRegistry.Entry entry) {
+        return entry.getBundle().getModels().get("global").predict(Collections.singletonMap("cpu", 50.0));
+    }
+
+    private File bundleFile(String hostType) {
+        return new File(dir, hostType + ModelRegistry.EXTENSION);
+    }
+
+    @Test
+    public void loadsEveryHostType() throws Exception {
+        constantModel(100).write(bundleFile("xeon-x5650").getPath());
+        constantModel(200).write(bundleFile("xeon-e5").getPath());
+        new FileOutputStream(new File(dir, "notes.txt")).close();
+
+        ModelRegistry registry = new ModelRegistry(dir.getPath());
+        assertEquals(2, registry.loadAll());
+        assertEquals(Arrays.asList("xeon-e5", "xeon-x5650"), new ArrayList<String>(registry.getHostTypes()));
+        assertTrue(registry.get("xeon-x5650") instanceof GlobalModel);
+        assertEquals(100, estimate(registry.getEntry("xeon-x5650")), 1e-6);
+        assertEquals(200, estimate(registry.getEntry("xeon-e5")), 1e-6);
+        assertNull(registry.get("unknown"));
+
+        // Unchanged bundles are not loaded again
+        assertEquals(0, registry.loadAll());
+    }
+
+    @Test
+    public void swapsRetrainedModels() throws Exception {
+        constantModel(100).write(bundleFile("xeon-x5650").getPath());
+
+        ModelRegistry registry = new ModelRegistry(dir.getPath());
+        try {
+            registry.watch();
+            ModelRegistry.Entry first = registry.getEntry("xeon-x5650");
+            Models inFlight = registry.get("xeon-x5650");
+            assertSame(first.getModel(), inFlight);
+
+            // A broken bundle keeps the previous model
+            FileOutputStream out = new FileOutputStream(bundleFile("xeon-x5650"));
+            out.write(new byte[]{1, 2, 3});
+            out.close();
+            // Retrained model of another host type, used as a marker of the broken bundle being processed
+            constantModel(300).write(bundleFile("xeon-e5").getPath());
+            waitFor(registry, "xeon-e5", 0);
+            assertSame(first, registry.getEntry("xeon-x5650"));
+
+            // Retrained model
+            constantModel(150).write(bundleFile("xeon-x5650").getPath());
+            ModelRegistry.Entry second = waitFor(registry, "xeon-x5650", first.getGeneration());
+            assertEquals(150, estimate(second), 1e-6);
+            assertEquals(100, estimate(first), 1e-6);
+            assertSame(first.getModel(), inFlight);
+        } finally {
+            registry.close();
+        }
+    }
+
+    private static ModelRegistry.Entry waitFor(ModelRegistry registry, String hostType, long generation) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (System.currentTimeMillis() < deadline) {
+            ModelRegistry.Entry entry = registry.getEntry(hostType);
+            if (entry != null && entry.getGeneration() > generation) {
+                return entry;
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("Model of " + hostType + " was not reloaded");
+    }
+}
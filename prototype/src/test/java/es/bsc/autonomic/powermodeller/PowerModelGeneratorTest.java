@@ -19,8 +19,12 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
 import static org.junit.Assert.*;
 
@@ -133,4 +137,113 @@ public class PowerModelGeneratorTest {
     }
 
 
-}
\ No newline at end of file
+
+    @Test
+    public void testStagesTrainedOnce() throws Exception {
+        CoreConfiguration.CLASSIFIER = "linearregression";
+        String cacheDir = CoreConfiguration.STAGE_CACHE_DIR;
+        try {
+            CoreConfiguration.STAGE_CACHE_DIR = new File(CoreConfiguration.TEMPDIR, "stages-" + UUID.randomUUID()).getPath();
+            StageCache.clear();
+
+            PowerModelGenerator pmg = new PowerModelGenerator(trainingCpu,trainingMemory,trainingDisk,trainingNetwork, null, varCPU, varMEM, varDISK, varNET, null);
+            pmg.generateModelDisk();
+            int hits = StageCache.getHits();
+            pmg.generateModelNetwork();
+            assertEquals(hits + 3, StageCache.getHits());
+
+            // Same stages, trained by a previous run
+            StageCache.clear();
+            PowerModelGenerator resumed = new PowerModelGenerator(trainingCpu,trainingMemory,trainingDisk,trainingNetwork, null, varCPU, varMEM, varDISK, varNET, null);
+            resumed.generateModelNetwork();
+            assertEquals(hits + 7, StageCache.getHits());
+            assertEquals(pmg.getNetworkModel().getClassifier().toString(), resumed.getNetworkModel().getClassifier().toString());
+
+            // A different classifier is a different stage
+            CoreConfiguration.CLASSIFIER = "reptree";
+            resumed.generateModelCPU();
+            assertEquals(hits + 7, StageCache.getHits());
+        } finally {
+            CoreConfiguration.STAGE_CACHE_DIR = cacheDir;
+            CoreConfiguration.CLASSIFIER = "linearregression";
+            StageCache.clear();
+        }
+    }
+
+    @Test
+    public void testPreprocessingChangesStage() throws Exception {
+        CoreConfiguration.CLASSIFIER = "linearregression";
+        String cacheDir = CoreConfiguration.STAGE_CACHE_DIR;
+        boolean preprocess = CoreConfiguration.PREPROCESS_DATASET;
+        String filter = CoreConfiguration.FILTER_TYPE;
+        try {
+            CoreConfiguration.STAGE_CACHE_DIR = new File(CoreConfiguration.TEMPDIR, "stages-" + UUID.randomUUID()).getPath();
+            CoreConfiguration.PREPROCESS_DATASET = false;
+            StageCache.clear();
+
+            PowerModelGenerator pmg = new PowerModelGenerator(trainingCpu,null,null,null,null, varCPU, null, null, null, null);
+            pmg.generateModelCPU();
+            int hits = StageCache.getHits();
+            int misses = StageCache.getMisses();
+
+            // The same files read with a filter are different training data
+            CoreConfiguration.PREPROCESS_DATASET = true;
+            CoreConfiguration.FILTER_TYPE = "movingaverage";
+            StageCache.clear();
+            PowerModelGenerator filtered = new PowerModelGenerator(trainingCpu,null,null,null,null, varCPU, null, null, null, null);
+            filtered.generateModelCPU();
+            assertEquals(hits, StageCache.getHits());
+            assertEquals(misses + 1, StageCache.getMisses());
+            assertFalse(pmg.getCpuModel().getClassifier().toString().equals(filtered.getCpuModel().getClassifier().toString()));
+
+            // Back to the first settings, the stored stage is reused
+            CoreConfiguration.PREPROCESS_DATASET = false;
+            StageCache.clear();
+            new PowerModelGenerator(trainingCpu,null,null,null,null, varCPU, null, null, null, null).generateModelCPU();
+            assertEquals(hits + 1, StageCache.getHits());
+        } finally {
+            CoreConfiguration.STAGE_CACHE_DIR = cacheDir;
+            CoreConfiguration.PREPROCESS_DATASET = preprocess;
+            CoreConfiguration.FILTER_TYPE = filter;
+            StageCache.clear();
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testStageKeyFollowsTargetAndFiles() throws Exception {
+        String independent = CoreConfiguration.INDEPENDENT;
+        char delimiter = CoreConfiguration.CSV_DELIMITER;
+        File training = new File(CoreConfiguration.TEMPDIR, "stage-" + UUID.randomUUID() + ".csv");
+        try {
+            write(training, "powerWatts,cpu\n100,10\n");
+            List<String> files = Collections.singletonList(training.getPath());
+            String key = StageCache.key("cpu", files, varCPU, "linearregression", null);
+            assertEquals(key, StageCache.key("cpu", files, varCPU, "linearregression", null));
+
+            // Another target, or the same file read with another delimiter, is another stage
+            CoreConfiguration.INDEPENDENT = "cpu";
+            assertFalse(key.equals(StageCache.key("cpu", files, varCPU, "linearregression", null)));
+            CoreConfiguration.INDEPENDENT = independent;
+            CoreConfiguration.CSV_DELIMITER = ';';
+            assertFalse(key.equals(StageCache.key("cpu", files, varCPU, "linearregression", null)));
+            CoreConfiguration.CSV_DELIMITER = delimiter;
+
+            // A rewritten file is digested again
+            write(training, "powerWatts,cpu\n100,10\n120,20\n");
+            assertFalse(key.equals(StageCache.key("cpu", files, varCPU, "linearregression", null)));
+        } finally {
+            CoreConfiguration.INDEPENDENT = independent;
+            CoreConfiguration.CSV_DELIMITER = delimiter;
+            training.delete();
+        }
+    }
+}
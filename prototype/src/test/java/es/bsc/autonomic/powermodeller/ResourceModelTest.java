@@ -18,9 +18,24 @@ import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Mauro Canuto (mauro.canuto@bsc.es)
@@ -76,4 +91,112 @@ public class ResourceModelTest {
         res_mod.estimateIndependent(csvB, varParser);
 
     }
+
+    @Test
+    public void predictSingleRow() throws Exception {
+        DataSet training = new DataSet(getClass().getResource("/trainingCPU.csv").getPath());
+        training.setIndependent("powerWatts");
+        VariableParser varParser = new VariableParser(getClass().getResource("/variablesCPU.conf").getPath(), training.getHeader());
+        ResourceModel model = new ResourceModel(training, varParser);
+
+        List<Double> expected = model.estimateIndependent(training);
+        double[][] columns = training.getCols(training.getHeader());
+        double[] row = new double[columns.length];
+        Map<String, Double> metrics = new HashMap<String, Double>();
+        for (int i = 0; i < training.getSize(); i++) {
+            for (int j = 0; j < columns.length; j++) {
+                row[j] = columns[j][i];
+                metrics.put(training.getHeader().get(j), columns[j][i]);
+            }
+            assertEquals(expected.get(i), model.predict(row), 0.0);
+            assertEquals(expected.get(i), model.predict(metrics), 0.0);
+        }
+
+        double[] batch = model.predict(columns, training.getSize());
+        for (int i = 0; i < training.getSize(); i++) {
+            assertEquals(expected.get(i), batch[i], 0.0);
+        }
+
+        // Same after serializing the model
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(model);
+        out.close();
+        ResourceModel loaded = (ResourceModel) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(expected.get(training.getSize() - 1), loaded.predict(row), 0.0);
+    }
+
+    @Test
+    public void concurrentPredictionMatchesSerial() throws Exception {
+        DataSet training = new DataSet(getClass().getResource("/trainingCPU.csv").getPath());
+        training.setIndependent("powerWatts");
+        VariableParser varParser = new VariableParser(getClass().getResource("/variablesCPU.conf").getPath(), training.getHeader());
+        ResourceModel cpu = new ResourceModel(training, varParser);
+
+        Random random = new Random(11);
+        List<String> header = Arrays.asList("powerWatts", "cpu", "mem");
+        double[][] synthetic = new double[header.size()][500];
+        for (int i = 0; i < 500; i++) {
+            synthetic[1][i] = random.nextDouble() * 100;
+            synthetic[2][i] = random.nextDouble() * 100;
+            synthetic[0][i] = 80 + synthetic[1][i] + (synthetic[2][i] > 50 ? 20 : 0) + random.nextGaussian();
+        }
+        DataSet syntheticDS = new DataSet(synthetic, header);
+        syntheticDS.setIndependent("powerWatts");
+        ResourceModel tree = new ResourceModel(syntheticDS, "RepTree");
+
+        for (final ResourceModel model : new ResourceModel[]{cpu, tree}) {
+            // Random samples, some of them with missing values
+            final int columns = model.getInputHeader().size();
+            final int rows = 400;
+            final double[][] samples = new double[columns][rows];
+            for (int j = 0; j < columns; j++) {
+                for (int i = 0; i < rows; i++) {
+                    samples[j][i] = i % 37 == j ? Double.NaN : random.nextDouble() * 100;
+                }
+            }
+
+            final double[] expected = new double[rows];
+            for (int i = 0; i < rows; i++) {
+                expected[i] = model.predict(row(samples, i));
+            }
+
+            final ConcurrentResourceModel concurrent = model.concurrent();
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 32; t++) {
+                final int offset = t;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        for (int k = 0; k < rows; k++) {
+                            int i = (k + offset * 13) % rows;
+                            if (Double.doubleToLongBits(concurrent.predict(row(samples, i))) != Double.doubleToLongBits(expected[i])) {
+                                return false;
+                            }
+                        }
+                        double[] batch = concurrent.predict(samples, rows);
+                        for (int i = 0; i < rows; i++) {
+                            if (Double.doubleToLongBits(batch[i]) != Double.doubleToLongBits(expected[i])) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            executor.shutdown();
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        }
+    }
+
+    private static double[] row(double[][] columns, int i) {
+        double[] ret = new double[columns.length];
+        for (int j = 0; j < columns.length; j++) {
+            ret[j] = columns[j][i];
+        }
+        return ret;
+    }
 }
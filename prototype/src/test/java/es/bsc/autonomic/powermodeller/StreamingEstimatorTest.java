@@ -0,0 +1,184 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.exceptions.PowerModelEstimatorException;
+import es.bsc.autonomic.powermodeller.tools.VariableParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingEstimatorTest {
+
+    private boolean preprocess;
+    private String filter;
+    private int window;
+    private String invalidValues;
+
+    private ResourceModel cpu;
+    private ModelBundle bundle;
+    private String validationPath;
+
+    @Before
+    public void setUp() {
+        preprocess = CoreConfiguration.PREPROCESS_DATASET;
+        filter = CoreConfiguration.FILTER_TYPE;
+        window = CoreConfiguration.MOVING_AVG_WINDOW;
+        invalidValues = CoreConfiguration.INVALID_VALUES;
+
+        DataSet training = new DataSet(getClass().getResource("/trainingCPU.csv").getPath());
+        training.setIndependent(CoreConfiguration.INDEPENDENT);
+        VariableParser varParser = new VariableParser(getClass().getResource("/variablesCPU.conf").getPath(), training.getHeader());
+        cpu = new ResourceModel(training, varParser);
+        bundle = new ModelBundle(CoreConfiguration.RESOURCES_MODEL, null, Collections.singletonMap("cpu", cpu));
+        validationPath = getClass().getResource("/validationFile.csv").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        CoreConfiguration.PREPROCESS_DATASET = preprocess;
+        CoreConfiguration.FILTER_TYPE = filter;
+        CoreConfiguration.MOVING_AVG_WINDOW = window;
+        CoreConfiguration.INVALID_VALUES = invalidValues;
+    }
+
+    private static List<double[]> readRecords(String csv) {
+        List<double[]> ret = new ArrayList<double[]>();
+        String[] lines = csv.split("\n");
+        for (int l = 1; l < lines.length; l++) {
+            String[] values = lines[l].split(",");
+            double[] record = new double[values.length];
+            for (int j = 0; j < values.length; j++) {
+                record[j] = Double.parseDouble(values[j]);
+            }
+            ret.add(record);
+        }
+        return ret;
+    }
+
+    private void assertSameAsValidation(int blockSize) throws Exception {
+        DataSet validation = DataSet.joinDataSetsFromPath(Collections.singletonList(validationPath));
+        List<Double> expected = cpu.estimateIndependent(validation);
+        List<Double> actual = validation.getCol(CoreConfiguration.INDEPENDENT);
+
+        StreamingEstimator streaming = new StreamingEstimator(bundle, validation.getHeader());
+        StringWriter out = new StringWriter();
+        streaming.estimate(new FileReader(validationPath), out, blockSize);
+
+        String csv = out.toString();
+        assertTrue(csv, csv.startsWith("timestamp,Pactual,Pcpu,Ppredicted\n"));
+        List<double[]> records = readRecords(csv);
+        assertEquals(expected.size(), records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(actual.get(i), records.get(i)[1], 1e-9);
+            assertEquals(expected.get(i), records.get(i)[2], 1e-6);
+            assertEquals(expected.get(i), records.get(i)[3], 1e-6);
+        }
+        assertEquals(records.size(), streaming.getAccuracy().getCount());
+    }
+
+    @Test
+    public void sameEstimationsAsValidation() throws Exception {
+        CoreConfiguration.PREPROCESS_DATASET = false;
+        assertSameAsValidation(1);
+        assertSameAsValidation(4);
+        assertSameAsValidation(1000);
+    }
+
+    @Test
+    public void sameEstimationsAsValidationWithMovingAverage() throws Exception {
+        CoreConfiguration.PREPROCESS_DATASET = true;
+        CoreConfiguration.FILTER_TYPE = "movingaverage";
+        CoreConfiguration.MOVING_AVG_WINDOW = 3;
+        assertSameAsValidation(2);
+        assertSameAsValidation(1000);
+    }
+
+    @Test
+    public void samplesAddedOneByOne() {
+        CoreConfiguration.PREPROCESS_DATASET = true;
+        CoreConfiguration.FILTER_TYPE = "movingaverage";
+        CoreConfiguration.MOVING_AVG_WINDOW = 5;
+        CoreConfiguration.INVALID_VALUES = "drop";
+
+        DataSet validation = new DataSet(validationPath);
+        List<String> header = validation.getHeader();
+        double[][] columns = validation.getCols(header);
+        int rows = validation.getSize();
+
+        final List<double[]> pushed = new ArrayList<double[]>();
+        StreamingEstimator.Sink sink = new StreamingEstimator.Sink() {
+            @Override
+            public void accept(double[] record) {
+                pushed.add(record.clone());
+            }
+        };
+        StreamingEstimator streaming = new StreamingEstimator(bundle, header);
+        List<double[]> samples = new ArrayList<double[]>();
+        for (int i = 0; i < rows; i++) {
+            double[] sample = new double[header.size()];
+            for (int j = 0; j < sample.length; j++) {
+                sample[j] = columns[j][i];
+            }
+            // A sample with an invalid value is dropped
+            if (i == 4) {
+                sample[2] = Double.NaN;
+            }
+            samples.add(sample);
+            streaming.add(sample, sink);
+            // The centred window of a sample needs the two samples kept after it
+            int kept = i + 1 - (i >= 4 ? 1 : 0);
+            assertEquals(Math.max(0, kept - 2), pushed.size());
+        }
+        streaming.finish(sink);
+        assertEquals(rows - 1, pushed.size());
+        assertEquals(rows, streaming.getReceived());
+        assertEquals(rows - 1, streaming.getEmitted());
+
+        final List<double[]> pulled = new ArrayList<double[]>();
+        new StreamingEstimator(bundle, header).estimate(samples.iterator(), 3, new StreamingEstimator.Sink() {
+            @Override
+            public void accept(double[] record) {
+                pulled.add(record.clone());
+            }
+        });
+        assertEquals(pushed.size(), pulled.size());
+        for (int i = 0; i < pushed.size(); i++) {
+            assertTrue(Arrays.equals(pushed.get(i), pulled.get(i)));
+        }
+    }
+
+    @Test
+    public void rejectsOtherHeaders() throws Exception {
+        StreamingEstimator streaming = new StreamingEstimator(bundle, Arrays.asList("timestamp", "powerWatts"));
+        try {
+            streaming.estimate(new StringReader("timestamp,other\n1,2\n"), new StringWriter(), 10);
+            throw new AssertionError("Header should have been rejected");
+        } catch (PowerModelEstimatorException e) {
+            assertTrue(e.getMessage().contains("Expected the header"));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller;
+
+import static org.junit.Assert.*;
+
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.exceptions.TempStorageException;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class TempStorageTest {
+
+    private static TempStorage.TempFile writeTempFile(String content) throws Exception {
+        TempStorage.TempFile file = TempStorage.newFile(".csv");
+        FileWriter writer = new FileWriter(file.getPath());
+        writer.write(content);
+        writer.close();
+        file.written();
+        return file;
+    }
+
+    @Test
+    public void testFileDeletedWithLastReference() throws Exception {
+        long reclaimed = TempStorage.getBytesReclaimed();
+        TempStorage.TempFile file = writeTempFile("a,b\n1,2\n");
+        File f = new File(file.getPath());
+
+        assertTrue(file.retain());
+        file.close();
+        assertTrue(f.exists());
+        file.close();
+        assertFalse(f.exists());
+        assertFalse(file.retain());
+        assertTrue(TempStorage.getBytesReclaimed() - reclaimed >= 8);
+    }
+
+    @Test
+    public void testDataSetOwnsFile() throws Exception {
+        TempStorage.TempFile file = writeTempFile("a,b\n1,2\n");
+        DataSet ds = new DataSet(file.getPath(), true);
+        file.close();
+        assertTrue(new File(file.getPath()).exists());
+
+        assertEquals("a,b\n1,2\n", ds.toString());
+        ds.close();
+        assertFalse(new File(file.getPath()).exists());
+    }
+
+    @Test
+    public void testExportDeletedOnClose() throws Exception {
+        DataSet ds = new DataSet(new double[][]{{1.5, 2.5}}, Arrays.asList("a"));
+        String path = ds.getFilePath();
+        assertTrue(new File(path).exists());
+        ds.close();
+        assertFalse(new File(path).exists());
+    }
+
+    @Test
+    public void testExportDeletedWhenUnreachable() throws Exception {
+        String path = new DataSet(new double[][]{{1.5, 2.5}}, Arrays.asList("a")).getFilePath();
+        assertTrue(new File(path).exists());
+
+        for (int i = 0; i < 50 && new File(path).exists(); i++) {
+            System.gc();
+            Thread.sleep(20);
+            TempStorage.reap();
+        }
+        assertFalse(new File(path).exists());
+    }
+
+    @Test
+    public void testQuotaExceeded() throws Exception {
+        long quota = CoreConfiguration.TEMP_QUOTA_MB;
+        TempStorage.TempFile file = TempStorage.newFile(".bin");
+        RandomAccessFile raf = new RandomAccessFile(file.getPath(), "rw");
+        raf.setLength(2 * 1024 * 1024);
+        raf.close();
+        try {
+            CoreConfiguration.TEMP_QUOTA_MB = 1;
+            file.written();
+            fail("Quota should have been exceeded");
+        } catch (TempStorageException e) {
+            // Expected
+        } finally {
+            CoreConfiguration.TEMP_QUOTA_MB = quota;
+            file.close();
+        }
+        assertFalse(new File(file.getPath()).exists());
+    }
+
+    @Test
+    public void testQuotaCheckedBeforeWriting() throws Exception {
+        long quota = CoreConfiguration.TEMP_QUOTA_MB;
+        double[][] values = new double[2][100000];
+        for (int i = 0; i < values[0].length; i++) {
+            values[0][i] = i * 0.123456789;
+            values[1][i] = i * 0.987654321;
+        }
+        DataSet ds = new DataSet(values, Arrays.asList("a", "b"));
+        long inUse = TempStorage.getBytesInUse();
+        long written = TempStorage.getBytesWritten();
+        try {
+            CoreConfiguration.TEMP_QUOTA_MB = 1;
+            try {
+                ds.save();
+                fail("Quota should have been exceeded");
+            } catch (TempStorageException e) {
+                // Expected
+            }
+            try {
+                ds.getFilePath();
+                fail("Quota should have been exceeded");
+            } catch (TempStorageException e) {
+                // Expected
+            }
+        } finally {
+            CoreConfiguration.TEMP_QUOTA_MB = quota;
+        }
+        // The binary file was never written and the CSV export stopped at the quota
+        assertEquals(inUse, TempStorage.getBytesInUse());
+        assertTrue(TempStorage.getBytesWritten() - written <= 1024 * 1024);
+    }
+
+    @Test
+    public void testAdoptOnlyInTempDir() throws Exception {
+        File outside = File.createTempFile("outside", ".csv", new File("."));
+        try {
+            TempStorage.adopt(outside.getPath());
+            fail("Files outside the temporal directory should not be managed");
+        } catch (TempStorageException e) {
+            // Expected
+        } finally {
+            assertTrue(outside.delete());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller.models;
+
+import es.bsc.autonomic.powermodeller.exceptions.ModelException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+
+public class ModelsTest {
+
+    private static List<Callable<Integer>> sleepingTasks(int count) {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < count; i++) {
+            final int value = i;
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    // The first tasks finish last
+                    Thread.sleep(10 * (4 - value));
+                    return value;
+                }
+            });
+        }
+        return tasks;
+    }
+
+    @Test
+    public void testResultsInTaskOrder() {
+        List<Integer> results = Models.runConcurrently(Arrays.asList("a", "b", "c", "d"), sleepingTasks(4));
+        assertEquals(Arrays.asList(0, 1, 2, 3), results);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFailurePropagated() {
+        List<Callable<Integer>> tasks = sleepingTasks(2);
+        tasks.add(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                throw new IllegalStateException("failed");
+            }
+        });
+        Models.runConcurrently(Arrays.asList("a", "b", "c"), tasks);
+    }
+
+    @Test(expected = ModelException.class)
+    public void testCheckedFailureWrapped() {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        tasks.add(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                throw new Exception("failed");
+            }
+        });
+        Models.runConcurrently(Arrays.asList("a"), tasks);
+    }
+}
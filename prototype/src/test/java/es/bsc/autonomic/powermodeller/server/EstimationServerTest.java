@@ -0,0 +1,303 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller.server;
+
+import es.bsc.autonomic.powermodeller.BundleEstimator;
+import es.bsc.autonomic.powermodeller.DataSet;
+import es.bsc.autonomic.powermodeller.ModelBundle;
+import es.bsc.autonomic.powermodeller.ModelRegistry;
+import es.bsc.autonomic.powermodeller.ResourceModel;
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.exceptions.EstimationServerException;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EstimationServerTest {
+
+    final static Logger logger = Logger.getLogger(EstimationServerTest.class);
+
+    private File dir;
+    private EstimationServer server;
+    private MicroBatcher batcher;
+    private BundleEstimator resources;
+    private BundleEstimator combined;
+
+    // Samples of cpu and mem, with power depending on both
+    private static DataSet training(String independent, long seed) {
+        Random random = new Random(seed);
+        double[][] columns = new double[3][400];
+        for (int i = 0; i < 400; i++) {
+            columns[1][i] = random.nextDouble() * 100;
+            columns[2][i] = random.nextDouble() * 100;
+            columns[0][i] = 80 + 1.5 * columns[1][i] + (columns[2][i] > 50 ? 10 : 0) + random.nextGaussian();
+        }
+        DataSet ds = new DataSet(columns, Arrays.asList(independent, "cpu", "mem"));
+        ds.setIndependent(independent);
+        return ds;
+    }
+
+    @Before
+    public void setUp() {
+        dir = new File(CoreConfiguration.TEMPDIR, "server-" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+
+        Map<String, ResourceModel> models = new LinkedHashMap<String, ResourceModel>();
+        models.put("cpu", new ResourceModel(training("powerWatts", 1), "linearregression"));
+        models.put("memory", new ResourceModel(training("powerWatts", 2), "RepTree"));
+        ModelBundle resourcesBundle = new ModelBundle(CoreConfiguration.RESOURCES_MODEL, null, models);
+        resourcesBundle.write(new File(dir, "xeon-x5650.model").getPath());
+
+        double[][] step2Columns = new double[3][50];
+        for (int i = 0; i < 50; i++) {
+            step2Columns[1][i] = i;
+            step2Columns[2][i] = 2 * i;
+            step2Columns[0][i] = 70 + step2Columns[1][i] + step2Columns[2][i];
+        }
+        DataSet step2Training = new DataSet(step2Columns, Arrays.asList(CoreConfiguration.PACTUAL_LABEL, CoreConfiguration.PCPU_LABEL, CoreConfiguration.PMEM_LABEL));
+        step2Training.setIndependent(CoreConfiguration.PACTUAL_LABEL);
+        models.put("step2", new ResourceModel(step2Training, "linearregression"));
+        ModelBundle combinedBundle = new ModelBundle(CoreConfiguration.COMBINED_MODEL, null, models);
+        combinedBundle.write(new File(dir, "xeon-e5.model").getPath());
+
+        resources = new BundleEstimator(resourcesBundle);
+        combined = new BundleEstimator(combinedBundle);
+
+        ModelRegistry registry = new ModelRegistry(dir.getPath());
+        registry.loadAll();
+        batcher = new MicroBatcher(256, 0, 1);
+        server = new EstimationServer(registry, batcher);
+        server.start("127.0.0.1", 0, 16);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private String[] post(String path, String contentType, String body) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", contentType);
+        OutputStream out = connection.getOutputStream();
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        in.close();
+        return new String[]{String.valueOf(status), new String(bytes.toByteArray(), "UTF-8")};
+    }
+
+    private static Map<String, Double> sample(double cpu, double mem) {
+        Map<String, Double> sample = new HashMap<String, Double>();
+        sample.put("cpu", cpu);
+        sample.put("mem", mem);
+        return sample;
+    }
+
+    /**
+     * A single sample that holds the scoring thread estimating it until released.
+     */
+    private static final class HeldSample extends AbstractList<Map<String, Double>> {
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public Map<String, Double> get(int index) {
+            held.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return sample(50, 50);
+        }
+
+        @Override
+        public int size() {
+            return 1;
+        }
+    }
+
+    private static Future<List<BundleEstimator.Estimation>> submit(ExecutorService executor, final MicroBatcher batcher,
+                                                                   final BundleEstimator estimator, final List<Map<String, Double>> samples) {
+        return executor.submit(new Callable<List<BundleEstimator.Estimation>>() {
+            @Override
+            public List<BundleEstimator.Estimation> call() throws Exception {
+                return batcher.estimate(estimator, samples);
+            }
+        });
+    }
+
+    @Test
+    public void estimatesCsvAndJsonSamples() throws Exception {
+        List<Map<String, Double>> samples = Arrays.asList(sample(10, 20), sample(90, 70));
+
+        String[] csv = post("/estimate?host=xeon-x5650", "text/csv", "cpu,mem\n10,20\n90,70\n");
+        assertEquals("200", csv[0]);
+        assertEquals(SampleParser.toJson("xeon-x5650", CoreConfiguration.RESOURCES_MODEL, resources.estimate(samples)), csv[1]);
+        assertTrue(csv[1], csv[1].contains("\"breakdown\":{\"Pcpu\":"));
+
+        String[] json = post("/estimate?host=xeon-e5", "application/json", "[{\"cpu\": 10, \"mem\": 20}, {\"cpu\": 90, \"mem\": 70}]");
+        assertEquals("200", json[0]);
+        assertEquals(SampleParser.toJson("xeon-e5", CoreConfiguration.COMBINED_MODEL, combined.estimate(samples)), json[1]);
+
+        // Missing metrics are missing values
+        assertEquals("200", post("/estimate?host=xeon-e5", "application/json", "{\"cpu\": 10, \"mem\": null}")[0]);
+    }
+
+    @Test
+    public void rejectsInvalidRequests() throws Exception {
+        assertEquals("400", post("/estimate?host=xeon-e5", "application/json", "{\"cpu\": \"high\"}")[0]);
+        assertEquals("400", post("/estimate?host=xeon-e5", "text/csv", "cpu,mem\n10\n")[0]);
+        assertEquals("400", post("/estimate?host=xeon-e5", "application/json", "{\"c\\uZZZZpu\": 10}")[0]);
+        assertEquals("400", post("/estimate?host=xeon-e5", "application/json", "{\"c\\u-123pu\": 10}")[0]);
+        assertEquals("404", post("/estimate?host=unknown", "text/csv", "cpu,mem\n10,20\n")[0]);
+        // Two host types are loaded
+        assertEquals("404", post("/estimate", "text/csv", "cpu,mem\n10,20\n")[0]);
+    }
+
+    @Test
+    public void rejectsLargeRequests() throws Exception {
+        int maxBytes = CoreConfiguration.SERVER_MAX_REQUEST_BYTES;
+        CoreConfiguration.SERVER_MAX_REQUEST_BYTES = 16;
+        try {
+            assertEquals("200", post("/estimate?host=xeon-e5", "text/csv", "cpu,mem\n10,20\n")[0]);
+            assertEquals("413", post("/estimate?host=xeon-e5", "text/csv", "cpu,mem\n10,20\n30,40\n")[0]);
+        } finally {
+            CoreConfiguration.SERVER_MAX_REQUEST_BYTES = maxBytes;
+        }
+    }
+
+    @Test
+    public void requestTimesOut() throws Exception {
+        MicroBatcher held = new MicroBatcher(256, 0, 1, 50);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        HeldSample sample = new HeldSample();
+        try {
+            submit(executor, held, resources, sample);
+            assertTrue(sample.held.await(10, TimeUnit.SECONDS));
+            try {
+                held.estimate(resources, Collections.singletonList(sample(10, 20)));
+                fail("Request waiting for a busy scoring thread did not time out");
+            } catch (EstimationServerException e) {
+                // Dropped, not estimated once the scoring thread is free
+                assertEquals(0, held.getQueued());
+            }
+        } finally {
+            sample.release.countDown();
+            executor.shutdown();
+            held.close();
+        }
+        assertEquals(1, held.getSamples());
+    }
+
+    /**
+     * Loopback load test: concurrent clients get the same estimations as a direct call, with their samples
+     * scored in fewer calls than requests. The scoring thread is held until the first request of every client
+     * is queued, so those are estimated in a single batch.
+     */
+    @Test
+    public void batchesConcurrentRequests() throws Exception {
+        final int clients = 16;
+        final int requests = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(clients + 1);
+        HeldSample sample = new HeldSample();
+        Future<List<BundleEstimator.Estimation>> first = submit(executor, batcher, resources, sample);
+        assertTrue(sample.held.await(10, TimeUnit.SECONDS));
+
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            futures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    for (int r = 0; r < requests; r++) {
+                        double cpu = (client * requests + r) % 100;
+                        double mem = (client + r) % 100;
+                        List<Map<String, Double>> samples = Collections.singletonList(sample(cpu, mem));
+                        String[] response = post("/estimate?host=xeon-x5650", "text/csv", "cpu,mem\n" + cpu + "," + mem + "\n");
+                        assertEquals(response[1], "200", response[0]);
+                        assertEquals(SampleParser.toJson("xeon-x5650", CoreConfiguration.RESOURCES_MODEL, resources.estimate(samples)), response[1]);
+                    }
+                    return requests;
+                }
+            }));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (batcher.getQueued() < clients && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(clients, batcher.getQueued());
+        sample.release.countDown();
+        assertEquals(1, first.get().size());
+
+        int done = 0;
+        for (Future<Integer> future : futures) {
+            done += future.get();
+        }
+        executor.shutdown();
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(clients * requests, done);
+        assertEquals(clients * requests + 1, batcher.getSamples());
+        // The held batch, the first request of every client at once and at most one batch per other request
+        assertTrue("Requests were not batched", batcher.getBatches() <= 2 + clients * (requests - 1));
+        logger.info(done + " requests in " + elapsed / 1000000 + " ms (" + (long) (done / (elapsed / 1e9)) + " requests/s), "
+                + batcher.getBatches() + " batches");
+    }
+}
@@ -0,0 +1,100 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller.tools;
+
+import es.bsc.autonomic.powermodeller.exceptions.VariableParserException;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.AddExpression;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class DerivedMetricsTest {
+
+    private static final String[] EXPRESSIONS = {
+            "a2*10", "(a3+a2)^2", "sqrta1*((a2+a3+a4))", "sqrta4*((a2+a3+a4))", "log(a2+1)",
+            "2*a3^4", "a1*-a2", "-a1+3", "a1-a2-a3", "a1/a2*a3", "abs(a1-a4)", "exp(a2/100)",
+            "floor(a1)+ceil(a2)+rint(a3)", "sin(a1)*cos(a2)/tan(a3)", "-(a1+a2)", "a1^0.5-2.5"};
+
+    @Test
+    public void matchesAddExpression() throws Exception {
+        Random random = new Random(7);
+        int rows = 3000;
+        double[][] columns = new double[4][rows];
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for (int j = 0; j < columns.length; j++) {
+            attributes.add(new Attribute("m" + j));
+        }
+        Instances data = new Instances("test", attributes, rows);
+        for (int i = 0; i < rows; i++) {
+            double[] values = new double[columns.length];
+            for (int j = 0; j < columns.length; j++) {
+                values[j] = i % 97 == j ? Double.NaN : random.nextGaussian() * 50;
+                columns[j][i] = values[j];
+            }
+            data.add(new DenseInstance(1.0, values));
+        }
+
+        Map<String, String> expressions = new LinkedHashMap<String, String>();
+        for (int m = 0; m < EXPRESSIONS.length; m++) {
+            expressions.put("new" + m, EXPRESSIONS[m]);
+        }
+        DerivedMetrics derived = new DerivedMetrics(expressions);
+        double[][] values = derived.evaluate(columns, rows);
+
+        int m = 0;
+        for (Map.Entry<String, String> entry : expressions.entrySet()) {
+            AddExpression filter = new AddExpression();
+            filter.setName(entry.getKey());
+            filter.setExpression(entry.getValue());
+            filter.setInputFormat(data);
+            Instances expected = Filter.useFilter(data, filter);
+            for (int i = 0; i < rows; i++) {
+                assertEquals(entry.getValue(), Double.doubleToLongBits(expected.instance(i).value(columns.length)),
+                        Double.doubleToLongBits(values[m][i]));
+            }
+            m++;
+        }
+    }
+
+    @Test
+    public void sharesCommonSubexpressions() {
+        Map<String, String> expressions = new LinkedHashMap<String, String>();
+        expressions.put("mem1", "sqrta1*((a3+a4+a5))");
+        expressions.put("mem10", "sqrta2*((a3+a4+a5))");
+        DerivedMetrics derived = new DerivedMetrics(expressions);
+
+        // a1, a2, a3, a4, a5, a3+a4, +a5, sqrt a1, sqrt a2 and the two products
+        assertEquals(11, derived.getOperationCount());
+
+        double[][] values = derived.evaluate(new double[][]{{4}, {9}, {1}, {2}, {3}}, 1);
+        assertEquals(12.0, values[0][0], 0.0);
+        assertEquals(18.0, values[1][0], 0.0);
+    }
+
+    @Test(expected = VariableParserException.class)
+    public void rejectsMismatchedParenthesis() {
+        Map<String, String> expressions = new LinkedHashMap<String, String>();
+        expressions.put("bad", "(a1+a2");
+        new DerivedMetrics(expressions);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+    Copyright 2015 Barcelona Supercomputing Center
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+        http://www.apache.org/licenses/LICENSE-2.0
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package es.bsc.autonomic.powermodeller.tools;
+
+import es.bsc.autonomic.powermodeller.DataSet;
+import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EstimationMetricsTest {
+
+    @Test
+    public void knownValues() {
+        double[][] columns = {{10, 20, Double.NaN, 30, 40}, {12, 18, 25, 33, 40}};
+        DataSet ds = new DataSet(columns, Arrays.asList(CoreConfiguration.PACTUAL_LABEL, CoreConfiguration.PPREDICTED_LABEL));
+        EstimationMetrics metrics = EstimationMetrics.compute(ds);
+
+        // The sample with a missing actual value is left out
+        assertEquals(4, metrics.getCount());
+        assertEquals(495 / Math.sqrt(500 * 504.75), metrics.getCorrelation(), 1e-12);
+        assertEquals(1.75, metrics.getMAE(), 1e-12);
+        assertEquals(Math.sqrt(4.25), metrics.getRMSE(), 1e-12);
+        assertEquals(17.5, metrics.getRAE(), 1e-12);
+        assertEquals(10, metrics.getMAPE(), 1e-12);
+        assertEquals(metrics.getCorrelation() * metrics.getCorrelation(), metrics.getR2(), 0.0);
+    }
+
+    @Test
+    public void accumulatorMatchesBatch() {
+        Random random = new Random(3);
+        int size = 5000;
+        double[] actual = new double[size];
+        double[] predicted = new double[size];
+        EstimationMetrics.Accumulator accumulator = new EstimationMetrics.Accumulator();
+        for (int i = 0; i < size; i++) {
+            // Large offset, where naive sums of squares lose most of their digits
+            actual[i] = 1e6 + 100 + random.nextGaussian() * 10;
+            predicted[i] = actual[i] + random.nextGaussian();
+            accumulator.add(actual[i], predicted[i]);
+        }
+
+        EstimationMetrics batch = EstimationMetrics.compute(actual, predicted);
+        EstimationMetrics streamed = accumulator.getMetrics();
+        assertEquals(batch.getCount(), streamed.getCount());
+        assertEquals(batch.getCorrelation(), streamed.getCorrelation(), 0.0);
+        assertEquals(batch.getMAE(), streamed.getMAE(), 0.0);
+        assertEquals(batch.getRMSE(), streamed.getRMSE(), 0.0);
+        assertEquals(batch.getMAPE(), streamed.getMAPE(), 0.0);
+        // The accumulator measures the deviation from the running mean, which settles after a few samples
+        assertEquals(batch.getRAE(), streamed.getRAE(), batch.getRAE() * 0.01);
+        assertTrue(batch.getCorrelation() > 0.99 && batch.getCorrelation() <= 1);
+        assertEquals(1.0, batch.getRMSE(), 0.05);
+
+        double sumSquared = 0;
+        for (int i = 0; i < size; i++) {
+            sumSquared += (predicted[i] - actual[i]) * (predicted[i] - actual[i]);
+        }
+        assertEquals(Math.sqrt(sumSquared / size), batch.getRMSE(), 1e-9);
+    }
+}
@@ -15,6 +15,7 @@ package es.bsc.autonomic.powermodeller.tools;
 
 import es.bsc.autonomic.powermodeller.DataSet;
 import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
+import es.bsc.autonomic.powermodeller.tools.classifiers.BatchPredictor;
 import es.bsc.autonomic.powermodeller.tools.classifiers.LinearRegressionClassifier;
 import es.bsc.autonomic.powermodeller.tools.classifiers.RepTreeClassifier;
 import es.bsc.autonomic.powermodeller.tools.classifiers.WekaWrapper;
@@ -24,13 +25,18 @@ import org.junit.Test;
 
 import weka.classifiers.Classifier;
 import weka.classifiers.functions.LinearRegression;
+import weka.classifiers.rules.ZeroR;
 import weka.classifiers.trees.REPTree;
+import weka.core.Instances;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class WekaWrapperTest {
@@ -98,6 +104,25 @@ public class WekaWrapperTest {
                 "187,11,110,1089\n"));
     }
 
+    @Test
+    public void convertInstancesInMemory() {
+        List<String> header = new ArrayList<String>();
+        header.add("powerWatts");
+        header.add("cpu");
+        DataSet ds = new DataSet(new double[][]{{23, 46.5}, {2, Double.NaN}}, header);
+        ds.setIndependent("powerWatts");
+
+        Instances instances = WekaWrapper.convertDataSetToInstances(ds);
+        assertEquals(2, instances.numInstances());
+        assertEquals(0, instances.classIndex());
+        assertEquals(46.5, instances.instance(1).value(0), 0.0);
+        assertTrue(instances.instance(1).isMissing(1));
+
+        DataSet out = WekaWrapper.convertInstancesToDataSet(instances);
+        assertEquals("powerWatts,cpu\n23,2\n46.5,NaN\n", out.toString());
+        assertEquals(training_ds.toString(), WekaWrapper.convertInstancesToDataSet(WekaWrapper.convertDataSetToInstances(training_ds)).toString());
+    }
+
     @Test
     public void applyLinearRegression() throws Exception {
 
@@ -164,4 +189,37 @@ public class WekaWrapperTest {
         assertTrue(estimated.equals(expected));
     }
 
+    @Test
+    public void batchPredictionMatchesWeka() throws Exception {
+        Random random = new Random(3);
+        int rows = 2000;
+        List<String> header = Arrays.asList("powerWatts", "cpu", "mem", "disk");
+        double[][] columns = new double[header.size()][rows];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 1; j < header.size(); j++) {
+                columns[j][i] = i % 101 == j ? Double.NaN : random.nextDouble() * 100;
+            }
+            columns[0][i] = 3 * columns[1][i] + 0.5 * columns[2][i] + random.nextGaussian();
+        }
+        DataSet ds = new DataSet(columns, header);
+        ds.setIndependent("powerWatts");
+        Instances instances = WekaWrapper.convertDataSetToInstances(ds);
+
+        REPTree tree = new REPTree();
+        tree.setMinNum(5);
+        Classifier[] models = {new LinearRegression(), tree, new ZeroR()};
+        boolean[] specialised = {true, true, false};
+        for (int m = 0; m < models.length; m++) {
+            models[m].buildClassifier(instances);
+            BatchPredictor predictor = BatchPredictor.compile(models[m], header, 0);
+            assertEquals(specialised[m], predictor.isSpecialised());
+
+            double[] estimated = predictor.predict(columns, rows);
+            for (int i = 0; i < rows; i++) {
+                assertEquals(Double.doubleToLongBits(models[m].classifyInstance(instances.instance(i))),
+                        Double.doubleToLongBits(estimated[i]));
+            }
+        }
+    }
+
 }
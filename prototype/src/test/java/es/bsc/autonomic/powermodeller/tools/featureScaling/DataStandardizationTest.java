@@ -13,15 +13,13 @@
 
 package es.bsc.autonomic.powermodeller.tools.featureScaling;
 
-import au.com.bytecode.opencsv.CSVReader;
+import es.bsc.autonomic.powermodeller.DataSet;
 import es.bsc.autonomic.powermodeller.configuration.CoreConfiguration;
-import es.bsc.autonomic.powermodeller.exceptions.DataSetException;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.FileWriter;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -50,62 +48,43 @@ public class DataStandardizationTest {
 
     @Test
     public void scaleDataset() {
-        CSVReader reader = null;
         DataStandardization data = new DataStandardization();
 
         data.generateStandardization(csv1path, "A");
-        try{
-            reader = new CSVReader(new FileReader(data.getFileOutputPath()), CoreConfiguration.CSV_DELIMITER);
 
-            //Read all rows at once
-            List<String[]> allRows = reader.readAll();
-
-
-            assertTrue(Arrays.toString(allRows.get(0)).equals("[A, B, C]"));
-            assertTrue(Arrays.toString(allRows.get(1)).equals("[2, 299, 301]"));
-            assertTrue(Arrays.toString(allRows.get(2)).equals("[1, 300, 300]"));
-            assertTrue(Arrays.toString(allRows.get(3)).equals("[3, 301, 299]"));
-
-        } catch (IOException e) {
-            throw new DataSetException("Error while reading CSV file.");
-        } finally {
-            try {
-                reader.close();
-            } catch (IOException e) {
-                throw new DataSetException("Error while closing CSV file.");
-            }
-        }
+        // Scaled files are binary DataSet files
+        DataSet scaled = new DataSet(data.getFileOutputPath());
+        Assert.assertEquals("A,B,C\n2,299,301\n1,300,300\n3,301,299\n", scaled.toString());
     }
 
 
     @Test
     public void applyScaling(){
-        CSVReader reader = null;
         DataStandardization data_t = new DataStandardization();
         data_t.generateStandardization(csv1path, "A");
 
-        DataStandardization data = new DataStandardization(data_t.getMu(), data_t.getSigma());
+        DataStandardization data = new DataStandardization(data_t.getMetrics(), data_t.getIndependent(), data_t.getMu(), data_t.getSigma());
         data.applyStandardization(csv2path, "A");
 
-        try{
-            reader = new CSVReader(new FileReader(data.getFileOutputPathValidated()), CoreConfiguration.CSV_DELIMITER);
-
-            //Read all rows at once
-            List<String[]> allRows = reader.readAll();
+        DataSet scaled = new DataSet(data.getFileOutputPathValidated());
+        Assert.assertEquals("A,B,C\n4,299,301\n2,300,300\n6,301,299\n", scaled.toString());
+    }
 
-            assertTrue(Arrays.toString(allRows.get(0)).equals("[A, B, C]"));
-            assertTrue(Arrays.toString(allRows.get(1)).equals("[4, 299, 301]"));
-            assertTrue(Arrays.toString(allRows.get(2)).equals("[2, 300, 300]"));
-            assertTrue(Arrays.toString(allRows.get(3)).equals("[6, 301, 299]"));
+    @Test
+    public void missingAndUnscaledMetrics() throws Exception {
+        File input = File.createTempFile("scale", ".csv", new File(CoreConfiguration.TEMPDIR));
+        FileWriter writer = new FileWriter(input);
+        writer.write("timestamp,A,B\n10,2,1\n11,NaN,NaN\n12,3,5\n13,1,3\n");
+        writer.close();
 
-        } catch (IOException e) {
-            throw new DataSetException("Error while reading CSV file.");
-        } finally {
-            try {
-                reader.close();
-            } catch (IOException e) {
-                throw new DataSetException("Error while closing CSV file.");
-            }
-        }
+        DataStandardization data = new DataStandardization();
+        data.generateStandardization(input.getPath(), "A");
+        Assert.assertEquals(Arrays.asList("timestamp", "A", "B"), data.getMetrics());
+        Assert.assertArrayEquals(new double[]{11.5, 2, 3}, data.getMu(), 1e-12);
+        Assert.assertArrayEquals(new double[]{Math.sqrt(5.0 / 3), 1, 2}, data.getSigma(), 1e-12);
+
+        DataSet scaled = new DataSet(data.getFileOutputPath());
+        Assert.assertEquals("timestamp,A,B\n10,2,299\n11,0,0\n12,3,301\n13,1,300\n", scaled.toString());
+        input.delete();
     }
 }
@@ -7,8 +7,14 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static es.bsc.autonomic.powermodeller.tools.filters.FilterTool.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -61,10 +67,64 @@ public class FilterToolTest {
                 "84.8,9,8.2,7.6\n" +
                 "117.6,10.8,12,13.8\n" +
                 "135.5,12.5,13.5,16.25\n" +
-                "157.666666666667,14.6666666666667,15,19.6666666666667\n"
+                "157.66666666666666,14.666666666666666,15,19.666666666666668\n"
         ));
     }
 
+    @Test
+    public void movingAverageMissingValues(){
+
+        double[] values = {1, Double.NaN, 3, Double.NaN, Double.NaN, Double.NaN, 7};
+        assertArrayEquals(new double[]{1, 2, 3, 3, Double.NaN, 7, 7}, MovingAverage.average(values, 1, 1), 0.0);
+        // Trailing window of 3 samples
+        assertArrayEquals(new double[]{1, 1, 2, 3, 3, Double.NaN, 7}, MovingAverage.average(values, 2, 0), 0.0);
+    }
+
+    @Test
+    public void movingAverageInfiniteValues(){
+
+        double inf = Double.POSITIVE_INFINITY;
+        double[] values = {1, inf, 3, 5, 7, -inf, inf, 9, 11};
+        // The window recovers once the infinite values leave it
+        assertArrayEquals(new double[]{inf, inf, inf, 5, -inf, Double.NaN, Double.NaN, inf, 10},
+                MovingAverage.average(values, 1, 1), 0.0);
+    }
+
+    @Test
+    public void incrementalMovingAverage(){
+
+        List<String> metrics = dataSet.getHeader();
+        double[][] columns = dataSet.getCols(metrics);
+        for (boolean centered : new boolean[]{true, false}) {
+            for (int window = 1; window <= 8; window++) {
+                double[][] expected = new MovingAverage(window, centered).runFilter(dataSet).getCols(metrics);
+
+                MovingAverage.Incremental filter = new MovingAverage.Incremental(metrics, window, centered);
+                List<double[]> samples = new ArrayList<double[]>();
+                for (int i = 0; i < dataSet.getSize(); i++) {
+                    double[] sample = new double[metrics.size()];
+                    for (int j = 0; j < sample.length; j++) {
+                        sample[j] = columns[j][i];
+                    }
+                    double[] averaged = filter.add(sample);
+                    if (i < filter.getDelay()) {
+                        assertNull(averaged);
+                    } else {
+                        samples.add(averaged);
+                    }
+                }
+                samples.addAll(filter.flush());
+
+                assertEquals(dataSet.getSize(), samples.size());
+                for (int i = 0; i < samples.size(); i++) {
+                    for (int j = 0; j < metrics.size(); j++) {
+                        assertEquals(Arrays.toString(samples.get(i)), expected[j][i], samples.get(i)[j], 1e-9);
+                    }
+                }
+            }
+        }
+    }
+
     @Test
     public void removeIdle(){
 